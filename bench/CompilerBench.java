@@ -0,0 +1,810 @@
+import java.util.*;
+import java.io.*;
+
+// Times the compiler phases on a large machine generated LittleJava program.
+// Usage: CompilerBench [classes] [threads]
+public class CompilerBench {
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int classes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String source = genProgram(classes, 6, 0);
+        String badSource = genProgram(classes, 6, 50);
+        System.out.println("Generated " + classes + " classes, " + source.length() + " characters");
+        System.out.println("Using " + threads + " threads");
+        System.out.println();
+
+        // The checker resolves names in place, so every round works on a freshly parsed program
+        long serial = timeChecker(source, 1);
+        long parallel = timeChecker(source, threads);
+        report("StaticChecker", serial, parallel);
+
+        List<String> serialErrors = checkerErrors(badSource, 1);
+        List<String> parallelErrors = checkerErrors(badSource, threads);
+        if (!serialErrors.equals(parallelErrors))
+            throw new AssertionError("parallel checker reported different errors than the serial one");
+        System.out.println("  " + serialErrors.size() + " semantic errors, identical in both modes");
+
+        // Lowering only reads the checked program, so it is checked once and lowered every round
+        Ast.Program checked = Parser.parse(new StringReader(source));
+        StaticChecker.run(checked);
+        serial = timeGenerator(checked, 1);
+        parallel = timeGenerator(checked, threads);
+        report("Ir3Generator", serial, parallel);
+
+        if (!Ir3Generator.run(checked, 1).prettyPrint(0).equals(Ir3Generator.run(checked, threads).prettyPrint(0)))
+            throw new AssertionError("parallel lowering printed a different program than the serial one");
+        System.out.println("  printed IR3 identical in both modes");
+
+        timeBinary(Ir3Generator.run(checked, 1));
+
+        timeDataflow(Ir3Generator.run(checked, 1));
+
+        timeRegisterAllocation();
+
+        timeDeadCode(classes);
+
+        timeValueNumbering(classes);
+
+        timeCopyPropagation(classes);
+
+        timeCfgCleanup(checked);
+
+        timeStrengthReduction(classes);
+
+        timeInliner(classes);
+
+        timeIncremental(source, classes, threads);
+    }
+
+    // Compares the binary encoding of a program with its printed form
+    private static void timeBinary(Ir3.Prog prog) throws Exception {
+        long print = Long.MAX_VALUE;
+        long write = Long.MAX_VALUE;
+        long read = Long.MAX_VALUE;
+        String text = null;
+        byte[] bytes = null;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long start = System.nanoTime();
+            text = prog.prettyPrint(0);
+            long mid = System.nanoTime();
+            bytes = Ir3Binary.toBytes(prog);
+            long end = System.nanoTime();
+            Ir3Binary.fromBytes(bytes);
+            long last = System.nanoTime();
+            if (i >= WARMUP) {
+                print = Math.min(print, mid - start);
+                write = Math.min(write, end - mid);
+                read = Math.min(read, last - end);
+            }
+        }
+        int textBytes = text.getBytes("UTF-8").length;
+        System.out.println("Ir3Binary:");
+        System.out.printf("  print    %8.2f ms, %d bytes%n", print / 1e6, textBytes);
+        System.out.printf("  write    %8.2f ms, %d bytes (%.1fx smaller)%n", write / 1e6, bytes.length, (double) textBytes / bytes.length);
+        System.out.printf("  read     %8.2f ms%n", read / 1e6);
+
+        if (!Ir3Binary.fromBytes(bytes).prettyPrint(0).equals(text))
+            throw new AssertionError("binary round trip printed a different program");
+        System.out.println("  round trip prints the same program");
+    }
+
+    // Solves the dataflow analyses on every method, and checks that solving them again and scanning
+    // the statements with the visitors allocates nothing
+    private static void timeDataflow(Ir3.Prog prog) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        ArrayList<Dataflow> analyses = new ArrayList<>();
+        long setup = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            analyses.clear();
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths) {
+                analyses.add(Liveness.run(meth));
+                analyses.add(ReachingDefs.run(meth));
+                analyses.add(AvailableExprs.run(meth));
+            }
+            if (i >= WARMUP)
+                setup = Math.min(setup, System.nanoTime() - start);
+        }
+
+        long solve = Long.MAX_VALUE;
+        long solveBytes = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long bytes = mx.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int a = 0; a < analyses.size(); a++)
+                analyses.get(a).solve();
+            long elapsed = System.nanoTime() - start;
+            bytes = mx.getThreadAllocatedBytes(thread) - bytes;
+            if (i >= WARMUP) {
+                solve = Math.min(solve, elapsed);
+                solveBytes = Math.max(solveBytes, bytes);
+            }
+        }
+
+        long[] count = new long[1];
+        Ir3.VarVisitor counter = v -> count[0]++;
+        long listBytes = 0;
+        long visitBytes = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long bytes = mx.getThreadAllocatedBytes(thread);
+            for (Ir3.Meth meth : prog.meths) {
+                for (Ir3.Block block : meth.blocks) {
+                    for (Ir3.Stmt stmt : block.stmts)
+                        count[0] += stmt.getUses().size();
+                }
+            }
+            long mid = mx.getThreadAllocatedBytes(thread);
+            // Indexed, as the iterators are only optimized away once compiled
+            for (int m = 0; m < prog.meths.size(); m++) {
+                ArrayList<Ir3.Block> blocks = prog.meths.get(m).blocks;
+                for (int b = 0; b < blocks.size(); b++) {
+                    List<Ir3.Stmt> stmts = blocks.get(b).stmts;
+                    for (int s = 0; s < stmts.size(); s++)
+                        stmts.get(s).forEachUse(counter);
+                }
+            }
+            long end = mx.getThreadAllocatedBytes(thread);
+            if (i >= WARMUP) {
+                listBytes = Math.max(listBytes, mid - bytes);
+                visitBytes = Math.max(visitBytes, end - mid);
+            }
+        }
+
+        System.out.println("Dataflow:");
+        System.out.printf("  set up   %8.2f ms, %d analyses%n", setup / 1e6, analyses.size());
+        System.out.printf("  solve    %8.2f ms, %d bytes allocated%n", solve / 1e6, solveBytes);
+        System.out.printf("  uses     %d bytes with getUses, %d bytes with forEachUse%n", listBytes, visitBytes);
+        if (solveBytes != 0 || visitBytes != 0)
+            throw new AssertionError("solving or visiting allocated memory");
+    }
+
+    // Allocates registers in ever longer methods with both allocators. The time per statement of
+    // linear scan should stay flat, graph coloring trades time for fewer spills.
+    private static void timeRegisterAllocation() throws Exception {
+        for (boolean coloring : new boolean[] { false, true }) {
+            System.out.println(coloring ? "GraphColoring:" : "LinearScan:");
+            for (int segments = 1000; segments <= 8000; segments *= 2) {
+                Ast.Program checked = Parser.parse(new StringReader(genLongMethod(segments)));
+                StaticChecker.run(checked);
+                long best = Long.MAX_VALUE;
+                int stmts = 0;
+                int spills = 0;
+                for (int i = 0; i < WARMUP + ROUNDS; i++) {
+                    Ir3.Prog prog = Ir3Generator.run(checked, 1);
+                    Ir3.Meth meth = prog.meths.get(prog.meths.size() - 1);
+                    stmts = 0;
+                    for (Ir3.Block block : meth.blocks)
+                        stmts += block.stmts.size();
+                    long start = System.nanoTime();
+                    if (coloring)
+                        GraphColoring.run(meth, 8);
+                    else
+                        LinearScan.run(meth, 8);
+                    if (i >= WARMUP)
+                        best = Math.min(best, System.nanoTime() - start);
+                    spills = 0;
+                    for (Ir3.Block block : meth.blocks) {
+                        for (Ir3.Stmt stmt : block.stmts) {
+                            if (stmt instanceof Ir3.SpillStmt || stmt instanceof Ir3.ReloadStmt)
+                                spills++;
+                        }
+                    }
+                }
+                System.out.printf("  %7d statements %8.2f ms, %6.1f ns per statement, %6d spills and reloads%n", stmts, best / 1e6,
+                                  (double) best / stmts, spills);
+            }
+        }
+    }
+
+    // Removes the dead code left by constant propagation, and compares the time linear scan then
+    // takes with the time it takes without the removal
+    private static void timeDeadCode(int classes) throws Exception {
+        Ast.Program checked = Parser.parse(new StringReader(genConfigProgram(classes)));
+        StaticChecker.run(checked);
+        long dce = Long.MAX_VALUE;
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        int stmtsBefore = 0;
+        int stmtsAfter = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog plain = Ir3Generator.run(checked, 1);
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            for (Ir3.Prog p : Arrays.asList(plain, prog)) {
+                for (Ir3.Meth meth : p.meths) {
+                    SsaBuilder.run(meth);
+                    Sccp.run(meth);
+                }
+            }
+            stmtsBefore = countStmts(prog);
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                DeadCode.run(meth);
+            long mid = System.nanoTime();
+            stmtsAfter = countStmts(prog);
+            for (Ir3.Prog p : Arrays.asList(plain, prog)) {
+                for (Ir3.Meth meth : p.meths)
+                    SsaDestructor.run(meth);
+            }
+            long regs = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                LinearScan.run(meth, 8);
+            long end = System.nanoTime();
+            for (Ir3.Meth meth : plain.meths)
+                LinearScan.run(meth, 8);
+            long last = System.nanoTime();
+            if (i >= WARMUP) {
+                dce = Math.min(dce, mid - start);
+                after = Math.min(after, end - regs);
+                before = Math.min(before, last - end);
+            }
+        }
+        System.out.println("DeadCode:");
+        System.out.printf("  remove   %8.2f ms, %d of %d statements and labels left (%.1f%%)%n", dce / 1e6, stmtsAfter,
+                          stmtsBefore, 100.0 * stmtsAfter / stmtsBefore);
+        System.out.printf("  regs     %8.2f ms after, %8.2f ms without%n", after / 1e6, before / 1e6);
+    }
+
+    // Numbers the values of methods reading the same fields over and over in their loops, then
+    // moves the invariant ones out of the loops, and counts the loads left in the loops
+    private static void timeValueNumbering(int classes) throws Exception {
+        Ast.Program checked = Parser.parse(new StringReader(genFieldProgram(classes)));
+        StaticChecker.run(checked);
+        long gvn = Long.MAX_VALUE;
+        long licm = Long.MAX_VALUE;
+        int loadsBefore = 0;
+        int loadsNumbered = 0;
+        int loadsMoved = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            for (Ir3.Meth meth : prog.meths)
+                SsaBuilder.run(meth);
+            loadsBefore = countLoopLoads(prog);
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                Gvn.run(meth);
+            long mid = System.nanoTime();
+            loadsNumbered = countLoopLoads(prog);
+            for (Ir3.Meth meth : prog.meths)
+                Licm.run(meth);
+            long end = System.nanoTime();
+            loadsMoved = countLoopLoads(prog);
+            if (i >= WARMUP) {
+                gvn = Math.min(gvn, mid - start);
+                licm = Math.min(licm, end - mid);
+            }
+        }
+        System.out.println("Gvn:");
+        System.out.printf("  number   %8.2f ms, %d of %d field loads in loops left%n", gvn / 1e6, loadsNumbered, loadsBefore);
+        System.out.println("Licm:");
+        System.out.printf("  hoist    %8.2f ms, %d of %d field loads in loops left%n", licm / 1e6, loadsMoved, loadsBefore);
+    }
+
+    // Propagates the copies of the lowered methods under constant settings, and counts the
+    // statements and locals left
+    private static void timeCopyPropagation(int classes) throws Exception {
+        Ast.Program checked = Parser.parse(new StringReader(genConfigProgram(classes)));
+        StaticChecker.run(checked);
+        long prop = Long.MAX_VALUE;
+        int stmtsBefore = 0;
+        int stmtsAfter = 0;
+        int localsBefore = 0;
+        int localsAfter = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            stmtsBefore = countStmts(prog);
+            localsBefore = countLocals(prog);
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                CopyPropagation.run(meth);
+            long end = System.nanoTime();
+            stmtsAfter = countStmts(prog);
+            localsAfter = countLocals(prog);
+            if (i >= WARMUP)
+                prop = Math.min(prop, end - start);
+        }
+        System.out.println("CopyPropagation:");
+        System.out.printf("  propagate %7.2f ms, %d of %d statements and labels, %d of %d locals left%n", prop / 1e6,
+                          stmtsAfter, stmtsBefore, localsAfter, localsBefore);
+    }
+
+    // Cleans up the graphs of the lowered program, and counts the jumps and labels left
+    private static void timeCfgCleanup(Ast.Program checked) {
+        long cleanup = Long.MAX_VALUE;
+        int jumpsBefore = 0;
+        int jumpsAfter = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            jumpsBefore = countJumps(prog);
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                CfgCleanup.run(meth);
+            long end = System.nanoTime();
+            jumpsAfter = countJumps(prog);
+            if (i >= WARMUP)
+                cleanup = Math.min(cleanup, end - start);
+        }
+        System.out.println("CfgCleanup:");
+        System.out.printf("  clean up %8.2f ms, %d of %d jumps and labels left%n", cleanup / 1e6, jumpsAfter, jumpsBefore);
+    }
+
+    // Reduces the strength of the arithmetic of methods indexing by their loop counters, and counts
+    // the products and quotients left in the loops
+    private static void timeStrengthReduction(int classes) throws Exception {
+        Ast.Program checked = Parser.parse(new StringReader(genArithProgram(classes)));
+        StaticChecker.run(checked);
+        long strength = Long.MAX_VALUE;
+        int opsBefore = 0;
+        int opsAfter = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            for (Ir3.Meth meth : prog.meths)
+                SsaBuilder.run(meth);
+            opsBefore = countLoopMulDiv(prog);
+            long start = System.nanoTime();
+            for (Ir3.Meth meth : prog.meths)
+                StrengthReduction.run(meth);
+            long end = System.nanoTime();
+            opsAfter = countLoopMulDiv(prog);
+            if (i >= WARMUP)
+                strength = Math.min(strength, end - start);
+        }
+        System.out.println("StrengthReduction:");
+        System.out.printf("  reduce   %8.2f ms, %d of %d products and quotients in loops left%n", strength / 1e6, opsAfter,
+                          opsBefore);
+    }
+
+    // Inlines the calls of methods to getters and helpers, and to a recursive method, and counts
+    // the calls and statements left. Then removes the methods and classes main does not reach,
+    // which is all of them but the first class, like a library mostly unused.
+    private static void timeInliner(int classes) throws Exception {
+        Ast.Program checked = Parser.parse(new StringReader(genHelperProgram(classes)));
+        StaticChecker.run(checked);
+        long inline = Long.MAX_VALUE;
+        long dead = Long.MAX_VALUE;
+        int callsBefore = 0;
+        int callsAfter = 0;
+        int stmtsBefore = 0;
+        int stmtsAfter = 0;
+        int methsBefore = 0;
+        int methsAfter = 0;
+        int datasAfter = 0;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ir3.Prog prog = Ir3Generator.run(checked, 1);
+            callsBefore = countCalls(prog);
+            stmtsBefore = countStmts(prog);
+            methsBefore = prog.meths.size();
+            long start = System.nanoTime();
+            Inliner.run(prog);
+            long mid = System.nanoTime();
+            callsAfter = countCalls(prog);
+            stmtsAfter = countStmts(prog);
+            DeadMethods.run(prog);
+            long end = System.nanoTime();
+            methsAfter = prog.meths.size();
+            datasAfter = prog.datas.size();
+            if (i >= WARMUP) {
+                inline = Math.min(inline, mid - start);
+                dead = Math.min(dead, end - mid);
+            }
+        }
+        System.out.println("Inliner:");
+        System.out.printf("  inline   %8.2f ms, %d of %d calls left, %d statements and labels from %d%n", inline / 1e6,
+                          callsAfter, callsBefore, stmtsAfter, stmtsBefore);
+        System.out.println("DeadMethods:");
+        System.out.printf("  remove   %8.2f ms, %d of %d methods and %d of %d classes left%n", dead / 1e6, methsAfter,
+                          methsBefore, datasAfter, classes + 1);
+    }
+
+    private static int countCalls(Ir3.Prog prog) {
+        int calls = 0;
+        for (Ir3.Meth meth : prog.meths) {
+            for (Ir3.Block block : meth.blocks) {
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.MethodCallStmt)
+                        calls++;
+                }
+            }
+        }
+        return calls;
+    }
+
+    private static int countJumps(Ir3.Prog prog) {
+        int jumps = 0;
+        for (Ir3.Meth meth : prog.meths) {
+            for (Ir3.Block block : meth.blocks) {
+                if (block.label != null)
+                    jumps++;
+                if (!block.stmts.isEmpty() && block.stmts.get(block.stmts.size() - 1) instanceof Ir3.JumpStmt)
+                    jumps++;
+            }
+        }
+        return jumps;
+    }
+
+    private static int countLocals(Ir3.Prog prog) {
+        int locals = 0;
+        for (Ir3.Meth meth : prog.meths)
+            locals += meth.locals.size();
+        return locals;
+    }
+
+    private static int countLoopLoads(Ir3.Prog prog) {
+        int loads = 0;
+        for (Ir3.Meth meth : prog.meths) {
+            Loops loops = Loops.run(meth);
+            for (Ir3.Block block : meth.blocks) {
+                if (loops.depth(block) == 0)
+                    continue;
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.FieldAccessStmt)
+                        loads++;
+                }
+            }
+        }
+        return loads;
+    }
+
+    private static int countLoopMulDiv(Ir3.Prog prog) {
+        int ops = 0;
+        for (Ir3.Meth meth : prog.meths) {
+            Loops loops = Loops.run(meth);
+            for (Ir3.Block block : meth.blocks) {
+                if (loops.depth(block) == 0)
+                    continue;
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.BinaryStmt) {
+                        Ir3.BinaryOp op = ((Ir3.BinaryStmt) stmt).op;
+                        if (op == Ir3.BinaryOp.MUL || op == Ir3.BinaryOp.DIV)
+                            ops++;
+                    }
+                }
+            }
+        }
+        return ops;
+    }
+
+    private static int countStmts(Ir3.Prog prog) {
+        int stmts = 0;
+        for (Ir3.Meth meth : prog.meths) {
+            for (Ir3.Block block : meth.blocks)
+                stmts += block.stmts.size() + (block.label != null ? 1 : 0);
+        }
+        return stmts;
+    }
+
+    // Methods computing values only their disabled tracing prints, under constant settings
+    static String genConfigProgram(int classes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    C0 c;\n");
+        sb.append("    c = new C0();\n");
+        sb.append("    println(c.m(10));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+        for (int k = 0; k < classes; k++) {
+            sb.append("class C").append(k).append(" {\n");
+            sb.append("  Int m(Int x) {\n");
+            sb.append("    Int trace;\n");
+            sb.append("    Int scale;\n");
+            sb.append("    Int s;\n");
+            sb.append("    Int t;\n");
+            sb.append("    Int u;\n");
+            sb.append("    trace = 0;\n");
+            sb.append("    scale = ").append(k % 7 + 2).append(";\n");
+            sb.append("    s = x * scale + scale * 3;\n");
+            sb.append("    t = s * s - x;\n");
+            sb.append("    u = t / scale + s;\n");
+            sb.append("    if (trace == 1) {\n");
+            sb.append("      println(t);\n");
+            sb.append("      println(u);\n");
+            sb.append("    } else {\n");
+            sb.append("      s = s + 1;\n");
+            sb.append("    }\n");
+            sb.append("    return s;\n");
+            sb.append("  }\n");
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+
+    // Methods summing expressions of the fields of their object in a loop, storing to one of them
+    // every other iteration
+    static String genFieldProgram(int classes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    C0 c;\n");
+        sb.append("    c = new C0();\n");
+        sb.append("    println(c.m(10));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+        for (int k = 0; k < classes; k++) {
+            sb.append("class C").append(k).append(" {\n");
+            sb.append("  Int w;\n");
+            sb.append("  Int h;\n");
+            sb.append("  Int n;\n");
+            sb.append("  Int m(Int x) {\n");
+            sb.append("    Int i;\n");
+            sb.append("    Int s;\n");
+            sb.append("    i = 0;\n");
+            sb.append("    s = 0;\n");
+            sb.append("    while (i < x) {\n");
+            sb.append("      s = s + w * h + i;\n");
+            sb.append("      s = s - w * h / ").append(k % 5 + 2).append(" + n;\n");
+            sb.append("      if (s > w + h) {\n");
+            sb.append("        n = n + w * h;\n");
+            sb.append("      } else {\n");
+            sb.append("        s = s - h;\n");
+            sb.append("      }\n");
+            sb.append("      s = s + n + w;\n");
+            sb.append("      i = i + 1;\n");
+            sb.append("    }\n");
+            sb.append("    return s;\n");
+            sb.append("  }\n");
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+
+    // Methods walking rows and columns of a flattened table, scaling by constants and their
+    // arguments
+    static String genArithProgram(int classes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    C0 c;\n");
+        sb.append("    c = new C0();\n");
+        sb.append("    println(c.m(10, 3));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+        for (int k = 0; k < classes; k++) {
+            sb.append("class C").append(k).append(" {\n");
+            sb.append("  Int m(Int x, Int w) {\n");
+            sb.append("    Int i;\n");
+            sb.append("    Int j;\n");
+            sb.append("    Int s;\n");
+            sb.append("    i = 0;\n");
+            sb.append("    s = 0;\n");
+            sb.append("    while (i < x) {\n");
+            sb.append("      j = 0;\n");
+            sb.append("      while (j < w) {\n");
+            sb.append("        s = s + (i * w + j) * ").append(k % 5 + 3).append(" + s / 4;\n");
+            sb.append("        j = j + 1;\n");
+            sb.append("      }\n");
+            sb.append("      s = ").append(k).append(" - s * 2;\n");
+            sb.append("      i = i + 1;\n");
+            sb.append("    }\n");
+            sb.append("    return s;\n");
+            sb.append("  }\n");
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+
+    // Methods calling getters, small helpers calling each other and a recursive method in a loop
+    static String genHelperProgram(int classes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    C0 c;\n");
+        sb.append("    c = new C0();\n");
+        sb.append("    println(c.m(10));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+        for (int k = 0; k < classes; k++) {
+            sb.append("class C").append(k).append(" {\n");
+            sb.append("  Int w;\n");
+            sb.append("  Int h;\n");
+            sb.append("  Int getW() {\n");
+            sb.append("    return w;\n");
+            sb.append("  }\n");
+            sb.append("  Int square(Int a) {\n");
+            sb.append("    return a * a;\n");
+            sb.append("  }\n");
+            sb.append("  Int addSquares(Int a, Int b) {\n");
+            sb.append("    return square(a) + square(b);\n");
+            sb.append("  }\n");
+            sb.append("  Int fact(Int n) {\n");
+            sb.append("    if (n < 2) {\n");
+            sb.append("      return 1;\n");
+            sb.append("    } else {\n");
+            sb.append("      return n * fact(n - 1);\n");
+            sb.append("    }\n");
+            sb.append("  }\n");
+            sb.append("  Int m(Int x) {\n");
+            sb.append("    Int i;\n");
+            sb.append("    Int s;\n");
+            sb.append("    i = 0;\n");
+            sb.append("    s = 0;\n");
+            sb.append("    while (i < x) {\n");
+            sb.append("      s = s + addSquares(i, getW()) + square(h) + fact(").append(k % 4 + 2).append(");\n");
+            sb.append("      i = i + 1;\n");
+            sb.append("    }\n");
+            sb.append("    return s;\n");
+            sb.append("  }\n");
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+
+    // A single method with many loops and branches over more variables than registers
+    static String genLongMethod(int segments) {
+        int vars = 24;
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    Long l;\n");
+        sb.append("    l = new Long();\n");
+        sb.append("    println(l.m(10, 2));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+        sb.append("class Long {\n");
+        sb.append("  Int m(Int x, Int y) {\n");
+        for (int v = 0; v < vars; v++)
+            sb.append("    Int v").append(v).append(";\n");
+        sb.append("    Int i;\n");
+        for (int v = 0; v < vars; v++)
+            sb.append("    v").append(v).append(" = ").append(v).append(";\n");
+        for (int k = 0; k < segments; k++) {
+            String a = "v" + k % vars;
+            String b = "v" + (k * 7 + 3) % vars;
+            String c = "v" + (k * 13 + 5) % vars;
+            sb.append("    i = 0;\n");
+            sb.append("    while (i < x) {\n");
+            sb.append("      ").append(a).append(" = ").append(a).append(" + i * ").append(b).append(";\n");
+            sb.append("      ").append(c).append(" = ").append(c).append(" - ").append(a).append(";\n");
+            sb.append("      i = i + 1;\n");
+            sb.append("    }\n");
+            sb.append("    if (").append(a).append(" > ").append(c).append(") {\n");
+            sb.append("      ").append(b).append(" = ").append(a).append(" - y;\n");
+            sb.append("    } else {\n");
+            sb.append("      ").append(b).append(" = ").append(c).append(" + 1;\n");
+            sb.append("    }\n");
+        }
+        sb.append("    return");
+        for (int v = 0; v < vars; v++)
+            sb.append(v == 0 ? " " : " + ").append("v").append(v);
+        sb.append(";\n");
+        sb.append("  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // Recompiles after editing one method body, and after changing one class signature
+    private static void timeIncremental(String source, int classes, int threads) throws Exception {
+        String target = "class C" + classes / 2 + " {\n";
+        int at = source.indexOf(target);
+        String bodyEdit = source.substring(0, at)
+            + source.substring(at).replaceFirst("s = 0;", "s = 1;");
+        String signatureEdit = source.substring(0, at + target.length())
+            + "  Int extra;\n" + source.substring(at + target.length());
+
+        Options opts = new Options();
+        opts.threads = threads;
+        long full = Long.MAX_VALUE;
+        long body = Long.MAX_VALUE;
+        long signature = Long.MAX_VALUE;
+        IncrementalCompiler compiler = new IncrementalCompiler(opts);
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            compiler = new IncrementalCompiler(opts);
+            long start = System.nanoTime();
+            compiler.compile(source);
+            long mid = System.nanoTime();
+            compiler.compile(bodyEdit);
+            long end = System.nanoTime();
+            compiler.compile(signatureEdit);
+            long last = System.nanoTime();
+            if (i >= WARMUP) {
+                full = Math.min(full, mid - start);
+                body = Math.min(body, end - mid);
+                signature = Math.min(signature, last - end);
+            }
+        }
+        System.out.println("IncrementalCompiler:");
+        System.out.printf("  full build      %8.2f ms%n", full / 1e6);
+        System.out.printf("  body edit       %8.2f ms%n", body / 1e6);
+        System.out.printf("  signature edit  %8.2f ms (%d classes reused)%n", signature / 1e6, compiler.reusedClasses());
+
+        compiler = new IncrementalCompiler(opts);
+        compiler.compile(source);
+        for (String edit : new String[] { bodyEdit, signatureEdit, source }) {
+            String incremental = compiler.compile(edit).prettyPrint(0);
+            if (!incremental.equals(Compiler.compile(new StringReader(edit), opts).prettyPrint(0)))
+                throw new AssertionError("incremental build printed a different program than a full build");
+        }
+        System.out.println("  printed IR3 identical to full builds");
+    }
+
+    private static long timeGenerator(Ast.Program prog, int threads) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long start = System.nanoTime();
+            Ir3Generator.run(prog, threads);
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP)
+                best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    private static long timeChecker(String source, int threads) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            Ast.Program prog = Parser.parse(new StringReader(source));
+            long start = System.nanoTime();
+            StaticChecker.run(prog, threads);
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP)
+                best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    private static List<String> checkerErrors(String source, int threads) throws Exception {
+        ArrayList<String> out = new ArrayList<>();
+        try {
+            StaticChecker.run(Parser.parse(new StringReader(source)), threads);
+        } catch (StaticChecker.SemanticErrors e) {
+            for (StaticChecker.SemanticError err : e.getErrors())
+                out.add("error:" + err.location + ": " + err.getMessage());
+        }
+        return out;
+    }
+
+    private static void report(String phase, long serial, long parallel) {
+        System.out.println(phase + ":");
+        System.out.printf("  serial   %8.2f ms%n", serial / 1e6);
+        System.out.printf("  parallel %8.2f ms (%.2fx)%n", parallel / 1e6, (double) serial / parallel);
+    }
+
+    // Builds a program with the given number of classes and methods per class. If errorEvery
+    // is positive, every errorEvery-th class gets a method with a type error.
+    static String genProgram(int classes, int methods, int errorEvery) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("  Void main() {\n");
+        sb.append("    C0 c;\n");
+        sb.append("    c = new C0();\n");
+        sb.append("    println(c.m").append(methods - 1).append("(10, 2));\n");
+        sb.append("  }\n");
+        sb.append("}\n\n");
+
+        for (int k = 0; k < classes; k++) {
+            sb.append("class C").append(k).append(" {\n");
+            sb.append("  Int a;\n");
+            sb.append("  Int b;\n");
+            sb.append("  C").append((k + 1) % classes).append(" next;\n\n");
+            for (int j = 0; j < methods; j++) {
+                sb.append("  Int m").append(j).append("(Int x, Int y) {\n");
+                sb.append("    Int s;\n");
+                sb.append("    Int i;\n");
+                sb.append("    s = 0;\n");
+                sb.append("    i = 0;\n");
+                sb.append("    while (i < x) {\n");
+                sb.append("      s = s + i * y + this.a;\n");
+                sb.append("      i = i + 1;\n");
+                sb.append("    }\n");
+                sb.append("    if (s > b && !(a == 0)) {\n");
+                sb.append("      a = s - b;\n");
+                sb.append("    } else {\n");
+                sb.append("      b = b + 1;\n");
+                sb.append("    }\n");
+                if (errorEvery > 0 && k % errorEvery == 0 && j == 0)
+                    sb.append("    s = \"not an int\";\n");
+                if (j == 0)
+                    sb.append("    return s + next.m0(1, 2) * 0;\n");
+                else
+                    sb.append("    return s + m").append(j - 1).append("(x, y);\n");
+                sb.append("  }\n\n");
+            }
+            sb.append("}\n\n");
+        }
+        return sb.toString();
+    }
+}
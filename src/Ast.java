@@ -17,6 +17,8 @@ public class Ast {
     }
     
     public static class Location extends ComplexSymbolFactory.Location  {
+        // Packed form used to store positions: the line in the high word, the column in the low one
+        public static final long NO_POSITION = -1L;
     
         public Location(int line, int column) {
             super(line,column);
@@ -25,11 +27,33 @@ public class Ast {
         public String toString() {
             return "{\"line\": " + getLine() + ", \"column\": " + getColumn() + "}";
         }
+
+        public static long pack(int line, int column) {
+            return ((long) line << 32) | (column & 0xffffffffL);
+        }
+
+        public static long pack(ComplexSymbolFactory.Location location) {
+            return location == null ? NO_POSITION : pack(location.getLine(), location.getColumn());
+        }
+
+        public static Location unpack(long position) {
+            return position == NO_POSITION ? null : new Location((int) (position >>> 32), (int) position);
+        }
     }
 
+    // Nodes keep their position packed in a long. The Location object is only created when a
+    // position is actually reported.
     public interface Locatable {
-        Location getPosition();
-        void setPosition(Location position);
+        long getPackedPosition();
+        void setPackedPosition(long position);
+
+        default Location getPosition() {
+            return Location.unpack(getPackedPosition());
+        }
+
+        default void setPosition(Location position) {
+            setPackedPosition(Location.pack(position));
+        }
     }
 
     // A program consists on a list of classes
@@ -54,7 +78,7 @@ public class Ast {
         public final String cname;
         public final List<VarDecl> varDecls;
         public final List<Meth> meths;
-        private Location position;
+        private long position = Location.NO_POSITION;
 
         public Clazz(String cname, List<VarDecl> varDecls, List<Meth> meths) {
             this.cname = cname;
@@ -83,12 +107,12 @@ public class Ast {
         }
         
         @Override
-        public Location getPosition() {
+        public long getPackedPosition() {
             return position;
         }
 
         @Override
-        public void setPosition(Location position) {
+        public void setPackedPosition(long position) {
             this.position = position;
         }
     }
@@ -96,7 +120,7 @@ public class Ast {
     public static class VarDecl implements Locatable {
         public final Typ typ;
         public final String name;
-        private Location position;
+        private long position = Location.NO_POSITION;
 
         public VarDecl(Typ typ, String name) {
             this.typ = typ;
@@ -104,12 +128,12 @@ public class Ast {
         }
         
         @Override
-        public Location getPosition() {
+        public long getPackedPosition() {
             return position;
         }
 
         @Override
-        public void setPosition(Location position) {
+        public void setPackedPosition(long position) {
             this.position = position;
         }
     }
@@ -120,7 +144,7 @@ public class Ast {
         public final List<VarDecl> args;
         public final List<VarDecl> vars;
         public final List<Stmt> stmts;
-        private Location position;
+        private long position = Location.NO_POSITION;
 
         public Meth(Typ retTyp, String name, List<VarDecl> args, List<VarDecl> vars, List<Stmt> stmts) {
             this.retTyp = retTyp;
@@ -156,12 +180,12 @@ public class Ast {
         }
         
         @Override
-        public Location getPosition() {
+        public long getPackedPosition() {
             return position;
         }
 
         @Override
-        public void setPosition(Location position) {
+        public void setPackedPosition(long position) {
             this.position = position;
         }
     }
@@ -175,6 +199,20 @@ public class Ast {
         public String prettyPrint(int indents) {
             return "Int";
         }
+
+        @Override
+        public int hashCode() {
+            return getClass().hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            return true;
+        }
         
         @Override
         public boolean isSubtypeOrEquals(Typ o) {
@@ -477,15 +515,15 @@ public class Ast {
 
     public static abstract class Expr implements Printable, Locatable {
         public Typ typ;
-        private Location position;
+        private long position = Location.NO_POSITION;
         
         @Override
-        public Location getPosition() {
+        public long getPackedPosition() {
             return position;
         }
 
         @Override
-        public void setPosition(Location position) {
+        public void setPackedPosition(long position) {
             this.position = position;
         }
     }
@@ -637,19 +675,19 @@ public class Ast {
     }
 
     public static abstract class Stmt implements Printable, Locatable {
-        private Location position;
+        private long position = Location.NO_POSITION;
     	
     	public String prettyPrint(int indents){
     		return "";
     	}
     	
     	 @Override
-         public Location getPosition() {
+         public long getPackedPosition() {
              return position;
          }
 
          @Override
-         public void setPosition(Location position) {
+         public void setPackedPosition(long position) {
              this.position = position;
          }
     }
@@ -0,0 +1,123 @@
+import java.util.*;
+
+// Copies available on entry to and exit from each block of a method: made on every path from the
+// entry, with neither their variable nor their source defined since. A copy assigns a variable
+// another variable, or an Int or Bool constant, and they are numbered in the order of Meth.blocks.
+public class AvailableCopies extends Dataflow {
+    public final Dataflow.VarIds ids;
+    public final ArrayList<Ir3.AssignStmt> copyStmts;
+    // The source of each copy as it was found, whatever the statement has been rewritten to since
+    public final ArrayList<Ir3.RetVal> sources;
+    private final IdentityHashMap<Ir3.Stmt, Integer> copyOfStmt;
+    // Copies mentioning each variable, and copies to it, by variable id
+    private final int[][] copiesOfVar;
+    private final int[][] copiesToVar;
+
+    private AvailableCopies(Ir3.Meth meth, Dataflow.VarIds ids, ArrayList<Ir3.AssignStmt> copyStmts) {
+        super(meth, copyStmts.size(), true, false);
+        this.ids = ids;
+        this.copyStmts = copyStmts;
+        this.sources = new ArrayList<>();
+        this.copyOfStmt = new IdentityHashMap<>();
+        for (int c = 0; c < copyStmts.size(); c++) {
+            sources.add(copyStmts.get(c).src);
+            copyOfStmt.put(copyStmts.get(c), c);
+        }
+
+        // Counted first, then filled
+        int[] mentions = new int[ids.size()];
+        int[] tos = new int[ids.size()];
+        for (Ir3.AssignStmt copy : copyStmts) {
+            int dst = ids.id(copy.getDest());
+            mentions[dst]++;
+            tos[dst]++;
+            if (copy.src instanceof Ir3.VarRetVal)
+                mentions[ids.id(((Ir3.VarRetVal) copy.src).v)]++;
+        }
+        copiesOfVar = new int[ids.size()][];
+        copiesToVar = new int[ids.size()][];
+        for (int v = 0; v < ids.size(); v++) {
+            copiesOfVar[v] = new int[mentions[v]];
+            copiesToVar[v] = new int[tos[v]];
+        }
+        Arrays.fill(mentions, 0);
+        Arrays.fill(tos, 0);
+        for (int c = 0; c < copyStmts.size(); c++) {
+            Ir3.AssignStmt copy = copyStmts.get(c);
+            int dst = ids.id(copy.getDest());
+            copiesOfVar[dst][mentions[dst]++] = c;
+            copiesToVar[dst][tos[dst]++] = c;
+            if (copy.src instanceof Ir3.VarRetVal) {
+                int src = ids.id(((Ir3.VarRetVal) copy.src).v);
+                copiesOfVar[src][mentions[src]++] = c;
+            }
+        }
+    }
+
+    public static AvailableCopies run(Ir3.Meth meth) {
+        Dataflow.VarIds ids = new Dataflow.VarIds(meth);
+        ArrayList<Ir3.AssignStmt> copyStmts = new ArrayList<>();
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (isCopy(stmt))
+                    copyStmts.add((Ir3.AssignStmt) stmt);
+            }
+        }
+
+        AvailableCopies avail = new AvailableCopies(meth, ids, copyStmts);
+        avail.initSets();
+        avail.solve();
+        return avail;
+    }
+
+    private static boolean isCopy(Ir3.Stmt stmt) {
+        if (!(stmt instanceof Ir3.AssignStmt))
+            return false;
+        Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+        if (assign.src instanceof Ir3.VarRetVal)
+            return ((Ir3.VarRetVal) assign.src).v != assign.getDest();
+        return assign.src instanceof Ir3.IntRetVal || assign.src instanceof Ir3.BoolRetVal;
+    }
+
+    // The copy to the variable available in the set, -1 if none is. There is at most one, as each
+    // copy to a variable removes the others.
+    public int copyTo(Ir3.Var v, long[] set) {
+        int id = ids.id(v);
+        if (id < 0)
+            return -1;
+        for (int c : copiesToVar[id]) {
+            if (get(set, c))
+                return c;
+        }
+        return -1;
+    }
+
+    // Updates the set of the copies available before the statement to the ones available after
+    public void step(Ir3.Stmt stmt, long[] set) {
+        stmt.forEachDef(v -> {
+            for (int c : copiesOfVar[ids.id(v)])
+                clear(set, c);
+        });
+        Integer c = copyOfStmt.get(stmt);
+        if (c != null)
+            set(set, c);
+    }
+
+    private void initSets() {
+        for (Ir3.Block block : meth.blocks) {
+            long[] g = gen[block.postorderIndex];
+            long[] k = kill[block.postorderIndex];
+            for (Ir3.Stmt stmt : block.stmts) {
+                stmt.forEachDef(v -> {
+                    for (int c : copiesOfVar[ids.id(v)]) {
+                        clear(g, c);
+                        set(k, c);
+                    }
+                });
+                Integer c = copyOfStmt.get(stmt);
+                if (c != null)
+                    set(g, c);
+            }
+        }
+    }
+}
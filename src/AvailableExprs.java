@@ -0,0 +1,97 @@
+import java.util.*;
+
+// Expressions available on entry to and exit from each block of a method: computed on every path
+// from the entry, with none of their operands defined since. The expressions are the operators of
+// the binary and unary statements on their operands, numbered in the order of Meth.blocks, and two
+// statements computing the same operator on the same values share a number.
+public class AvailableExprs extends Dataflow {
+    public final Dataflow.VarIds ids;
+    // One statement computing each expression, the first one in the method
+    public final ArrayList<Ir3.Stmt> exprStmts;
+    private final IdentityHashMap<Ir3.Stmt, Integer> exprOfStmt;
+    // Expressions reading each variable, by variable id
+    private final long[][] exprsOfVar;
+
+    private AvailableExprs(Ir3.Meth meth, Dataflow.VarIds ids, ArrayList<Ir3.Stmt> exprStmts, IdentityHashMap<Ir3.Stmt, Integer> exprOfStmt) {
+        super(meth, exprStmts.size(), true, false);
+        this.ids = ids;
+        this.exprStmts = exprStmts;
+        this.exprOfStmt = exprOfStmt;
+        exprsOfVar = new long[ids.size()][words];
+    }
+
+    public static AvailableExprs run(Ir3.Meth meth) {
+        Dataflow.VarIds ids = new Dataflow.VarIds(meth);
+        ArrayList<Ir3.Stmt> exprStmts = new ArrayList<>();
+        IdentityHashMap<Ir3.Stmt, Integer> exprOfStmt = new IdentityHashMap<>();
+        HashMap<List<Object>, Integer> numbers = new HashMap<>();
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                List<Object> key = key(stmt);
+                if (key == null)
+                    continue;
+                Integer e = numbers.get(key);
+                if (e == null) {
+                    e = exprStmts.size();
+                    numbers.put(key, e);
+                    exprStmts.add(stmt);
+                }
+                exprOfStmt.put(stmt, e);
+            }
+        }
+
+        AvailableExprs avail = new AvailableExprs(meth, ids, exprStmts, exprOfStmt);
+        avail.initSets();
+        avail.solve();
+        return avail;
+    }
+
+    // The number of the expression the statement computes, -1 if it computes none
+    public int exprOf(Ir3.Stmt stmt) {
+        Integer e = exprOfStmt.get(stmt);
+        return e == null ? -1 : e;
+    }
+
+    // Variables compare by identity, constants by their printed form
+    private static List<Object> key(Ir3.Stmt stmt) {
+        if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            return Arrays.asList(bin.op, operand(bin.operand1), operand(bin.operand2));
+        } else if (stmt instanceof Ir3.UnaryStmt) {
+            Ir3.UnaryStmt un = (Ir3.UnaryStmt) stmt;
+            return Arrays.asList(un.op, operand(un.a));
+        }
+        return null;
+    }
+
+    private static Object operand(Ir3.RetVal rv) {
+        if (rv instanceof Ir3.VarRetVal)
+            return ((Ir3.VarRetVal) rv).v;
+        return rv.prettyPrint();
+    }
+
+    private void initSets() {
+        for (int e = 0; e < numFacts; e++) {
+            int expr = e;
+            exprStmts.get(e).forEachUse(v -> set(exprsOfVar[ids.id(v)], expr));
+        }
+
+        for (Ir3.Block block : meth.blocks) {
+            long[] g = gen[block.postorderIndex];
+            long[] k = kill[block.postorderIndex];
+            for (Ir3.Stmt stmt : block.stmts) {
+                int e = exprOf(stmt);
+                if (e >= 0)
+                    set(g, e);
+                // After the expression, as x = x + 1 does not leave x + 1 available
+                stmt.forEachDef(v -> {
+                    long[] users = exprsOfVar[ids.id(v)];
+                    for (int w = 0; w < words; w++) {
+                        g[w] &= ~users[w];
+                        k[w] |= users[w];
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+// Compiles many programs in one JVM on a fixed pool of workers. Every input is parsed, checked
+// and lowered independently, and its IR3 is written to its own .ir3 file.
+//
+// Usage: BatchCompiler [--threads=N] [--out-dir=DIR] [--cache-dir=DIR [--cache-size=MB]] [optimizations]
+//                      <file.j | directory>...
+// Directories are searched recursively for .j files. Without --out-dir the output is written
+// next to each source. With --cache-dir, sources compiled before are not compiled again.
+public class BatchCompiler {
+    private final Options opts;
+    private final Ir3Cache cache;
+
+    private BatchCompiler(Options opts) throws IOException {
+        this.opts = opts;
+        this.cache = Ir3Cache.open(opts);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options defaults = new Options();
+        defaults.threads = Runtime.getRuntime().availableProcessors();
+        Options opts = Options.parse(args, defaults);
+        if (opts.files.isEmpty()) {
+            System.err.println("usage: BatchCompiler [--threads=N] [--out-dir=DIR] [--cache-dir=DIR [--cache-size=MB]] [optimizations] <file.j | directory>...");
+            System.exit(2);
+        }
+
+        List<Input> inputs = collectInputs(opts.files);
+        int failed = new BatchCompiler(opts).run(inputs, System.out);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    // Compiles all the inputs and reports every file, in input order. Returns the number of failures.
+    private int run(List<Input> inputs, PrintStream out) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, opts.threads));
+        int failed = 0;
+        int cached = 0;
+        try {
+            // A single file is compiled by a single worker
+            Options fileOpts = opts.copy();
+            fileOpts.threads = 1;
+
+            ArrayList<Future<Result>> results = new ArrayList<>();
+            for (Input input : inputs) {
+                results.add(pool.submit(() -> compile(input, fileOpts)));
+            }
+            for (Future<Result> future : results) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    throw new AssertionError("ERR: batch worker failed", e.getCause());
+                }
+                out.printf("%-4s %s (%.1f ms%s)%n", result.ok ? "ok" : "FAIL", result.input.source, result.nanos / 1e6,
+                           result.cached ? ", cached" : "");
+                if (result.cached)
+                    cached++;
+                if (!result.ok) {
+                    failed++;
+                    for (String line : result.diagnostics.split("\n"))
+                        out.println("     " + line);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        out.printf("%d files, %d compiled, %d failed, %d from the cache in %.1f ms on %d threads%n",
+                   inputs.size(), inputs.size() - failed, failed, cached, elapsed / 1e6, opts.threads);
+        return failed;
+    }
+
+    private Result compile(Input input, Options fileOpts) {
+        long start = System.nanoTime();
+        try {
+            String ir3;
+            boolean cached = false;
+            if (cache == null) {
+                ir3 = Compiler.compile(MappedSourceReader.open(input.source.toString()), fileOpts).prettyPrint(0);
+            } else {
+                byte[] source = Files.readAllBytes(input.source);
+                String key = Ir3Cache.key(source, Charset.defaultCharset(), fileOpts);
+                Ir3.Prog prog = cache.get(key);
+                cached = prog != null;
+                if (!cached) {
+                    Reader reader = new InputStreamReader(new ByteArrayInputStream(source), Charset.defaultCharset());
+                    prog = Compiler.compile(reader, fileOpts);
+                    cache.tryPut(key, prog);
+                }
+                ir3 = prog.prettyPrint(0);
+            }
+            Path target = outputPath(input);
+            if (target.getParent() != null)
+                Files.createDirectories(target.getParent());
+            Files.write(target, ir3.getBytes());
+            return new Result(input, true, cached, null, System.nanoTime() - start);
+        } catch (Exception e) {
+            return new Result(input, false, false, Compiler.describe(e), System.nanoTime() - start);
+        } catch (Error e) {
+            // An internal compiler error, or a stack overflow on a deeply nested source, fails
+            // this file only
+            return new Result(input, false, false, "internal compiler error: " + e + "\n", System.nanoTime() - start);
+        }
+    }
+
+    private Path outputPath(Input input) {
+        String name = input.relative.getFileName().toString();
+        if (name.endsWith(".j"))
+            name = name.substring(0, name.length() - 2);
+        name += ".ir3";
+        if (opts.outDir == null)
+            return input.source.resolveSibling(name);
+        return Paths.get(opts.outDir).resolve(input.relative).resolveSibling(name);
+    }
+
+    private static List<Input> collectInputs(List<String> paths) throws IOException {
+        ArrayList<Input> inputs = new ArrayList<>();
+        for (String path : paths) {
+            Path root = Paths.get(path);
+            if (!Files.isDirectory(root)) {
+                inputs.add(new Input(root, root.getFileName()));
+                continue;
+            }
+            ArrayList<Path> sources = new ArrayList<>();
+            try (java.util.stream.Stream<Path> walk = Files.walk(root)) {
+                walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(".j"))
+                    .forEach(sources::add);
+            }
+            Collections.sort(sources);
+            for (Path source : sources)
+                inputs.add(new Input(source, root.relativize(source)));
+        }
+        return inputs;
+    }
+
+    private static class Input {
+        private final Path source;
+        private final Path relative; // Path used under the output directory
+
+        private Input(Path source, Path relative) {
+            this.source = source;
+            this.relative = relative;
+        }
+    }
+
+    private static class Result {
+        private final Input input;
+        private final boolean ok;
+        private final boolean cached;
+        private final String diagnostics;
+        private final long nanos;
+
+        private Result(Input input, boolean ok, boolean cached, String diagnostics, long nanos) {
+            this.input = input;
+            this.ok = ok;
+            this.cached = cached;
+            this.diagnostics = diagnostics;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+
+// The static call graph of a program. LittleJava has no inheritance, so every MethodCallStmt names
+// the only method it can call. The methods are grouped into strongly connected components, listed
+// callees first.
+public class CallGraph {
+    // The methods each method calls, each once, in the order of their first call
+    public final IdentityHashMap<Ir3.Meth, ArrayList<Ir3.Meth>> callees = new IdentityHashMap<>();
+    // Callees first: a method comes after every method it calls outside of its component
+    public final ArrayList<Ir3.Meth> bottomUp = new ArrayList<>();
+    private final IdentityHashMap<Ir3.Meth, Integer> component = new IdentityHashMap<>();
+
+    private CallGraph() {}
+
+    public static CallGraph of(Ir3.Prog prog) {
+        CallGraph graph = new CallGraph();
+        for (Ir3.Meth meth : prog.meths) {
+            IdentityHashMap<Ir3.Meth, Boolean> seen = new IdentityHashMap<>();
+            ArrayList<Ir3.Meth> callees = new ArrayList<>();
+            for (Ir3.Block block : meth.blocks) {
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (!(stmt instanceof Ir3.MethodCallStmt))
+                        continue;
+                    Ir3.Meth callee = ((Ir3.MethodCallStmt) stmt).meth;
+                    if (seen.put(callee, true) == null)
+                        callees.add(callee);
+                }
+            }
+            graph.callees.put(meth, callees);
+        }
+        graph.components(prog);
+        return graph;
+    }
+
+    public boolean sameComponent(Ir3.Meth a, Ir3.Meth b) {
+        return component.get(a).equals(component.get(b));
+    }
+
+    // Tarjan's algorithm, with an explicit stack as chains of calls can be long. A component is
+    // complete once the walk leaves its root, after every component it reaches, so they come out
+    // callees first.
+    private void components(Ir3.Prog prog) {
+        IdentityHashMap<Ir3.Meth, Integer> index = new IdentityHashMap<>();
+        IdentityHashMap<Ir3.Meth, Integer> low = new IdentityHashMap<>();
+        ArrayDeque<Ir3.Meth> stack = new ArrayDeque<>();
+        IdentityHashMap<Ir3.Meth, Boolean> onStack = new IdentityHashMap<>();
+        // The walk: each method and the position of the next callee to visit
+        ArrayDeque<Ir3.Meth> walk = new ArrayDeque<>();
+        ArrayDeque<Integer> next = new ArrayDeque<>();
+        for (Ir3.Meth root : prog.meths) {
+            if (index.containsKey(root))
+                continue;
+            walk.push(root);
+            next.push(0);
+            index.put(root, index.size());
+            low.put(root, index.get(root));
+            stack.push(root);
+            onStack.put(root, true);
+            while (!walk.isEmpty()) {
+                Ir3.Meth meth = walk.peek();
+                int i = next.pop();
+                ArrayList<Ir3.Meth> calls = callees.get(meth);
+                if (i < calls.size()) {
+                    next.push(i + 1);
+                    Ir3.Meth callee = calls.get(i);
+                    if (!index.containsKey(callee)) {
+                        walk.push(callee);
+                        next.push(0);
+                        index.put(callee, index.size());
+                        low.put(callee, index.get(callee));
+                        stack.push(callee);
+                        onStack.put(callee, true);
+                    } else if (onStack.containsKey(callee)) {
+                        low.put(meth, Math.min(low.get(meth), index.get(callee)));
+                    }
+                    continue;
+                }
+
+                walk.pop();
+                if (!walk.isEmpty())
+                    low.put(walk.peek(), Math.min(low.get(walk.peek()), low.get(meth)));
+                if (!low.get(meth).equals(index.get(meth)))
+                    continue;
+                // Numbered by the position of their first method
+                int c = bottomUp.size();
+                Ir3.Meth m;
+                do {
+                    m = stack.pop();
+                    onStack.remove(m);
+                    component.put(m, c);
+                    bottomUp.add(m);
+                } while (m != meth);
+            }
+        }
+    }
+}
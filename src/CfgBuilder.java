@@ -0,0 +1,227 @@
+import java.util.*;
+
+// Splits the statements of a method into basic blocks and links them into a control flow graph.
+// A block starts at every label and after every jump or return. The label that starts a block
+// becomes Block.label, so the blocks print like the statement list they were built from. Blocks
+// that cannot be reached from the first one are removed, and the preorder, postorder and reverse
+// postorder of the rest are stored in the method. Runs in time linear in the number of statements.
+//
+// A block that does not end with a jump or a return falls through to the next block of
+// Meth.blocks, which is its out. Passes that change the graph in place keep it that way.
+public class CfgBuilder {
+    private CfgBuilder() {}
+
+    public static void run(Ir3.Prog prog) {
+        for (Ir3.Meth meth : prog.meths)
+            run(meth);
+    }
+
+    public static void run(Ir3.Meth meth) {
+        ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        for (Ir3.Block block : meth.blocks) {
+            if (block.label != null)
+                stmts.add(block.label);
+            stmts.addAll(block.stmts);
+        }
+        run(meth, stmts);
+    }
+
+    // Replaces the blocks of the method by the graph of the given statements
+    public static void run(Ir3.Meth meth, List<Ir3.Stmt> stmts) {
+        ArrayList<Ir3.Block> blocks = split(stmts);
+        link(blocks);
+        order(meth, blocks);
+    }
+
+    private static ArrayList<Ir3.Block> split(List<Ir3.Stmt> stmts) {
+        ArrayList<Ir3.Block> blocks = new ArrayList<>();
+        Ir3.LabelStmt label = null;
+        int start = 0;
+        for (int i = 0; i < stmts.size(); i++) {
+            Ir3.Stmt stmt = stmts.get(i);
+            if (stmt instanceof Ir3.LabelStmt) {
+                if (i > start || label != null)
+                    blocks.add(newBlock(label, stmts.subList(start, i)));
+                label = (Ir3.LabelStmt) stmt;
+                start = i + 1;
+            } else if (stmt instanceof Ir3.JumpStmt || stmt instanceof Ir3.ReturnStmt) {
+                blocks.add(newBlock(label, stmts.subList(start, i + 1)));
+                label = null;
+                start = i + 1;
+            }
+        }
+        if (stmts.size() > start || label != null || blocks.isEmpty())
+            blocks.add(newBlock(label, stmts.subList(start, stmts.size())));
+        return blocks;
+    }
+
+    private static Ir3.Block newBlock(Ir3.LabelStmt label, List<Ir3.Stmt> stmts) {
+        Ir3.Block block = new Ir3.Block(stmts);
+        block.label = label;
+        return block;
+    }
+
+    private static void link(ArrayList<Ir3.Block> blocks) {
+        IdentityHashMap<Ir3.LabelStmt, Ir3.Block> blockOf = new IdentityHashMap<>();
+        for (Ir3.Block block : blocks) {
+            if (block.label != null)
+                blockOf.put(block.label, block);
+        }
+
+        for (int i = 0; i < blocks.size(); i++) {
+            Ir3.Block block = blocks.get(i);
+            Ir3.Block next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+            Ir3.Stmt last = block.stmts.isEmpty() ? null : block.stmts.get(block.stmts.size() - 1);
+            block.out = null;
+            block.outCond = null;
+            if (last instanceof Ir3.ReturnStmt) {
+                // No successors
+            } else if (last instanceof Ir3.GotoStmt) {
+                block.out = target(blockOf, (Ir3.JumpStmt) last);
+            } else if (last instanceof Ir3.CmpStmt) {
+                block.outCond = target(blockOf, (Ir3.JumpStmt) last);
+                block.out = next;
+            } else {
+                block.out = next;
+            }
+        }
+    }
+
+    private static Ir3.Block target(IdentityHashMap<Ir3.LabelStmt, Ir3.Block> blockOf, Ir3.JumpStmt jump) {
+        Ir3.Block target = blockOf.get(jump.label);
+        if (target == null)
+            throw new AssertionError("ERR: jump to a label outside of the method: " + jump.prettyPrint(0).trim());
+        return target;
+    }
+
+    // Keeps the blocks reachable from the entry, and numbers them in postorder
+    private static void order(Ir3.Meth meth, ArrayList<Ir3.Block> blocks) {
+        IdentityHashMap<Ir3.Block, Boolean> visited = search(meth, blocks.get(0));
+        ArrayList<Ir3.Block> reachable = new ArrayList<>();
+        for (Ir3.Block block : blocks) {
+            block.incoming.clear();
+            if (visited.containsKey(block))
+                reachable.add(block);
+        }
+        for (Ir3.Block block : reachable) {
+            for (Ir3.Block succ : block.getOutList())
+                succ.incoming.add(block);
+        }
+        meth.blocks = reachable;
+        meth.cfgChanged();
+    }
+
+    // Recomputes the orders of a graph whose edges were changed in place. The first block stays
+    // the entry, and a block that falls through must still be followed by its out. Blocks that
+    // became unreachable are removed, along with their edges and the phi arguments of those edges.
+    public static void renumber(Ir3.Meth meth) {
+        IdentityHashMap<Ir3.Block, Boolean> visited = search(meth, meth.blocks.get(0));
+        ArrayList<Ir3.Block> reachable = new ArrayList<>();
+        for (Ir3.Block block : meth.blocks) {
+            if (visited.containsKey(block))
+                reachable.add(block);
+        }
+        if (reachable.size() < meth.blocks.size()) {
+            for (Ir3.Block block : reachable) {
+                for (int i = block.incoming.size() - 1; i >= 0; i--) {
+                    if (!visited.containsKey(block.incoming.get(i)))
+                        removeIncoming(block, i);
+                }
+            }
+            meth.blocks = reachable;
+        }
+        meth.cfgChanged();
+    }
+
+    // Drops the i-th incoming edge of block, and the arguments of its phis for that edge. The
+    // source is left to its caller, as is renumber.
+    public static void removeIncoming(Ir3.Block block, int i) {
+        block.incoming.remove(i);
+        for (Ir3.Stmt stmt : block.stmts) {
+            if (stmt instanceof Ir3.PhiStmt)
+                ((Ir3.PhiStmt) stmt).args.remove(i);
+        }
+    }
+
+    // Puts a new empty block on the i-th incoming edge of block and returns it. The orders are
+    // left to renumber, once every edge is split. When both edges of a conditional jump go to
+    // block, the fall through one is listed first, and is the one placed after its source.
+    public static Ir3.Block splitEdge(Ir3.Meth meth, Ir3.Block block, int i) {
+        Ir3.Block pred = block.incoming.get(i);
+        Ir3.Stmt last = pred.stmts.isEmpty() ? null : pred.stmts.get(pred.stmts.size() - 1);
+        boolean fallsThrough = pred.out == block && !(last instanceof Ir3.GotoStmt) && block.incoming.indexOf(pred) == i;
+        Ir3.Block middle = new Ir3.Block(Collections.emptyList());
+        middle.incoming.add(pred);
+        middle.out = block;
+        block.incoming.set(i, middle);
+
+        if (fallsThrough) {
+            // Falls through from pred, and on to block
+            pred.out = middle;
+            meth.blocks.add(meth.blocks.indexOf(pred) + 1, middle);
+        } else {
+            if (block.label == null)
+                block.label = meth.freshLabel();
+            middle.label = meth.freshLabel();
+            middle.stmts.add(new Ir3.GotoStmt(block.label));
+            ((Ir3.JumpStmt) last).label = middle.label;
+            if (pred.outCond == block)
+                pred.outCond = middle;
+            else
+                pred.out = middle;
+            // After a block that cannot fall through, as the last one of a Void method may
+            int at = meth.blocks.size();
+            while (at > 0 && canFallThrough(meth.blocks.get(at - 1)))
+                at--;
+            if (at == 0)
+                throw new AssertionError("ERR: no place for a new block in method " + meth.name);
+            meth.blocks.add(at, middle);
+        }
+        return middle;
+    }
+
+    public static boolean canFallThrough(Ir3.Block block) {
+        Ir3.Stmt last = block.stmts.isEmpty() ? null : block.stmts.get(block.stmts.size() - 1);
+        return !(last instanceof Ir3.GotoStmt || last instanceof Ir3.ReturnStmt);
+    }
+
+    // Depth first search from the entry, which fills in the orders of the method
+    private static IdentityHashMap<Ir3.Block, Boolean> search(Ir3.Meth meth, Ir3.Block entry) {
+        IdentityHashMap<Ir3.Block, Boolean> visited = new IdentityHashMap<>();
+        ArrayList<Ir3.Block> pre = new ArrayList<>();
+        ArrayList<Ir3.Block> post = new ArrayList<>();
+
+        // Iterative, a deep graph must not overflow the stack
+        ArrayDeque<Ir3.Block> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> nextSucc = new ArrayDeque<>();
+        visited.put(entry, true);
+        pre.add(entry);
+        stack.push(entry);
+        nextSucc.push(0);
+        while (!stack.isEmpty()) {
+            Ir3.Block block = stack.peek();
+            int succ = nextSucc.pop();
+            Ir3.Block next = succ == 0 ? block.out : succ == 1 ? block.outCond : null;
+            if (succ > 1) {
+                stack.pop();
+                block.postorderIndex = post.size();
+                post.add(block);
+                continue;
+            }
+            nextSucc.push(succ + 1);
+            if (next != null && !visited.containsKey(next)) {
+                visited.put(next, true);
+                pre.add(next);
+                stack.push(next);
+                nextSucc.push(0);
+            }
+        }
+
+        ArrayList<Ir3.Block> rpost = new ArrayList<>(post);
+        Collections.reverse(rpost);
+        meth.blocksPre = pre;
+        meth.blocksPost = post;
+        meth.blocksRpost = rpost;
+        return visited;
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.*;
+
+// Cleans up the control flow graph of a method out of SSA form. A jump to a block that only
+// forwards, being empty or a lone goto, goes straight to where the chain of such blocks ends, a
+// block falling through into a lone goto takes that goto itself, and a conditional jump whose both
+// edges end at the same block becomes a goto. A conditional jump falling through to a lone goto
+// swaps its target with the goto's, negating its condition. Then a block is merged with its
+// successor when it is that successor's only predecessor, by laying the successor out right after
+// it, which drops the goto between them; after a conditional jump this is its fall through
+// successor. Last, the gotos to the block laid out next and the labels no jump targets are dropped,
+// and the graph is built again from the statements. The rounds repeat until one removes nothing.
+public class CfgCleanup {
+    private final Ir3.Meth meth;
+    private final IdentityHashMap<Ir3.Block, Ir3.Block> forwarded = new IdentityHashMap<>();
+
+    private CfgCleanup(Ir3.Meth meth) {
+        this.meth = meth;
+    }
+
+    public static void run(Ir3.Meth meth) {
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt)
+                    throw new AssertionError("ERR: CfgCleanup on method " + meth.name + " in SSA form");
+            }
+        }
+        // Each round can leave more to do to the next one, until one removes nothing
+        int size = size(meth);
+        while (true) {
+            new CfgCleanup(meth).thread();
+            CfgBuilder.run(meth);
+            CfgBuilder.run(meth, new CfgCleanup(meth).layout());
+            int after = size(meth);
+            if (after >= size)
+                break;
+            size = after;
+        }
+    }
+
+    // The statements and labels of the method
+    private static int size(Ir3.Meth meth) {
+        int size = 0;
+        for (Ir3.Block block : meth.blocks)
+            size += block.stmts.size() + (block.label != null ? 1 : 0);
+        return size;
+    }
+
+    private static Ir3.Stmt last(Ir3.Block block) {
+        return block.stmts.isEmpty() ? null : block.stmts.get(block.stmts.size() - 1);
+    }
+
+    // Whether the block does nothing but go to its out. The last block of a method can be empty
+    // and fall off its end, and then has no out.
+    private static boolean forwards(Ir3.Block block) {
+        if (block.stmts.isEmpty())
+            return block.out != null;
+        return block.stmts.size() == 1 && block.stmts.get(0) instanceof Ir3.GotoStmt;
+    }
+
+    // The block the chain of forwarding blocks from the given one ends at. A chain ending in a
+    // cycle of them, an infinite loop, ends at the block of the cycle it meets first.
+    private Ir3.Block forward(Ir3.Block block) {
+        Ir3.Block end = forwarded.get(block);
+        if (end != null)
+            return end;
+        ArrayList<Ir3.Block> chain = new ArrayList<>();
+        IdentityHashMap<Ir3.Block, Boolean> onChain = new IdentityHashMap<>();
+        end = block;
+        while (forwards(end) && !onChain.containsKey(end) && !forwarded.containsKey(end)) {
+            chain.add(end);
+            onChain.put(end, true);
+            end = end.out;
+        }
+        if (forwarded.containsKey(end))
+            end = forwarded.get(end);
+        for (Ir3.Block b : chain)
+            forwarded.put(b, end);
+        return end;
+    }
+
+    private Ir3.LabelStmt labelOf(Ir3.Block block) {
+        if (block.label == null)
+            block.label = meth.freshLabel();
+        return block.label;
+    }
+
+    private void thread() {
+        for (Ir3.Block block : meth.blocks) {
+            Ir3.Stmt last = last(block);
+            if (last instanceof Ir3.GotoStmt || last instanceof Ir3.CmpStmt) {
+                Ir3.Block target = last instanceof Ir3.GotoStmt ? block.out : block.outCond;
+                Ir3.Block end = forward(target);
+                if (end != target)
+                    ((Ir3.JumpStmt) last).label = labelOf(end);
+                // A condition only read by its jump does not matter when both edges meet
+                if (last instanceof Ir3.CmpStmt && block.out != null && forward(block.out) == end) {
+                    block.stmts.set(block.stmts.size() - 1, new Ir3.GotoStmt(labelOf(end)));
+                    continue;
+                }
+            }
+            // The fall through edge of a conditional jump cannot be moved
+            if (last instanceof Ir3.CmpStmt || last instanceof Ir3.GotoStmt || last instanceof Ir3.ReturnStmt)
+                continue;
+            if (block.out != null && block.out.stmts.size() == 1 && forwards(block.out)) {
+                Ir3.Block end = forward(block.out);
+                if (end != block.out)
+                    block.stmts.add(new Ir3.GotoStmt(labelOf(end)));
+            }
+        }
+
+        // A conditional jump falling through to a lone goto takes the goto's target, with the
+        // opposite condition, and leaves the goto its own, so the layout can put the block it
+        // jumped to next. After the threading above, which follows the gotos.
+        for (Ir3.Block block : meth.blocks) {
+            Ir3.Stmt last = last(block);
+            Ir3.Block next = block.out;
+            if (!(last instanceof Ir3.CmpStmt) || next == block.outCond || next.incoming.size() != 1)
+                continue;
+            if (next.stmts.size() != 1 || !(next.stmts.get(0) instanceof Ir3.GotoStmt) || block.outCond.incoming.size() != 1)
+                continue;
+            Ir3.CmpStmt cmp = (Ir3.CmpStmt) last;
+            Ir3.GotoStmt jump = (Ir3.GotoStmt) next.stmts.get(0);
+            Ir3.LabelStmt target = cmp.label;
+            cmp.op = cmp.op.negate();
+            cmp.label = jump.label;
+            jump.label = target;
+        }
+    }
+
+    // The successor of the block to lay out right after it, null if there is none: its only one, or
+    // the fall through one of a conditional jump, when the block is its only predecessor
+    private Ir3.Block mergeable(Ir3.Block block, IdentityHashMap<Ir3.Block, Boolean> placed) {
+        Ir3.Block succ = block.out;
+        if (succ == null || succ == block || succ == meth.blocks.get(0))
+            return null;
+        if (succ.incoming.size() != 1 || placed.containsKey(succ))
+            return null;
+        // Falling off the end of the method only works from the last block
+        if (succ.out == null && !succ.isTerminal())
+            return null;
+        return succ;
+    }
+
+    private ArrayList<Ir3.Stmt> layout() {
+        // The blocks in runs laid out together, the runs in the order of their first block
+        IdentityHashMap<Ir3.Block, Boolean> placed = new IdentityHashMap<>();
+        ArrayList<ArrayList<Ir3.Block>> runs = new ArrayList<>();
+        for (Ir3.Block block : meth.blocks) {
+            if (placed.containsKey(block))
+                continue;
+            ArrayList<Ir3.Block> run = new ArrayList<>();
+            for (Ir3.Block b = block; b != null; b = mergeable(b, placed)) {
+                placed.put(b, true);
+                run.add(b);
+            }
+            runs.add(run);
+        }
+
+        // The runs falling through to another block than the next one go to it instead, which
+        // needs its label before any of it is laid out
+        boolean[] needsGoto = new boolean[runs.size()];
+        for (int r = 0; r < runs.size(); r++) {
+            Ir3.Block end = runs.get(r).get(runs.get(r).size() - 1);
+            Ir3.Block next = r + 1 < runs.size() ? runs.get(r + 1).get(0) : null;
+            Ir3.Stmt last = last(end);
+            boolean fallsThrough = !(last instanceof Ir3.GotoStmt || last instanceof Ir3.ReturnStmt);
+            if (fallsThrough && end.out != null && end.out != next) {
+                needsGoto[r] = true;
+                labelOf(end.out);
+            }
+        }
+
+        ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        for (int r = 0; r < runs.size(); r++) {
+            ArrayList<Ir3.Block> run = runs.get(r);
+            Ir3.Block next = r + 1 < runs.size() ? runs.get(r + 1).get(0) : null;
+            if (run.get(0).label != null)
+                stmts.add(run.get(0).label);
+            for (int i = 0; i < run.size() - 1; i++) {
+                Ir3.Block block = run.get(i);
+                int n = block.stmts.size();
+                stmts.addAll(block.stmts.subList(0, last(block) instanceof Ir3.GotoStmt ? n - 1 : n));
+            }
+
+            Ir3.Block end = run.get(run.size() - 1);
+            int n = end.stmts.size();
+            stmts.addAll(end.stmts.subList(0, last(end) instanceof Ir3.GotoStmt && end.out == next ? n - 1 : n));
+            if (needsGoto[r])
+                stmts.add(new Ir3.GotoStmt(end.out.label));
+        }
+
+        IdentityHashMap<Ir3.LabelStmt, Boolean> targets = new IdentityHashMap<>();
+        for (Ir3.Stmt stmt : stmts) {
+            if (stmt instanceof Ir3.JumpStmt)
+                targets.put(((Ir3.JumpStmt) stmt).label, true);
+        }
+        stmts.removeIf(stmt -> stmt instanceof Ir3.LabelStmt && !targets.containsKey(stmt));
+        return stmts;
+    }
+}
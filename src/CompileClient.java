@@ -0,0 +1,41 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Thin client of CompileDaemon. Sends the source to the daemon and prints the IR3 program, or
+// the diagnostics and exits with status 1. The daemon recompiles a file it has already seen
+// incrementally.
+//
+// Usage: CompileClient [--socket=PATH | --port=N] file.j
+public class CompileClient {
+    private CompileClient() {}
+
+    public static void main(String[] args) throws Exception {
+        Options opts = Options.parse(args);
+        if (opts.files.size() != 1) {
+            System.err.println("usage: CompileClient [--socket=PATH | --port=N] file.j");
+            System.exit(2);
+        }
+        Path path = Paths.get(opts.files.get(0)).toAbsolutePath();
+        String source = new String(Files.readAllBytes(path));
+
+        CompileDaemon.Frame reply;
+        try (SocketChannel channel = CompileDaemon.connect(opts)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            CompileDaemon.writeFrame(out, "COMPILE", path.toString(), source);
+            out.flush();
+            reply = CompileDaemon.readFrame(new BufferedInputStream(Channels.newInputStream(channel)));
+        }
+        if (reply == null) {
+            System.err.println("the daemon closed the connection");
+            System.exit(1);
+        }
+
+        if (reply.kind.equals("OK")) {
+            System.out.print(reply.text());
+        } else {
+            System.err.print(reply.text());
+            System.exit(1);
+        }
+    }
+}
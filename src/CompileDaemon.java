@@ -0,0 +1,257 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+// Long running compiler. Keeps the lexer and parser tables and the JIT compiled passes warm, and
+// compiles the sources sent by CompileClient over a local socket.
+//
+// Usage: CompileDaemon [--socket=PATH | --port=N] [--cache-dir=DIR [--cache-size=MB]] [optimizations]
+// Listens on a Unix domain socket (by default littlejava.sock in the temporary directory), or on
+// the loopback interface with --port. With --cache-dir, compiled programs are shared through the
+// cache with the other daemons and batch compilers.
+//
+// Protocol, any number of requests per connection:
+//   request: COMPILE <length>[ <path>]\n<source, UTF-8>
+//   reply:   OK <length>\n<IR3 program>  or  ERROR <length>\n<diagnostics>
+// Sources sent with their path are compiled incrementally against the previous version sent
+// for the same path, among the MAX_SESSIONS paths most recently sent.
+public class CompileDaemon {
+    // Largest body a frame may declare, so a bad header cannot make the daemon allocate it
+    public static final int MAX_FRAME_BYTES = 64 << 20;
+    // Paths whose previous version is kept, the least recently compiled dropped first
+    public static final int MAX_SESSIONS = 64;
+
+    private final ServerSocketChannel server;
+    private final ExecutorService handlers;
+    private final Ir3Cache cache;
+    private final Options compileOpts; // The optimizations of the command line, on one thread
+    private final LinkedHashMap<String, IncrementalCompiler> sessions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IncrementalCompiler> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    private CompileDaemon(ServerSocketChannel server, Ir3Cache cache, Options opts) {
+        this.server = server;
+        this.handlers = newHandlerExecutor();
+        this.cache = cache;
+        this.compileOpts = opts.copy();
+        compileOpts.threads = 1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opts = Options.parse(args);
+        SocketAddress address = address(opts);
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress) {
+            Path path = ((UnixDomainSocketAddress) address).getPath();
+            if (Files.exists(path)) {
+                SocketChannel running;
+                try {
+                    running = connect(opts);
+                } catch (ConnectException e) {
+                    running = null;
+                }
+                if (running != null) {
+                    running.close();
+                    System.err.println("already running on " + address);
+                    System.exit(1);
+                }
+                // Refused: a stale socket file left by a daemon that did not shut down cleanly
+                Files.deleteIfExists(path);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        System.err.println("listening on " + address);
+        new CompileDaemon(server, Ir3Cache.open(opts), opts).serve();
+    }
+
+    // The address the daemon listens on and the client connects to
+    public static SocketAddress address(Options opts) {
+        if (opts.port >= 0)
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), opts.port);
+        if (opts.socket != null)
+            return UnixDomainSocketAddress.of(opts.socket);
+        return UnixDomainSocketAddress.of(Paths.get(System.getProperty("java.io.tmpdir"), "littlejava.sock"));
+    }
+
+    public static SocketChannel connect(Options opts) throws IOException {
+        SocketAddress address = address(opts);
+        SocketChannel channel = SocketChannel.open(address instanceof UnixDomainSocketAddress
+                                                   ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+        channel.connect(address);
+        return channel;
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            SocketChannel client = server.accept();
+            handlers.execute(() -> handle(client));
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            while (true) {
+                Frame request;
+                try {
+                    request = readFrame(in);
+                } catch (FrameTooLargeException e) {
+                    // The body is not read, so the connection cannot go on
+                    writeFrame(out, "ERROR", e.getMessage() + "\n");
+                    out.flush();
+                    return;
+                }
+                if (request == null)
+                    return;
+                if (!request.kind.equals("COMPILE")) {
+                    writeFrame(out, "ERROR", "unknown request " + request.kind + "\n");
+                    out.flush();
+                    return;
+                }
+                compile(request, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("connection dropped: " + e.getMessage());
+        }
+    }
+
+    private void compile(Frame request, OutputStream out) throws IOException {
+        Options opts = compileOpts;
+        String key = cache != null ? Ir3Cache.key(request.body, StandardCharsets.UTF_8, opts) : null;
+        Ir3.Prog cached = key != null ? cache.get(key) : null;
+        if (cached != null) {
+            writeFrame(out, "OK", cached.prettyPrint(0));
+            return;
+        }
+
+        String ir3;
+        try {
+            if (request.arg != null) {
+                IncrementalCompiler session;
+                synchronized (sessions) {
+                    session = sessions.computeIfAbsent(request.arg, path -> new IncrementalCompiler(opts));
+                }
+                // The program shares its methods with the session until the next compile
+                synchronized (session) {
+                    Ir3.Prog prog = session.compile(request.text());
+                    ir3 = prog.prettyPrint(0);
+                    if (key != null)
+                        cache.tryPut(key, prog);
+                }
+            } else {
+                Reader reader = new InputStreamReader(new ByteArrayInputStream(request.body), StandardCharsets.UTF_8);
+                Ir3.Prog prog = Compiler.compile(reader, opts);
+                ir3 = prog.prettyPrint(0);
+                if (key != null)
+                    cache.tryPut(key, prog);
+            }
+        } catch (Exception e) {
+            writeFrame(out, "ERROR", Compiler.describe(e));
+            return;
+        } catch (Error e) {
+            // An internal compiler error, or a stack overflow on a deeply nested source, must not
+            // take the handler down with it
+            writeFrame(out, "ERROR", "internal compiler error: " + e + "\n");
+            return;
+        }
+        writeFrame(out, "OK", ir3);
+    }
+
+    // Requests are handled on virtual threads when the runtime has them (Java 21), otherwise on
+    // a cached pool of platform threads
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static class Frame {
+        public final String kind;
+        public final String arg; // null if the header has none
+        public final byte[] body;
+
+        public Frame(String kind, String arg, byte[] body) {
+            this.kind = kind;
+            this.arg = arg;
+            this.body = body;
+        }
+
+        public String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    public static void writeFrame(OutputStream out, String kind, String body) throws IOException {
+        writeFrame(out, kind, null, body);
+    }
+
+    public static void writeFrame(OutputStream out, String kind, String arg, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String header = kind + " " + bytes.length + (arg != null ? " " + arg : "") + "\n";
+        out.write(header.getBytes(StandardCharsets.UTF_8));
+        out.write(bytes);
+    }
+
+    // Returns null at the end of the stream. Throws FrameTooLargeException, with the body left
+    // unread, when the header declares more than MAX_FRAME_BYTES.
+    public static Frame readFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                if (headerBytes.size() == 0)
+                    return null;
+                throw new EOFException("truncated header: " + headerBytes.toString(StandardCharsets.UTF_8));
+            }
+            headerBytes.write(c);
+        }
+        String header = headerBytes.toString(StandardCharsets.UTF_8);
+
+        int space = header.indexOf(' ');
+        if (space < 0)
+            throw new IOException("malformed header: " + header);
+        int argStart = header.indexOf(' ', space + 1);
+        String arg = argStart < 0 ? null : header.substring(argStart + 1);
+        int length;
+        try {
+            length = Integer.parseInt(argStart < 0 ? header.substring(space + 1) : header.substring(space + 1, argStart));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed header: " + header);
+        }
+        if (length < 0)
+            throw new IOException("malformed header: " + header);
+        if (length > MAX_FRAME_BYTES)
+            throw new FrameTooLargeException("frame of " + length + " bytes, more than the " + MAX_FRAME_BYTES + " allowed");
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0)
+                throw new EOFException("truncated body, " + read + " of " + length + " bytes");
+            read += n;
+        }
+        return new Frame(header.substring(0, space), arg, body);
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.*;
+import java.io.*;
+
+// The whole pipeline for one source: parse, check, lower and optimize. Used by the drivers that compile
+// many programs in the same JVM.
+public class Compiler {
+    // Part of the key of cached results: change it whenever the output of the compiler changes
+    public static final String VERSION = "littlejava-ir3-8";
+
+    private Compiler() {}
+
+    // Throws the errors of the failing phase: LexerException, a parser Exception, or
+    // StaticChecker.SemanticErrors
+    public static Ir3.Prog compile(Reader source, Options opts) throws Exception {
+        Ast.Program prog = Parser.parse(source);
+        StaticChecker.run(prog, opts.threads);
+        Ir3.Prog ir3 = Ir3Generator.run(prog, opts.threads);
+        Optimizer.run(ir3, opts);
+        return ir3;
+    }
+
+    // The diagnostics of a failed compilation, as printed by the command line entry points
+    public static String describe(Exception e) {
+        StringBuilder sb = new StringBuilder();
+        if (e instanceof StaticChecker.SemanticErrors) {
+            for (StaticChecker.SemanticError err : ((StaticChecker.SemanticErrors) e).getErrors()) {
+                sb.append("error:").append(err.location).append(": ").append(err.getMessage()).append('\n');
+            }
+        } else {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            sb.append(message);
+            if (!message.endsWith("\n"))
+                sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.*;
+
+// Copy propagation of a method, in SSA form or out of it. A use of a variable reads the source of
+// the copy to it instead, wherever that copy is available (AvailableCopies), and so on down a chain
+// of copies. An Int or Bool constant replaces the variable only where the statement reads a value,
+// not where it names a variable, as in the object of a field store.
+//
+// The copies whose variable is then never read are removed, and so are the locals no statement
+// mentions anymore, which leaves the temporaries of the lowering mostly gone.
+public class CopyPropagation {
+    private final Ir3.Meth meth;
+    private final AvailableCopies avail;
+    private boolean changed;
+
+    private CopyPropagation(Ir3.Meth meth) {
+        this.meth = meth;
+        this.avail = AvailableCopies.run(meth);
+    }
+
+    public static void run(Ir3.Meth meth) {
+        CfgBuilder.renumber(meth);
+        CopyPropagation prop = new CopyPropagation(meth);
+        if (prop.avail.copyStmts.isEmpty())
+            return;
+        if (prop.propagate())
+            DeadCode.removeCopies(meth);
+    }
+
+    // Returns whether a use was replaced
+    private boolean propagate() {
+        long[] set = new long[avail.in[0].length];
+        for (Ir3.Block block : meth.blocks) {
+            System.arraycopy(avail.in[block.postorderIndex], 0, set, 0, set.length);
+            ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir3.PhiStmt)) {
+                    List<Ir3.RetVal> rvs = stmt.getRetVals();
+                    for (int i = 0; i < rvs.size(); i++) {
+                        if (!(rvs.get(i) instanceof Ir3.VarRetVal))
+                            continue;
+                        Ir3.Var v = ((Ir3.VarRetVal) rvs.get(i)).v;
+                        Ir3.Var src = source(v, set);
+                        int c = avail.copyTo(src, set);
+                        if (c >= 0)
+                            stmt.setRetVal(i, avail.sources.get(c));
+                        else if (src != v)
+                            stmt.setRetVal(i, new Ir3.VarRetVal(src));
+                        changed |= c >= 0 || src != v;
+                    }
+                    // The variables that are not values, which only other variables can replace
+                    stmt.mapUses(v -> {
+                        Ir3.Var src = source(v, set);
+                        changed |= src != v;
+                        return src;
+                    });
+                }
+                avail.step(stmt, set);
+                // A copy of a variable to itself is left by a pair of copies in both directions
+                if (stmt instanceof Ir3.AssignStmt) {
+                    Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+                    if (assign.src instanceof Ir3.VarRetVal && ((Ir3.VarRetVal) assign.src).v == assign.getDest())
+                        continue;
+                }
+                stmts.add(stmt);
+            }
+            changed |= stmts.size() < block.stmts.size();
+            block.stmts = stmts;
+        }
+        return changed;
+    }
+
+    // The variable at the end of the chain of copies of variables available to v, v itself if
+    // none is. A copy of a constant to it may still be available.
+    private Ir3.Var source(Ir3.Var v, long[] set) {
+        while (true) {
+            int c = avail.copyTo(v, set);
+            if (c < 0 || !(avail.sources.get(c) instanceof Ir3.VarRetVal))
+                return v;
+            v = ((Ir3.VarRetVal) avail.sources.get(c)).v;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.*;
+
+// Iterative solver for the bit vector problems of a method, such as Liveness, ReachingDefs and
+// AvailableExprs. The subclass numbers its facts densely and gives every block a gen and a kill
+// set, so that the value on the far side of a block is
+//     gen | (meet & ~kill)
+// where meet is the union or the intersection of the values of its neighbours in the direction
+// of the problem. Sets are long[] words indexed by Block.postorderIndex, and once they are set up
+// solving allocates nothing, so an analysis can be run again as often as needed.
+public abstract class Dataflow {
+    protected final Ir3.Meth meth;
+    protected final ArrayList<Ir3.Block> blocks; // By postorder index
+    protected final int numBlocks;
+    protected final int numFacts;
+    protected final int words;
+    private final boolean forward;
+    private final boolean union;
+
+    // The values on entry to and exit from each block, in the order of the program
+    public final long[][] in;
+    public final long[][] out;
+    protected final long[][] gen;
+    protected final long[][] kill;
+    // Added to the meet of a block whatever its neighbours, null if the problem has none. Liveness
+    // puts the arguments of the phis of the successors there.
+    protected long[][] meetGen;
+    // The value flowing in from outside of the method, into the entry or out of the exits
+    protected final long[] boundary;
+
+    private final int[] queue;
+    private final boolean[] queued;
+
+    protected Dataflow(Ir3.Meth meth, int numFacts, boolean forward, boolean union) {
+        this.meth = meth;
+        this.blocks = meth.blocksPost;
+        this.numBlocks = blocks.size();
+        this.numFacts = numFacts;
+        this.words = (numFacts + 63) >>> 6;
+        this.forward = forward;
+        this.union = union;
+        in = new long[numBlocks][words];
+        out = new long[numBlocks][words];
+        gen = new long[numBlocks][words];
+        kill = new long[numBlocks][words];
+        boundary = new long[words];
+        queue = new int[numBlocks];
+        queued = new boolean[numBlocks];
+    }
+
+    public static boolean get(long[] set, int fact) {
+        return (set[fact >>> 6] & (1L << fact)) != 0;
+    }
+
+    public static void set(long[] set, int fact) {
+        set[fact >>> 6] |= 1L << fact;
+    }
+
+    public static void clear(long[] set, int fact) {
+        set[fact >>> 6] &= ~(1L << fact);
+    }
+
+    // The first fact of the set from the given one on, -1 if none
+    public static int nextSetBit(long[] set, int from) {
+        int w = from >>> 6;
+        if (w >= set.length)
+            return -1;
+        long word = set[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == set.length)
+                return -1;
+            word = set[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    public boolean in(Ir3.Block block, int fact) {
+        return get(in[block.postorderIndex], fact);
+    }
+
+    public boolean out(Ir3.Block block, int fact) {
+        return get(out[block.postorderIndex], fact);
+    }
+
+    // Computes in and out from gen and kill, starting over from the initial values
+    public void solve() {
+        long[][] meets = forward ? in : out;
+        long[][] results = forward ? out : in;
+        for (int b = 0; b < numBlocks; b++) {
+            // Intersections start from the full set and only ever lose facts
+            if (union)
+                Arrays.fill(results[b], 0);
+            else
+                fill(results[b]);
+        }
+
+        // Reverse postorder forwards and postorder backwards, so most blocks come after the
+        // neighbours they depend on
+        int head = 0;
+        int size = numBlocks;
+        for (int i = 0; i < numBlocks; i++) {
+            queue[i] = forward ? numBlocks - 1 - i : i;
+            queued[i] = true;
+        }
+        while (size > 0) {
+            int b = queue[head];
+            head = head + 1 == numBlocks ? 0 : head + 1;
+            size--;
+            queued[b] = false;
+
+            Ir3.Block block = blocks.get(b);
+            long[] meet = meets[b];
+            meet(block, meet);
+            long[] result = results[b];
+            long[] g = gen[b];
+            long[] k = kill[b];
+            boolean changed = false;
+            for (int w = 0; w < words; w++) {
+                long v = g[w] | (meet[w] & ~k[w]);
+                if (v != result[w]) {
+                    result[w] = v;
+                    changed = true;
+                }
+            }
+            if (!changed)
+                continue;
+
+            if (forward) {
+                if (block.out != null && !queued[block.out.postorderIndex]) {
+                    queued[block.out.postorderIndex] = true;
+                    queue[(head + size++) % numBlocks] = block.out.postorderIndex;
+                }
+                if (block.outCond != null && !queued[block.outCond.postorderIndex]) {
+                    queued[block.outCond.postorderIndex] = true;
+                    queue[(head + size++) % numBlocks] = block.outCond.postorderIndex;
+                }
+            } else {
+                for (int i = 0; i < block.incoming.size(); i++) {
+                    int p = block.incoming.get(i).postorderIndex;
+                    if (!queued[p]) {
+                        queued[p] = true;
+                        queue[(head + size++) % numBlocks] = p;
+                    }
+                }
+            }
+        }
+    }
+
+    // Meet of the neighbours of the block, and of the boundary at the entry or an exit
+    private void meet(Ir3.Block block, long[] meet) {
+        boolean first = true;
+        if (forward) {
+            if (block.postorderIndex == numBlocks - 1) {
+                System.arraycopy(boundary, 0, meet, 0, words);
+                first = false;
+            }
+            for (int i = 0; i < block.incoming.size(); i++) {
+                combine(meet, out[block.incoming.get(i).postorderIndex], first);
+                first = false;
+            }
+        } else {
+            if (block.out == null && block.outCond == null) {
+                System.arraycopy(boundary, 0, meet, 0, words);
+                first = false;
+            }
+            if (block.out != null) {
+                combine(meet, in[block.out.postorderIndex], first);
+                first = false;
+            }
+            if (block.outCond != null)
+                combine(meet, in[block.outCond.postorderIndex], first);
+        }
+        if (meetGen != null) {
+            long[] extra = meetGen[block.postorderIndex];
+            for (int w = 0; w < words; w++)
+                meet[w] |= extra[w];
+        }
+    }
+
+    private void combine(long[] meet, long[] value, boolean first) {
+        if (first)
+            System.arraycopy(value, 0, meet, 0, words);
+        else if (union) {
+            for (int w = 0; w < words; w++)
+                meet[w] |= value[w];
+        } else {
+            for (int w = 0; w < words; w++)
+                meet[w] &= value[w];
+        }
+    }
+
+    private void fill(long[] set) {
+        Arrays.fill(set, -1L);
+        if ((numFacts & 63) != 0)
+            set[words - 1] = (1L << numFacts) - 1;
+    }
+
+    // Dense numbering of the variables of a method: the arguments, the locals, then any other
+    // variable its statements mention
+    public static class VarIds implements Ir3.VarVisitor {
+        private final IdentityHashMap<Ir3.Var, Integer> ids = new IdentityHashMap<>();
+        public final ArrayList<Ir3.Var> vars = new ArrayList<>();
+
+        // Numbers only the variables given to visit
+        public VarIds() {
+        }
+
+        // The variables read in a block before any write there, and the arguments of the phis.
+        // They are the only ones that can be live on entry to a block, so a liveness over them
+        // alone is exact, and much smaller than over the temporaries of a long method.
+        public static VarIds acrossBlocks(Ir3.Meth meth) {
+            VarIds ids = new VarIds();
+            IdentityHashMap<Ir3.Var, Ir3.Block> definedIn = new IdentityHashMap<>();
+            for (Ir3.Block block : meth.blocks) {
+                Ir3.VarVisitor use = v -> {
+                    if (definedIn.get(v) != block)
+                        ids.visit(v);
+                };
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.PhiStmt)
+                        ids.visitAll(((Ir3.PhiStmt) stmt).args);
+                    else
+                        stmt.forEachUse(use);
+                    stmt.forEachDef(v -> definedIn.put(v, block));
+                }
+            }
+            return ids;
+        }
+
+        public VarIds(Ir3.Meth meth) {
+            for (Ir3.Var v : meth.args)
+                visit(v);
+            for (Ir3.Var v : meth.locals)
+                visit(v);
+            for (Ir3.Block block : meth.blocks) {
+                for (Ir3.Stmt stmt : block.stmts) {
+                    stmt.forEachUse(this);
+                    stmt.forEachDef(this);
+                    if (stmt instanceof Ir3.PhiStmt)
+                        visitAll(((Ir3.PhiStmt) stmt).args);
+                }
+            }
+        }
+
+        private void visitAll(List<Ir3.Var> vs) {
+            for (Ir3.Var v : vs) {
+                if (v != null)
+                    visit(v);
+            }
+        }
+
+        @Override
+        public void visit(Ir3.Var v) {
+            if (!ids.containsKey(v)) {
+                ids.put(v, vars.size());
+                vars.add(v);
+            }
+        }
+
+        // -1 for a variable of another method
+        public int id(Ir3.Var v) {
+            Integer id = ids.get(v);
+            return id == null ? -1 : id;
+        }
+
+        public int size() {
+            return vars.size();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import java.util.*;
+
+// Removes the statements whose results are never needed, then the blocks that cannot be reached
+// and the jumps and labels left with nothing to do. Works in SSA form or out of it.
+//
+// A statement can go when all it does is define its variables: the unary and binary statements,
+// copies, phis, allocations, and the loads of a field of this or of a freshly allocated object. A
+// division stays unless it is by a nonzero constant, and so does any other load, as they may trap.
+// A variable is needed when a statement that stays reads it, or when it is read in the definition
+// of a needed variable, which also drops the cycles of dead variables through loop phis. Stores
+// that are overwritten before being read are then removed with liveness, until none is left.
+//
+// A goto to the next block is dropped, so is a conditional jump whose both edges go there, and
+// then the labels no jump targets. Last, the locals no statement mentions anymore are dropped.
+public class DeadCode {
+    private final Ir3.Meth meth;
+    private final Dataflow.VarIds ids;
+    private final boolean copiesOnly;
+
+    private DeadCode(Ir3.Meth meth, boolean copiesOnly) {
+        this.meth = meth;
+        this.ids = new Dataflow.VarIds(meth);
+        this.copiesOnly = copiesOnly;
+    }
+
+    public static void run(Ir3.Meth meth) {
+        CfgBuilder.renumber(meth);
+        DeadCode dce = new DeadCode(meth, false);
+        dce.removeUnneeded();
+        while (dce.removeDeadStores()) {
+        }
+        dce.removeJumps();
+        dce.removeLocals();
+    }
+
+    // Only removes the copies whose variable is never read, then the locals left unmentioned
+    public static void removeCopies(Ir3.Meth meth) {
+        CfgBuilder.renumber(meth);
+        DeadCode dce = new DeadCode(meth, true);
+        while (dce.removeDeadStores()) {
+        }
+        dce.removeLocals();
+    }
+
+    private boolean removable(Ir3.Stmt stmt, boolean[] nonNull) {
+        if (copiesOnly)
+            return stmt instanceof Ir3.AssignStmt;
+        if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            return bin.op != Ir3.BinaryOp.DIV || (bin.operand2 instanceof Ir3.IntRetVal && ((Ir3.IntRetVal) bin.operand2).i != 0);
+        }
+        if (stmt instanceof Ir3.FieldAccessStmt) {
+            Ir3.RetVal target = ((Ir3.FieldAccessStmt) stmt).target;
+            return target instanceof Ir3.VarRetVal && nonNull[ids.id(((Ir3.VarRetVal) target).v)];
+        }
+        return stmt instanceof Ir3.UnaryStmt || stmt instanceof Ir3.AssignStmt || stmt instanceof Ir3.PhiStmt
+            || stmt instanceof Ir3.NewStmt;
+    }
+
+    // Variables that cannot be null where they are read: this, which the language cannot assign,
+    // and the ones only ever assigned a new object. By variable id.
+    public static boolean[] nonNull(Ir3.Meth meth, Dataflow.VarIds ids) {
+        boolean[] nonNull = new boolean[ids.size()];
+        boolean[] otherDef = new boolean[ids.size()];
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                boolean isNew = stmt instanceof Ir3.NewStmt;
+                stmt.forEachDef(d -> {
+                    if (isNew)
+                        nonNull[ids.id(d)] = true;
+                    else
+                        otherDef[ids.id(d)] = true;
+                });
+            }
+        }
+        for (Ir3.Var arg : meth.args)
+            otherDef[ids.id(arg)] = true;
+        for (int v = 0; v < ids.size(); v++)
+            nonNull[v] &= !otherDef[v];
+        nonNull[ids.id(meth.args.get(0))] = true;
+        return nonNull;
+    }
+
+    private void removeUnneeded() {
+        boolean[] nonNull = nonNull(meth, ids);
+        // The statements defining each variable, and whether each one is needed
+        ArrayList<ArrayList<Ir3.Stmt>> defs = new ArrayList<>();
+        for (int v = 0; v < ids.size(); v++)
+            defs.add(new ArrayList<>());
+        boolean[] needed = new boolean[ids.size()];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        Ir3.VarVisitor need = v -> {
+            int id = ids.id(v);
+            if (!needed[id]) {
+                needed[id] = true;
+                work.add(id);
+            }
+        };
+
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (!removable(stmt, nonNull)) {
+                    stmt.forEachUse(need);
+                    continue;
+                }
+                stmt.forEachDef(d -> defs.get(ids.id(d)).add(stmt));
+            }
+        }
+        while (!work.isEmpty()) {
+            for (Ir3.Stmt stmt : defs.get(work.poll())) {
+                if (stmt instanceof Ir3.PhiStmt) {
+                    for (Ir3.Var arg : ((Ir3.PhiStmt) stmt).args) {
+                        if (arg != null)
+                            need.visit(arg);
+                    }
+                } else {
+                    stmt.forEachUse(need);
+                }
+            }
+        }
+
+        for (Ir3.Block block : meth.blocks) {
+            block.stmts.removeIf(stmt -> {
+                if (!removable(stmt, nonNull))
+                    return false;
+                for (Ir3.Var d : stmt.getDefs()) {
+                    if (needed[ids.id(d)])
+                        return false;
+                }
+                return true;
+            });
+        }
+    }
+
+    // Returns whether a store was removed
+    private boolean removeDeadStores() {
+        boolean[] nonNull = nonNull(meth, ids);
+        Dataflow.VarIds across = Dataflow.VarIds.acrossBlocks(meth);
+        Liveness live = Liveness.run(meth, across);
+        // A variable is live where its stamp is the one of the block being walked
+        int[] liveStamp = new int[ids.size()];
+        int[] stamp = { 0 };
+        boolean removed = false;
+        for (Ir3.Block block : meth.blocks) {
+            stamp[0]++;
+            long[] liveOut = live.out[block.postorderIndex];
+            for (int l = Dataflow.nextSetBit(liveOut, 0); l >= 0; l = Dataflow.nextSetBit(liveOut, l + 1))
+                liveStamp[ids.id(across.vars.get(l))] = stamp[0];
+
+            ArrayList<Ir3.Stmt> kept = new ArrayList<>();
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                Ir3.Stmt stmt = block.stmts.get(i);
+                if (removable(stmt, nonNull)) {
+                    boolean dead = true;
+                    for (Ir3.Var d : stmt.getDefs())
+                        dead &= liveStamp[ids.id(d)] != stamp[0];
+                    if (dead) {
+                        removed = true;
+                        continue;
+                    }
+                }
+                stmt.forEachDef(d -> liveStamp[ids.id(d)] = 0);
+                if (!(stmt instanceof Ir3.PhiStmt))
+                    stmt.forEachUse(u -> liveStamp[ids.id(u)] = stamp[0]);
+                kept.add(stmt);
+            }
+            if (kept.size() < block.stmts.size()) {
+                Collections.reverse(kept);
+                block.stmts = kept;
+            }
+        }
+        return removed;
+    }
+
+    private void removeJumps() {
+        boolean changed = false;
+        for (int b = 0; b < meth.blocks.size(); b++) {
+            Ir3.Block block = meth.blocks.get(b);
+            Ir3.Block next = b + 1 < meth.blocks.size() ? meth.blocks.get(b + 1) : null;
+            if (block.stmts.isEmpty() || block.out != next || next == null)
+                continue;
+            Ir3.Stmt last = block.stmts.get(block.stmts.size() - 1);
+            if (last instanceof Ir3.GotoStmt) {
+                block.stmts.remove(block.stmts.size() - 1);
+            } else if (last instanceof Ir3.CmpStmt && block.outCond == next) {
+                block.stmts.remove(block.stmts.size() - 1);
+                CfgBuilder.removeIncoming(next, next.incoming.lastIndexOf(block));
+                block.outCond = null;
+                changed = true;
+            }
+        }
+        if (changed)
+            CfgBuilder.renumber(meth);
+
+        IdentityHashMap<Ir3.LabelStmt, Boolean> targets = new IdentityHashMap<>();
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.JumpStmt)
+                    targets.put(((Ir3.JumpStmt) stmt).label, true);
+            }
+        }
+        for (Ir3.Block block : meth.blocks) {
+            if (block.label != null && !targets.containsKey(block.label))
+                block.label = null;
+        }
+    }
+
+    private void removeLocals() {
+        IdentityHashMap<Ir3.Var, Boolean> mentioned = new IdentityHashMap<>();
+        Ir3.VarVisitor mention = v -> mentioned.put(v, true);
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                stmt.forEachUse(mention);
+                stmt.forEachDef(mention);
+                if (stmt instanceof Ir3.PhiStmt) {
+                    mention.visit(((Ir3.PhiStmt) stmt).originalVar);
+                    for (Ir3.Var arg : ((Ir3.PhiStmt) stmt).args) {
+                        if (arg != null)
+                            mention.visit(arg);
+                    }
+                }
+            }
+        }
+        meth.locals.removeIf(v -> !mentioned.containsKey(v));
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.*;
+
+// Whole program dead method and dead class elimination. The methods reachable from main, through
+// the calls of the methods reached, are kept, and so are the classes a reachable method
+// instantiates, along with the class of main whose object the program starts with. The others
+// are removed from the program, and their names recorded in Prog.removedMeths and
+// Prog.removedDatas, which print as a comment.
+//
+// A class never instantiated can still have reachable methods, called on a null object.
+public class DeadMethods {
+    private DeadMethods() {}
+
+    public static void run(Ir3.Prog prog) {
+        Ir3.Meth main = null;
+        for (Ir3.Meth meth : prog.meths) {
+            if (meth.name.equals("main"))
+                main = meth;
+        }
+        if (main == null)
+            throw new AssertionError("ERR: no main method");
+
+        IdentityHashMap<Ir3.Meth, Boolean> reached = new IdentityHashMap<>();
+        IdentityHashMap<Ir3.Data, Boolean> instantiated = new IdentityHashMap<>();
+        ArrayDeque<Ir3.Meth> work = new ArrayDeque<>();
+        reached.put(main, true);
+        work.push(main);
+        while (!work.isEmpty()) {
+            Ir3.Meth meth = work.pop();
+            for (Ir3.Block block : meth.blocks) {
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.MethodCallStmt) {
+                        Ir3.Meth callee = ((Ir3.MethodCallStmt) stmt).meth;
+                        if (reached.put(callee, true) == null)
+                            work.push(callee);
+                    } else if (stmt instanceof Ir3.NewStmt) {
+                        instantiated.put(((Ir3.NewStmt) stmt).data, true);
+                    }
+                }
+            }
+        }
+        String mainClass = ((Ast.ClazzTyp) main.args.get(0).typ).cname;
+
+        prog.removedMeths = new ArrayList<>();
+        prog.removedDatas = new ArrayList<>();
+        ArrayList<Ir3.Meth> meths = new ArrayList<>();
+        for (Ir3.Meth meth : prog.meths) {
+            if (reached.containsKey(meth))
+                meths.add(meth);
+            else
+                prog.removedMeths.add(meth.name);
+        }
+        ArrayList<Ir3.Data> datas = new ArrayList<>();
+        for (Ir3.Data data : prog.datas) {
+            if (instantiated.containsKey(data) || data.cname.equals(mainClass))
+                datas.add(data);
+            else
+                prog.removedDatas.add(data.cname);
+        }
+        prog.meths = meths;
+        prog.datas = datas;
+    }
+}
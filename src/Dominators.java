@@ -0,0 +1,209 @@
+import java.util.*;
+
+// Dominator tree and dominance frontiers of the control flow graph of a method, as built by
+// CfgBuilder. The immediate dominators are found with the iterative algorithm of Cooper, Harvey
+// and Kennedy over the reverse postorder, which converges in a couple of passes on the graphs the
+// generator produces. Blocks are identified by Block.postorderIndex.
+//
+// The result is cached on the method until its graph changes (Meth.cfgChanged).
+public class Dominators {
+    public interface Visitor {
+        void enter(Ir3.Block block);
+        void exit(Ir3.Block block);
+    }
+
+    private final Ir3.Meth meth;
+    private final int cfgVersion;
+    private final ArrayList<Ir3.Block> blocks; // By postorder index
+    private final int[] idom; // By postorder index, the entry is its own
+    private final ArrayList<ArrayList<Ir3.Block>> children;
+    private final ArrayList<ArrayList<Ir3.Block>> frontiers;
+    // Numbering of the dominator tree, a dominates b iff its interval contains the one of b
+    private final int[] treeEnter;
+    private final int[] treeExit;
+    private final ArrayList<Ir3.Block> treePreorder = new ArrayList<>();
+
+    private Dominators(Ir3.Meth meth) {
+        this.meth = meth;
+        this.cfgVersion = meth.cfgVersion;
+        this.blocks = meth.blocksPost;
+        int n = blocks.size();
+        for (int i = 0; i < n; i++) {
+            if (blocks.get(i).postorderIndex != i)
+                throw new AssertionError("ERR: stale postorder in method " + meth.name);
+        }
+
+        idom = new int[n];
+        children = new ArrayList<>(n);
+        frontiers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            children.add(new ArrayList<>());
+            frontiers.add(new ArrayList<>());
+        }
+        treeEnter = new int[n];
+        treeExit = new int[n];
+
+        computeIdoms();
+        computeTree();
+        computeFrontiers();
+    }
+
+    // The dominators of the method, computed on first use after each change of its graph
+    public static Dominators of(Ir3.Meth meth) {
+        Dominators doms = meth.dominators;
+        if (doms == null || doms.cfgVersion != meth.cfgVersion || doms.blocks != meth.blocksPost) {
+            doms = new Dominators(meth);
+            meth.dominators = doms;
+        }
+        return doms;
+    }
+
+    private void computeIdoms() {
+        Arrays.fill(idom, -1);
+        int entry = blocks.size() - 1;
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // Reverse postorder, skipping the entry
+            for (int b = entry - 1; b >= 0; b--) {
+                int newIdom = -1;
+                for (Ir3.Block pred : blocks.get(b).incoming) {
+                    int p = pred.postorderIndex;
+                    if (idom[p] == -1)
+                        continue;
+                    newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+                }
+                if (newIdom == -1)
+                    throw new AssertionError("ERR: unreachable block in method " + meth.name);
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a < b)
+                a = idom[a];
+            while (b < a)
+                b = idom[b];
+        }
+        return a;
+    }
+
+    private void computeTree() {
+        int entry = blocks.size() - 1;
+        // Children in reverse postorder, so walks follow the order of the program
+        for (int b = entry - 1; b >= 0; b--)
+            children.get(idom[b]).add(blocks.get(b));
+
+        int counter = 0;
+        ArrayDeque<Ir3.Block> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+        stack.push(blocks.get(entry));
+        nextChild.push(0);
+        treeEnter[entry] = counter++;
+        treePreorder.add(blocks.get(entry));
+        while (!stack.isEmpty()) {
+            Ir3.Block block = stack.peek();
+            int i = nextChild.pop();
+            ArrayList<Ir3.Block> kids = children.get(block.postorderIndex);
+            if (i == kids.size()) {
+                stack.pop();
+                treeExit[block.postorderIndex] = counter++;
+                continue;
+            }
+            nextChild.push(i + 1);
+            Ir3.Block child = kids.get(i);
+            treeEnter[child.postorderIndex] = counter++;
+            treePreorder.add(child);
+            stack.push(child);
+            nextChild.push(0);
+        }
+    }
+
+    private void computeFrontiers() {
+        int entry = blocks.size() - 1;
+        for (int b = 0; b < blocks.size(); b++) {
+            Ir3.Block block = blocks.get(b);
+            // The entry is also entered from outside of the method, so a single edge makes it a join
+            if (block.incoming.size() < (b == entry ? 1 : 2))
+                continue;
+            int stop = b == entry ? -1 : idom[b];
+            for (Ir3.Block pred : block.incoming) {
+                int runner = pred.postorderIndex;
+                while (runner != stop) {
+                    ArrayList<Ir3.Block> frontier = frontiers.get(runner);
+                    // Blocks are handled one at a time, so a duplicate is always the last one added
+                    if (!frontier.isEmpty() && frontier.get(frontier.size() - 1) == block)
+                        break;
+                    frontier.add(block);
+                    if (runner == entry)
+                        break;
+                    runner = idom[runner];
+                }
+            }
+        }
+    }
+
+    public Ir3.Block entry() {
+        return blocks.get(blocks.size() - 1);
+    }
+
+    // Null for the entry
+    public Ir3.Block idom(Ir3.Block block) {
+        int b = block.postorderIndex;
+        return idom[b] == b ? null : blocks.get(idom[b]);
+    }
+
+    public boolean dominates(Ir3.Block a, Ir3.Block b) {
+        int x = a.postorderIndex;
+        int y = b.postorderIndex;
+        return treeEnter[x] <= treeEnter[y] && treeExit[y] <= treeExit[x];
+    }
+
+    public boolean strictlyDominates(Ir3.Block a, Ir3.Block b) {
+        return a != b && dominates(a, b);
+    }
+
+    public List<Ir3.Block> children(Ir3.Block block) {
+        return Collections.unmodifiableList(children.get(block.postorderIndex));
+    }
+
+    public List<Ir3.Block> frontier(Ir3.Block block) {
+        return Collections.unmodifiableList(frontiers.get(block.postorderIndex));
+    }
+
+    // Every block before the blocks it dominates
+    public List<Ir3.Block> treePreorder() {
+        return Collections.unmodifiableList(treePreorder);
+    }
+
+    // Depth first walk of the dominator tree. A block is entered before its children and exited
+    // after them.
+    public void walk(Visitor visitor) {
+        ArrayDeque<Ir3.Block> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+        stack.push(entry());
+        nextChild.push(0);
+        visitor.enter(entry());
+        while (!stack.isEmpty()) {
+            Ir3.Block block = stack.peek();
+            int i = nextChild.pop();
+            ArrayList<Ir3.Block> kids = children.get(block.postorderIndex);
+            if (i == kids.size()) {
+                stack.pop();
+                visitor.exit(block);
+                continue;
+            }
+            nextChild.push(i + 1);
+            Ir3.Block child = kids.get(i);
+            visitor.enter(child);
+            stack.push(child);
+            nextChild.push(0);
+        }
+    }
+}
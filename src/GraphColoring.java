@@ -0,0 +1,667 @@
+import java.util.*;
+
+// Register allocation by iterated register coalescing (George and Appel) of a method out of SSA
+// form. The interference graph has a node per variable, an edge between two variables when one is
+// defined where the other is live, and is kept both as a triangular bit matrix, for the test of an
+// edge, and as adjacency lists, for the walk over the neighbours. Low degree nodes are simplified,
+// copies between variables that do not interfere are coalesced when the George or the Briggs test
+// shows the merged node is still colorable, and when neither applies the move related node of
+// lowest degree is frozen or the node of lowest spill cost is pushed as a potential spill. Colors
+// are then given in reverse order, preferring the color of a move partner.
+//
+// The spill cost of a variable is the number of times it is read or written, each weighed by 10 to
+// the depth of the loops around it, and divided by its degree. A variable that cannot be colored
+// goes to a stack slot: every statement reading it reloads it into a fresh temporary first, and
+// every one writing it writes a fresh temporary then stores it, except that calls read their
+// arguments from the stack directly. The temporaries are never spilled nor coalesced, and the
+// allocation starts over on the rewritten method until nothing is spilled. The copies between
+// variables given the same register are removed at the end.
+//
+// All the registers are allocatable, as the temporaries replace the scratch registers of
+// LinearScan. Calls are assumed to preserve the registers, like there.
+public class GraphColoring {
+    // Past this many variables the edges are kept in a hash set rather than in the bit matrix
+    private static final int MATRIX_NODES = 1 << 14;
+
+    // Node states, the worklists hold the nodes of the first three
+    private static final int SIMPLIFY = 0;
+    private static final int FREEZE = 1;
+    private static final int SPILL = 2;
+    private static final int SELECTED = 3;
+    private static final int COALESCED = 4;
+    private static final int COLORED = 5;
+    private static final int SPILLED = 6;
+    private static final int STACK = 7; // Spilled in an earlier round, not a node anymore
+
+    // Move states
+    private static final int WORKLIST = 0;
+    private static final int ACTIVE = 1;
+    private static final int DONE = 2; // Coalesced, constrained or frozen
+
+    private final Ir3.Meth meth;
+    private final int k;
+    private final Loops loops;
+    private final IdentityHashMap<Ir3.Var, Boolean> temps; // Made by the spills of earlier rounds
+    private final Dataflow.VarIds ids;
+    private final int n;
+
+    private final long[] matrix;
+    private final LongSet edges;
+    private final IntList[] adjList;
+    private final int[] degree;
+    private final double[] cost;
+    private final int[] state;
+    private final int[] alias;
+    private final int[] color;
+    private final IntList[] moveList;
+
+    private final IntList moveSrc = new IntList();
+    private final IntList moveDst = new IntList();
+    private final IntList moveState = new IntList();
+
+    // The worklists drop the nodes and moves that left their state only when they get to them
+    private final IntList simplifyWorklist = new IntList();
+    private final IntList freezeWorklist = new IntList();
+    private final IntList spillWorklist = new IntList();
+    private final IntList worklistMoves = new IntList();
+    private final IntList selectStack = new IntList();
+    private final IntList spilledNodes = new IntList();
+    private final int[] mark; // For the union of two neighbourhoods
+    private int markStamp;
+
+    private static class IntList {
+        int[] items = new int[4];
+        int size;
+
+        void add(int x) {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            items[size++] = x;
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        int pop() {
+            return items[--size];
+        }
+    }
+
+    // Set of edge keys by open addressing, without boxing them. The keys are positive, so 0 marks
+    // an empty slot.
+    private static class LongSet {
+        long[] keys = new long[1 << 10];
+        int size;
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        boolean contains(long key) {
+            for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == key)
+                    return true;
+            }
+            return false;
+        }
+
+        // The key must not be in the set already
+        void add(long key) {
+            if (2 * (size + 1) > keys.length) {
+                long[] old = keys;
+                keys = new long[old.length * 2];
+                for (long old1 : old) {
+                    if (old1 != 0)
+                        insert(old1);
+                }
+            }
+            insert(key);
+            size++;
+        }
+
+        private void insert(long key) {
+            int i = slot(key);
+            while (keys[i] != 0)
+                i = (i + 1) & (keys.length - 1);
+            keys[i] = key;
+        }
+    }
+
+    // Set of variable ids that lists its members in time proportional to their number, and is
+    // cleared in constant time
+    private static class LiveSet {
+        final int[] members;
+        final int[] index; // Position of each id in members, meaningful only for the members
+        int size;
+
+        LiveSet(int n) {
+            members = new int[n];
+            index = new int[n];
+        }
+
+        boolean contains(int v) {
+            return index[v] < size && members[index[v]] == v;
+        }
+
+        void add(int v) {
+            if (contains(v))
+                return;
+            index[v] = size;
+            members[size++] = v;
+        }
+
+        void remove(int v) {
+            if (!contains(v))
+                return;
+            int last = members[--size];
+            members[index[v]] = last;
+            index[last] = index[v];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private GraphColoring(Ir3.Meth meth, int k, Loops loops, IdentityHashMap<Ir3.Var, Boolean> temps) {
+        this.meth = meth;
+        this.k = k;
+        this.loops = loops;
+        this.temps = temps;
+        this.ids = new Dataflow.VarIds(meth);
+        this.n = ids.size();
+        if (n <= MATRIX_NODES) {
+            matrix = new long[(int) (((long) n * (n - 1) / 2 + 63) >>> 6)];
+            edges = null;
+        } else {
+            matrix = null;
+            edges = new LongSet();
+        }
+        adjList = new IntList[n];
+        moveList = new IntList[n];
+        degree = new int[n];
+        cost = new double[n];
+        state = new int[n];
+        alias = new int[n];
+        color = new int[n];
+        mark = new int[n];
+        for (int v = 0; v < n; v++) {
+            adjList[v] = new IntList();
+            moveList[v] = new IntList();
+            alias[v] = v;
+            if (ids.vars.get(v).stackSpace)
+                state[v] = STACK;
+        }
+    }
+
+    // Allocates regs registers to the variables of the method
+    public static void run(Ir3.Meth meth, int regs) {
+        if (regs < 3)
+            throw new IllegalArgumentException("register allocation needs at least 3 registers, got " + regs);
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt)
+                    throw new AssertionError("ERR: method " + meth.name + " is still in SSA form");
+            }
+        }
+
+        Loops loops = Loops.run(meth);
+        IdentityHashMap<Ir3.Var, Boolean> temps = new IdentityHashMap<>();
+        boolean first = true;
+        while (true) {
+            GraphColoring g = new GraphColoring(meth, regs, loops, temps);
+            if (first) {
+                for (Ir3.Var v : g.ids.vars) {
+                    if (v.reg >= 0 || v.stackSpace)
+                        throw new AssertionError("ERR: method " + meth.name + " is already allocated");
+                }
+                first = false;
+            }
+            g.build();
+            g.makeWorklist();
+            while (true) {
+                if (g.simplifyWorklist.size > 0)
+                    g.simplify();
+                else if (g.worklistMoves.size > 0)
+                    g.coalesce();
+                else if (g.freezeWorklist.size > 0)
+                    g.freeze();
+                else if (g.spillWorklist.size > 0)
+                    g.selectSpill();
+                else
+                    break;
+            }
+            g.assignColors();
+            if (g.spilledNodes.size == 0) {
+                g.finish();
+                return;
+            }
+            g.rewrite();
+        }
+    }
+
+    private boolean isNode(int v) {
+        return state[v] != STACK;
+    }
+
+    private boolean adjacent(int u, int v) {
+        if (u == v)
+            return true;
+        if (matrix == null)
+            return edges.contains(edgeKey(u, v));
+        long bit = bitIndex(u, v);
+        return (matrix[(int) (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    private long edgeKey(int u, int v) {
+        return u < v ? (long) v * n + u : (long) u * n + v;
+    }
+
+    private static long bitIndex(int u, int v) {
+        int lo = Math.min(u, v);
+        int hi = Math.max(u, v);
+        return (long) hi * (hi - 1) / 2 + lo;
+    }
+
+    private void addEdge(int u, int v) {
+        if (adjacent(u, v) || !isNode(u) || !isNode(v))
+            return;
+        if (matrix == null) {
+            edges.add(edgeKey(u, v));
+        } else {
+            long bit = bitIndex(u, v);
+            matrix[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        adjList[u].add(v);
+        adjList[v].add(u);
+        degree[u]++;
+        degree[v]++;
+    }
+
+    // A copy between two variables that can share a register
+    private boolean isMove(Ir3.Stmt stmt) {
+        if (!(stmt instanceof Ir3.AssignStmt) || !(((Ir3.AssignStmt) stmt).src instanceof Ir3.VarRetVal))
+            return false;
+        Ir3.Var dst = ((Ir3.AssignStmt) stmt).getDest();
+        Ir3.Var src = ((Ir3.VarRetVal) ((Ir3.AssignStmt) stmt).src).v;
+        return dst != src && !dst.stackSpace && !src.stackSpace && !temps.containsKey(dst) && !temps.containsKey(src);
+    }
+
+    private void build() {
+        Dataflow.VarIds across = Dataflow.VarIds.acrossBlocks(meth);
+        Liveness live = Liveness.run(meth, across);
+        LiveSet liveNow = new LiveSet(n);
+        for (Ir3.Block block : meth.blocks) {
+            double weight = Math.pow(10, loops.depth(block));
+            liveNow.clear();
+            long[] liveOut = live.out[block.postorderIndex];
+            for (int l = Dataflow.nextSetBit(liveOut, 0); l >= 0; l = Dataflow.nextSetBit(liveOut, l + 1))
+                liveNow.add(ids.id(across.vars.get(l)));
+
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                Ir3.Stmt stmt = block.stmts.get(i);
+                if (isMove(stmt)) {
+                    // The source does not interfere with the copy of itself
+                    int src = ids.id(((Ir3.VarRetVal) ((Ir3.AssignStmt) stmt).src).v);
+                    int dst = ids.id(((Ir3.AssignStmt) stmt).getDest());
+                    liveNow.remove(src);
+                    moveList[src].add(moveSrc.size);
+                    moveList[dst].add(moveSrc.size);
+                    worklistMoves.add(moveSrc.size);
+                    moveSrc.add(src);
+                    moveDst.add(dst);
+                    moveState.add(WORKLIST);
+                }
+                stmt.forEachDef(d -> {
+                    int def = ids.id(d);
+                    for (int l = 0; l < liveNow.size; l++)
+                        addEdge(liveNow.members[l], def);
+                    cost[def] += weight;
+                });
+                stmt.forEachDef(d -> liveNow.remove(ids.id(d)));
+                stmt.forEachUse(u -> {
+                    liveNow.add(ids.id(u));
+                    cost[ids.id(u)] += weight;
+                });
+            }
+
+            // The arguments all arrive on entry, along with whatever is read before being written
+            if (block == meth.blocks.get(0)) {
+                for (Ir3.Var arg : meth.args)
+                    liveNow.add(ids.id(arg));
+                for (int a = 0; a < liveNow.size; a++) {
+                    for (int b = a + 1; b < liveNow.size; b++)
+                        addEdge(liveNow.members[a], liveNow.members[b]);
+                }
+            }
+        }
+        for (Ir3.Var t : temps.keySet())
+            cost[ids.id(t)] = Double.POSITIVE_INFINITY;
+    }
+
+    private void makeWorklist() {
+        for (int v = 0; v < n; v++) {
+            if (!isNode(v))
+                continue;
+            if (degree[v] >= k) {
+                state[v] = SPILL;
+                spillWorklist.add(v);
+            } else if (moveRelated(v)) {
+                state[v] = FREEZE;
+                freezeWorklist.add(v);
+            } else {
+                state[v] = SIMPLIFY;
+                simplifyWorklist.add(v);
+            }
+        }
+    }
+
+    // Whether the node is still removed from the graph or merged into another one
+    private boolean gone(int v) {
+        return state[v] == SELECTED || state[v] == COALESCED;
+    }
+
+    // Also drops the moves of the node that are done with for good
+    private boolean moveRelated(int v) {
+        IntList moves = moveList[v];
+        int kept = 0;
+        for (int i = 0; i < moves.size; i++) {
+            if (moveState.get(moves.get(i)) != DONE)
+                moves.items[kept++] = moves.get(i);
+        }
+        moves.size = kept;
+        return kept > 0;
+    }
+
+    private void simplify() {
+        int v = simplifyWorklist.pop();
+        if (state[v] != SIMPLIFY)
+            return;
+        state[v] = SELECTED;
+        selectStack.add(v);
+        IntList adj = adjList[v];
+        for (int i = 0; i < adj.size; i++) {
+            if (!gone(adj.get(i)))
+                decrementDegree(adj.get(i));
+        }
+    }
+
+    private void decrementDegree(int v) {
+        if (degree[v]-- != k || state[v] != SPILL)
+            return;
+        enableMoves(v);
+        IntList adj = adjList[v];
+        for (int i = 0; i < adj.size; i++) {
+            if (!gone(adj.get(i)))
+                enableMoves(adj.get(i));
+        }
+        if (moveRelated(v)) {
+            state[v] = FREEZE;
+            freezeWorklist.add(v);
+        } else {
+            state[v] = SIMPLIFY;
+            simplifyWorklist.add(v);
+        }
+    }
+
+    // Also drops the moves of the node that are done with for good, as moveRelated does: a node
+    // coalesced with many copies would otherwise walk them all again at every degree change of a
+    // neighbour
+    private void enableMoves(int v) {
+        IntList moves = moveList[v];
+        int kept = 0;
+        for (int i = 0; i < moves.size; i++) {
+            int m = moves.get(i);
+            if (moveState.get(m) == DONE)
+                continue;
+            moves.items[kept++] = m;
+            if (moveState.get(m) == ACTIVE) {
+                moveState.items[m] = WORKLIST;
+                worklistMoves.add(m);
+            }
+        }
+        moves.size = kept;
+    }
+
+    private int getAlias(int v) {
+        while (state[v] == COALESCED)
+            v = alias[v];
+        return v;
+    }
+
+    // A frozen node that is done with its moves can be simplified
+    private void addWorklist(int v) {
+        if (state[v] == FREEZE && !moveRelated(v) && degree[v] < k) {
+            state[v] = SIMPLIFY;
+            simplifyWorklist.add(v);
+        }
+    }
+
+    private void coalesce() {
+        int m = worklistMoves.pop();
+        if (moveState.get(m) != WORKLIST)
+            return;
+        int u = getAlias(moveDst.get(m));
+        int v = getAlias(moveSrc.get(m));
+        if (u == v) {
+            moveState.items[m] = DONE;
+            addWorklist(u);
+        } else if (adjacent(u, v)) {
+            moveState.items[m] = DONE;
+            addWorklist(u);
+            addWorklist(v);
+        } else {
+            // The smaller node is merged into the larger one, so long chains of copies do not
+            // copy the same lists over and over
+            if (adjList[u].size + moveList[u].size < adjList[v].size + moveList[v].size) {
+                int t = u;
+                u = v;
+                v = t;
+            }
+            if (!george(u, v) && !briggs(u, v)) {
+                moveState.items[m] = ACTIVE;
+                return;
+            }
+            moveState.items[m] = DONE;
+            combine(u, v);
+            addWorklist(u);
+        }
+    }
+
+    // Whether every neighbour of v of significant degree is already a neighbour of u. Cheaper
+    // than briggs when v is the small one, as it is for most copies into a long lived variable.
+    private boolean george(int u, int v) {
+        IntList adj = adjList[v];
+        for (int i = 0; i < adj.size; i++) {
+            int t = adj.get(i);
+            if (!gone(t) && degree[t] >= k && !adjacent(t, u))
+                return false;
+        }
+        return true;
+    }
+
+    // Whether the merged node has fewer than k neighbours of significant degree
+    private boolean briggs(int u, int v) {
+        markStamp++;
+        int significant = 0;
+        for (int x : new int[] { u, v }) {
+            IntList adj = adjList[x];
+            for (int i = 0; i < adj.size; i++) {
+                int t = adj.get(i);
+                if (gone(t) || mark[t] == markStamp)
+                    continue;
+                mark[t] = markStamp;
+                if (degree[t] >= k && ++significant == k)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private void combine(int u, int v) {
+        state[v] = COALESCED;
+        alias[v] = u;
+        cost[u] += cost[v];
+        IntList moves = moveList[v];
+        for (int i = 0; i < moves.size; i++)
+            moveList[u].add(moves.get(i));
+        enableMoves(v);
+        IntList adj = adjList[v];
+        for (int i = 0; i < adj.size; i++) {
+            int t = adj.get(i);
+            if (gone(t))
+                continue;
+            addEdge(t, u);
+            decrementDegree(t);
+        }
+        if (degree[u] >= k && state[u] == FREEZE) {
+            state[u] = SPILL;
+            spillWorklist.add(u);
+        }
+    }
+
+    private void freeze() {
+        int v = freezeWorklist.pop();
+        if (state[v] != FREEZE)
+            return;
+        state[v] = SIMPLIFY;
+        simplifyWorklist.add(v);
+        freezeMoves(v);
+    }
+
+    private void freezeMoves(int u) {
+        IntList moves = moveList[u];
+        for (int i = 0; i < moves.size; i++) {
+            int m = moves.get(i);
+            if (moveState.get(m) == DONE)
+                continue;
+            int x = getAlias(moveSrc.get(m));
+            int v = x == getAlias(u) ? getAlias(moveDst.get(m)) : x;
+            moveState.items[m] = DONE;
+            addWorklist(v);
+        }
+    }
+
+    // The potential spill of least cost for its degree, a temporary only when nothing else is left
+    private void selectSpill() {
+        int best = -1;
+        double bestCost = 0;
+        int kept = 0;
+        for (int i = 0; i < spillWorklist.size; i++) {
+            int v = spillWorklist.get(i);
+            if (state[v] != SPILL)
+                continue;
+            spillWorklist.items[kept++] = v;
+            double c = cost[v] / degree[v];
+            if (best < 0 || c < bestCost || (c == bestCost && degree[v] > degree[best])) {
+                best = v;
+                bestCost = c;
+            }
+        }
+        spillWorklist.size = kept;
+        if (best < 0)
+            return;
+        state[best] = SIMPLIFY;
+        simplifyWorklist.add(best);
+        freezeMoves(best);
+    }
+
+    private void assignColors() {
+        boolean[] taken = new boolean[k];
+        while (selectStack.size > 0) {
+            int v = selectStack.pop();
+            Arrays.fill(taken, false);
+            IntList adj = adjList[v];
+            for (int i = 0; i < adj.size; i++) {
+                int w = getAlias(adj.get(i));
+                if (state[w] == COLORED)
+                    taken[color[w]] = true;
+            }
+
+            int c = -1;
+            IntList moves = moveList[v];
+            for (int i = 0; i < moves.size && c < 0; i++) {
+                int partner = getAlias(moveSrc.get(moves.get(i)));
+                if (partner == v)
+                    partner = getAlias(moveDst.get(moves.get(i)));
+                if (state[partner] == COLORED && !taken[color[partner]])
+                    c = color[partner];
+            }
+            for (int r = 0; r < k && c < 0; r++) {
+                if (!taken[r])
+                    c = r;
+            }
+            if (c < 0) {
+                state[v] = SPILLED;
+                spilledNodes.add(v);
+            } else {
+                state[v] = COLORED;
+                color[v] = c;
+            }
+        }
+    }
+
+    // Gives the registers to the variables and drops the copies that became no-ops
+    private void finish() {
+        for (int v = 0; v < n; v++) {
+            if (isNode(v))
+                ids.vars.get(v).reg = color[getAlias(v)];
+        }
+        for (Ir3.Block block : meth.blocks) {
+            block.stmts.removeIf(stmt -> stmt instanceof Ir3.AssignStmt && ((Ir3.AssignStmt) stmt).src instanceof Ir3.VarRetVal
+                                 && ((Ir3.AssignStmt) stmt).getDest().reg >= 0
+                                 && ((Ir3.AssignStmt) stmt).getDest().reg == ((Ir3.VarRetVal) ((Ir3.AssignStmt) stmt).src).v.reg);
+        }
+    }
+
+    // Moves the spilled variables to the stack, reading and writing them through temporaries
+    private void rewrite() {
+        if (meth.stackSpaces == null)
+            meth.stackSpaces = new ArrayList<>();
+        for (int i = 0; i < spilledNodes.size; i++) {
+            Ir3.Var v = ids.vars.get(spilledNodes.get(i));
+            if (temps.containsKey(v))
+                throw new AssertionError("ERR: no register left for a spill temporary of method " + meth.name);
+            v.stackSpace = true;
+            v.stackSlot = meth.stackSpaces.size();
+            meth.stackSpaces.add(true);
+        }
+
+        for (Ir3.Block block : meth.blocks) {
+            ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir3.CallStmt)) {
+                    IdentityHashMap<Ir3.Var, Ir3.Var> reloads = new IdentityHashMap<>();
+                    stmt.forEachUse(u -> {
+                        if (u.stackSpace && !reloads.containsKey(u)) {
+                            Ir3.Var temp = temp(u);
+                            stmts.add(new Ir3.ReloadStmt(temp));
+                            reloads.put(u, temp);
+                        }
+                    });
+                    if (!reloads.isEmpty())
+                        stmt.mapUses(u -> reloads.getOrDefault(u, u));
+                }
+                stmts.add(stmt);
+                List<Ir3.Var> defs = stmt.getDefs();
+                for (int d = 0; d < defs.size(); d++) {
+                    if (defs.get(d) == null || !defs.get(d).stackSpace)
+                        continue;
+                    Ir3.Var temp = temp(defs.get(d));
+                    stmt.setDef(d, temp);
+                    stmts.add(new Ir3.SpillStmt(temp));
+                }
+            }
+            block.stmts = stmts;
+        }
+    }
+
+    private Ir3.Var temp(Ir3.Var spilled) {
+        Ir3.Var temp = meth.freshVar(spilled.typ, spilled.name);
+        temp.stackSlot = spilled.stackSlot;
+        temps.put(temp, true);
+        return temp;
+    }
+}
@@ -0,0 +1,260 @@
+import java.util.*;
+
+// Dominator based global value numbering of a method in SSA form. The blocks are walked down the
+// dominator tree with a table of the values computed so far, scoped like the walk, so a block only
+// sees what the blocks dominating it computed. Every variable is numbered by the variable holding
+// its value first, which its uses then read: a copy is numbered by its source, a phi by its
+// arguments when they all agree or by an identical phi of the same block, and a binary or unary
+// statement computing what the table already holds becomes a copy of it. The phi arguments of an
+// edge are renamed at the end of the block it leaves.
+//
+// Field loads are numbered too, by the field, the number of the object and the state of the
+// memory: a store to a field starts a new state for that field, and makes what it stores the
+// value of the load of that field of that object, while a call starts a new state for every
+// field. Entering a join, the states of the fields stored to, or of all the fields after a call, on
+// some path from the immediate dominator are started anew, which takes the loops into account.
+//
+// Of the binary statements, only the ones computing an Int are numbered. Strings are references,
+// numbered only through copies like the other objects, and a String literal stored to a field is
+// not forwarded to its loads, as a literal may not be the same object every time.
+public class Gvn {
+    private final Ir3.Meth meth;
+    private final Dataflow.VarIds ids;
+    private final Dominators doms;
+    private final Ir3.Var[] number; // By variable id, null for a variable that is its own number
+
+    // The values computed, and their keys in the order they were added to undo the scopes
+    private final HashMap<List<Object>, Ir3.RetVal> table = new HashMap<>();
+    private final ArrayList<List<Object>> added = new ArrayList<>();
+    private final ArrayDeque<Integer> scopes = new ArrayDeque<>();
+
+    // The state of the memory: one per field, and one for all of them that the calls start anew
+    private HashMap<String, Integer> fieldStates = new HashMap<>();
+    private int callState;
+    private int nextState = 1;
+    private final ArrayDeque<HashMap<String, Integer>> savedFieldStates = new ArrayDeque<>();
+    private final ArrayDeque<Integer> savedCallStates = new ArrayDeque<>();
+
+    // What the statements of each block store to, by postorder index
+    private final ArrayList<HashSet<String>> stores = new ArrayList<>();
+    private final boolean[] calls;
+    private final int[] seen; // By postorder index, the stamp of the last join it was seen from
+    private int stamp;
+
+    private Gvn(Ir3.Meth meth) {
+        this.meth = meth;
+        this.ids = new Dataflow.VarIds(meth);
+        this.doms = Dominators.of(meth);
+        this.number = new Ir3.Var[ids.size()];
+        this.calls = new boolean[meth.blocksPost.size()];
+        this.seen = new int[meth.blocksPost.size()];
+    }
+
+    public static void run(Ir3.Meth meth) {
+        Gvn gvn = new Gvn(meth);
+        gvn.findStores();
+        gvn.doms.walk(new Dominators.Visitor() {
+            public void enter(Ir3.Block block) {
+                gvn.enter(block);
+            }
+
+            public void exit(Ir3.Block block) {
+                gvn.exit(block);
+            }
+        });
+    }
+
+    private void findStores() {
+        for (Ir3.Block block : meth.blocksPost) {
+            HashSet<String> fields = new HashSet<>();
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.FieldAssignStmt)
+                    fields.add(((Ir3.FieldAssignStmt) stmt).field);
+                else if (stmt instanceof Ir3.CallStmt)
+                    calls[block.postorderIndex] = true;
+            }
+            stores.add(fields);
+        }
+    }
+
+    private Ir3.Var numberOf(Ir3.Var v) {
+        Ir3.Var n = number[ids.id(v)];
+        return n == null ? v : n;
+    }
+
+    private void enter(Ir3.Block block) {
+        scopes.push(added.size());
+        savedFieldStates.push(fieldStates);
+        savedCallStates.push(callState);
+        fieldStates = new HashMap<>(fieldStates);
+        killJoin(block);
+
+        for (int i = 0; i < block.stmts.size(); i++) {
+            Ir3.Stmt stmt = block.stmts.get(i);
+            if (stmt instanceof Ir3.PhiStmt) {
+                numberPhi((Ir3.PhiStmt) stmt, block);
+                continue;
+            }
+            stmt.mapUses(this::numberOf);
+
+            if (stmt instanceof Ir3.AssignStmt) {
+                Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+                if (assign.src instanceof Ir3.VarRetVal)
+                    number[ids.id(assign.getDest())] = ((Ir3.VarRetVal) assign.src).v;
+            } else if (stmt instanceof Ir3.BinaryStmt || stmt instanceof Ir3.UnaryStmt || stmt instanceof Ir3.FieldAccessStmt) {
+                Ir3.Var dst = stmt.getDefs().get(0);
+                List<Object> key = key(stmt);
+                if (key == null)
+                    continue;
+                Ir3.RetVal value = table.get(key);
+                if (value == null) {
+                    add(key, new Ir3.VarRetVal(dst));
+                    continue;
+                }
+                block.stmts.set(i, new Ir3.AssignStmt(dst, value));
+                if (value instanceof Ir3.VarRetVal)
+                    number[ids.id(dst)] = ((Ir3.VarRetVal) value).v;
+            } else if (stmt instanceof Ir3.FieldAssignStmt) {
+                Ir3.FieldAssignStmt store = (Ir3.FieldAssignStmt) stmt;
+                fieldStates.put(store.field, nextState++);
+                // Strings are not forwarded, a literal may not be the same object every time
+                if (store.src instanceof Ir3.VarRetVal || store.src instanceof Ir3.IntRetVal || store.src instanceof Ir3.BoolRetVal)
+                    add(loadKey(store.field, store.dst), store.src);
+            } else if (stmt instanceof Ir3.CallStmt) {
+                callState = nextState++;
+            }
+        }
+
+        renamePhiArgs(block, block.out, false);
+        renamePhiArgs(block, block.outCond, true);
+    }
+
+    private void exit(Ir3.Block block) {
+        int size = scopes.pop();
+        while (added.size() > size)
+            table.remove(added.remove(added.size() - 1));
+        fieldStates = savedFieldStates.pop();
+        callState = savedCallStates.pop();
+    }
+
+    private void add(List<Object> key, Ir3.RetVal value) {
+        if (table.put(key, value) == null)
+            added.add(key);
+    }
+
+    // Starts anew the states of what is stored to between the immediate dominator of the block and
+    // the block: by the blocks that reach it without going through the dominator, itself included
+    // when it is in a loop
+    private void killJoin(Ir3.Block block) {
+        Ir3.Block idom = doms.idom(block);
+        if (block.incoming.size() == 1 && block.incoming.get(0) == idom)
+            return;
+        stamp++;
+        ArrayDeque<Ir3.Block> work = new ArrayDeque<>(block.incoming);
+        boolean call = false;
+        HashSet<String> fields = new HashSet<>();
+        while (!work.isEmpty()) {
+            Ir3.Block pred = work.pop();
+            if (pred == idom || seen[pred.postorderIndex] == stamp)
+                continue;
+            seen[pred.postorderIndex] = stamp;
+            call |= calls[pred.postorderIndex];
+            fields.addAll(stores.get(pred.postorderIndex));
+            for (Ir3.Block p : pred.incoming)
+                work.push(p);
+        }
+        if (call)
+            callState = nextState++;
+        for (String field : fields)
+            fieldStates.put(field, nextState++);
+    }
+
+    private void numberPhi(Ir3.PhiStmt phi, Ir3.Block block) {
+        Ir3.Var dst = phi.getDst();
+        // The arguments of the back edges are not numbered yet, they only agree when they are the same
+        Ir3.Var same = null;
+        boolean agree = true;
+        ArrayList<Object> key = new ArrayList<>();
+        key.add(block);
+        for (Ir3.Var arg : phi.args) {
+            Ir3.Var n = arg == null ? null : numberOf(arg);
+            key.add(n);
+            if (n == dst)
+                continue;
+            if (n == null || (same != null && same != n))
+                agree = false;
+            same = n;
+        }
+        if (agree && same != null) {
+            number[ids.id(dst)] = same;
+            return;
+        }
+        Ir3.RetVal value = table.get(key);
+        if (value != null)
+            number[ids.id(dst)] = ((Ir3.VarRetVal) value).v;
+        else
+            add(key, new Ir3.VarRetVal(dst));
+    }
+
+    // The arguments the phis of succ take from block, on its fall through edge or its conditional one
+    private void renamePhiArgs(Ir3.Block block, Ir3.Block succ, boolean cond) {
+        if (succ == null)
+            return;
+        // When both edges go to the same block, the fall through one is listed first
+        int i = cond ? succ.incoming.lastIndexOf(block) : succ.incoming.indexOf(block);
+        for (Ir3.Stmt stmt : succ.stmts) {
+            if (!(stmt instanceof Ir3.PhiStmt))
+                continue;
+            Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+            if (phi.args.get(i) != null)
+                phi.args.set(i, numberOf(phi.args.get(i)));
+        }
+    }
+
+    // Null for a statement that is not numbered. Variables compare by identity, constants by their
+    // printed form.
+    private List<Object> key(Ir3.Stmt stmt) {
+        if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            if (!(bin.getDst().typ instanceof Ast.IntTyp))
+                return null;
+            Ir3.BinaryOp op = bin.op;
+            Ir3.RetVal a = bin.operand1;
+            Ir3.RetVal b = bin.operand2;
+            if (op == Ir3.BinaryOp.RSB) {
+                op = Ir3.BinaryOp.MINUS;
+                a = bin.operand2;
+                b = bin.operand1;
+            } else if ((op == Ir3.BinaryOp.PLUS || op == Ir3.BinaryOp.MUL) && rank(a) > rank(b)) {
+                a = bin.operand2;
+                b = bin.operand1;
+            }
+            return Arrays.asList(op, operand(a), operand(b));
+        } else if (stmt instanceof Ir3.UnaryStmt) {
+            Ir3.UnaryStmt un = (Ir3.UnaryStmt) stmt;
+            return Arrays.asList(un.op, operand(un.a));
+        } else {
+            Ir3.FieldAccessStmt load = (Ir3.FieldAccessStmt) stmt;
+            if (!(load.target instanceof Ir3.VarRetVal))
+                return null;
+            return loadKey(load.field, ((Ir3.VarRetVal) load.target).v);
+        }
+    }
+
+    private List<Object> loadKey(String field, Ir3.Var target) {
+        return Arrays.asList(field, target, fieldStates.getOrDefault(field, 0), callState);
+    }
+
+    // Orders the operands of the commutative operators, the constants last
+    private int rank(Ir3.RetVal rv) {
+        if (rv instanceof Ir3.VarRetVal)
+            return ids.id(((Ir3.VarRetVal) rv).v);
+        return Integer.MAX_VALUE;
+    }
+
+    private static Object operand(Ir3.RetVal rv) {
+        if (rv instanceof Ir3.VarRetVal)
+            return ((Ir3.VarRetVal) rv).v;
+        return rv.prettyPrint();
+    }
+}
@@ -0,0 +1,349 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+
+// Recompiles successive versions of one program, parsing, checking and lowering again only the
+// classes that changed. A class is reused when its source text is unchanged and so are the
+// signatures of the classes its check looked up, as its check and its IR3 depend on nothing else.
+//
+// The source is split into one chunk per class, from its "class" keyword to the next one. A chunk
+// whose text is unchanged keeps its Ast.Clazz, moved to its new line if needed. The others are
+// parsed on their own.
+//
+// The programs returned share their Ir3.Data and Ir3.Meth objects with the cache, and a later
+// compile rewrites the methods of the changed classes in place. Passes that modify the IR3 must
+// work on a copy, as the optimizations selected by the options do.
+public class IncrementalCompiler {
+    // Prepended to a chunk so that the grammar, which starts with the main class, accepts it
+    private static final String CHUNK_MAIN = "class Chunk{Void main(){return;}}\n";
+
+    private final Options opts;
+    private Map<String, Chunk> chunks = new HashMap<>(); // By text
+    private Map<String, Entry> entries = new HashMap<>();
+    private Map<String, Ir3Generator.ClassCode> code = new HashMap<>();
+    private int reused;
+
+    public IncrementalCompiler(Options opts) {
+        this.opts = opts;
+    }
+
+    public synchronized Ir3.Prog compile(String source) throws Exception {
+        List<Chunk> current = parse(source);
+
+        HashMap<String, byte[]> signatures = new HashMap<>();
+        for (Chunk chunk : current) {
+            signatures.put(chunk.clazz.cname, digest(signature(chunk.clazz)));
+        }
+
+        ArrayList<Ast.Clazz> changed = new ArrayList<>();
+        for (Chunk chunk : current) {
+            Entry entry = entries.get(chunk.clazz.cname);
+            if (entry != null && code.containsKey(chunk.clazz.cname) && entry.matches(chunk.content, signatures))
+                continue;
+            // The check annotates the tree, so a class is only checked once it was freshly parsed
+            if (!chunk.fresh) {
+                Ast.Location location = chunk.clazz.getPosition();
+                chunk.clazz = parseChunk(chunk.text, location.getLine(), location.getColumn(), chunk.first);
+            }
+            changed.add(chunk.clazz);
+        }
+
+        ArrayList<Ast.Clazz> clazzes = new ArrayList<>();
+        for (Chunk chunk : current) {
+            clazzes.add(chunk.clazz);
+        }
+        Ast.Program prog = new Ast.Program(clazzes);
+
+        Map<String, Set<String>> lookups = StaticChecker.run(prog, opts.threads, changed);
+
+        Ir3.Prog ir3Prog;
+        try {
+            Set<Ast.Clazz> lower = Collections.newSetFromMap(new IdentityHashMap<>());
+            lower.addAll(changed);
+            ir3Prog = Ir3Generator.run(prog, opts.threads, code, lower);
+        } catch (RuntimeException | Error e) {
+            // Methods of the cache may have been partly rewritten
+            chunks = new HashMap<>();
+            entries = new HashMap<>();
+            code = new HashMap<>();
+            throw e;
+        }
+
+        HashMap<String, Chunk> newChunks = new HashMap<>();
+        HashMap<String, Entry> newEntries = new HashMap<>();
+        for (Chunk chunk : current) {
+            chunk.fresh = false;
+            newChunks.put(chunk.text, chunk);
+
+            String cname = chunk.clazz.cname;
+            Set<String> deps = lookups.get(cname);
+            if (deps == null) {
+                newEntries.put(cname, entries.get(cname));
+                continue;
+            }
+            HashMap<String, byte[]> depSignatures = new HashMap<>();
+            for (String dep : deps) {
+                depSignatures.put(dep, signatures.get(dep));
+            }
+            newEntries.put(cname, new Entry(chunk.content, depSignatures));
+        }
+
+        chunks = newChunks;
+        entries = newEntries;
+        code = Ir3Generator.codeByClass(prog, ir3Prog);
+        reused = clazzes.size() - changed.size();
+        if (Optimizer.enabled(opts)) {
+            // The passes rewrite the methods, which belong to the cache
+            ir3Prog = Ir3Binary.fromBytes(Ir3Binary.toBytes(ir3Prog));
+            Optimizer.run(ir3Prog, opts);
+        }
+        return ir3Prog;
+    }
+
+    // Number of classes taken from the cache by the last successful compile
+    public synchronized int reusedClasses() {
+        return reused;
+    }
+
+    // Parses the changed chunks only, unless most of them changed. Anything unexpected falls back
+    // to parsing the whole source, which also gives the right syntax errors.
+    private List<Chunk> parse(String source) throws Exception {
+        int[] lineStarts = lineStarts(source);
+        List<Integer> starts = classStarts(source);
+        if (!chunks.isEmpty() && starts != null) {
+            ArrayList<Chunk> current = new ArrayList<>();
+            ArrayList<Chunk> misses = new ArrayList<>();
+            for (int i = 0; i < starts.size(); i++) {
+                int start = i == 0 ? 0 : starts.get(i);
+                int end = i + 1 < starts.size() ? starts.get(i + 1) : source.length();
+                String text = source.substring(start, end);
+
+                Chunk chunk = chunks.get(text);
+                if (chunk != null && chunk.first == (i == 0)) {
+                    // The first chunk starts the source, the others start with their class
+                    if (i > 0 && !moveTo(chunk.clazz, lineStarts, start))
+                        chunk = null;
+                } else {
+                    chunk = null;
+                }
+                if (chunk == null) {
+                    chunk = new Chunk(text, i == 0, null);
+                    chunk.start = start;
+                    misses.add(chunk);
+                }
+                current.add(chunk);
+            }
+
+            if (misses.size() * 2 <= current.size()) {
+                try {
+                    for (Chunk chunk : misses) {
+                        int line = lineOf(lineStarts, chunk.start);
+                        int column = chunk.start - lineStarts[line - 1] + 1;
+                        chunk.clazz = parseChunk(chunk.text, line, column, chunk.first);
+                    }
+                    return current;
+                } catch (Exception e) {
+                    // Reported by the full parse
+                }
+            }
+        }
+
+        Ast.Program prog = Parser.parse(new StringReader(source));
+        ArrayList<Chunk> current = new ArrayList<>();
+        for (int i = 0; i < prog.clazzes.size(); i++) {
+            int start = i == 0 ? 0 : offset(lineStarts, prog.clazzes.get(i));
+            int end = i + 1 < prog.clazzes.size() ? offset(lineStarts, prog.clazzes.get(i + 1)) : source.length();
+            current.add(new Chunk(source.substring(start, end), i == 0, prog.clazzes.get(i)));
+        }
+        return current;
+    }
+
+    // Moves an unchanged class that starts at the given offset to its new line. Only the
+    // declarations are moved, as they are all the checker can report about a class that is not
+    // checked again: the body is parsed again before the class is checked. Returns false if the
+    // class also moved to another column.
+    private static boolean moveTo(Ast.Clazz clazz, int[] lineStarts, int start) {
+        int line = lineOf(lineStarts, start);
+        Ast.Location location = clazz.getPosition();
+        if (location.getColumn() != start - lineStarts[line - 1] + 1)
+            return false;
+        long delta = (long) (line - location.getLine()) << 32;
+        if (delta == 0)
+            return true;
+
+        move(clazz, delta);
+        for (Ast.VarDecl varDecl : clazz.varDecls)
+            move(varDecl, delta);
+        for (Ast.Meth meth : clazz.meths) {
+            move(meth, delta);
+            for (Ast.VarDecl arg : meth.args)
+                move(arg, delta);
+            for (Ast.VarDecl var : meth.vars)
+                move(var, delta);
+        }
+        return true;
+    }
+
+    private static void move(Ast.Locatable node, long delta) {
+        if (node.getPackedPosition() != Ast.Location.NO_POSITION)
+            node.setPackedPosition(node.getPackedPosition() + delta);
+    }
+
+    private static Ast.Clazz parseChunk(String text, int line, int column, boolean first) throws Exception {
+        if (first) {
+            Ast.Program prog = Parser.parse(new StringReader(text));
+            if (prog.clazzes.size() != 1)
+                throw new Exception("chunk with " + prog.clazzes.size() + " classes");
+            return prog.clazzes.get(0);
+        }
+
+        // The line before the chunk holds the main class
+        if (line < 2)
+            throw new Exception("chunk on the first line");
+        StringBuilder sb = new StringBuilder(CHUNK_MAIN);
+        for (int i = 1; i < column; i++)
+            sb.append(' ');
+        sb.append(text);
+        Ast.Program prog = Parser.parse(new StringReader(sb.toString()), line - 2);
+        if (prog.clazzes.size() != 2)
+            throw new Exception("chunk with " + (prog.clazzes.size() - 1) + " classes");
+        return prog.clazzes.get(1);
+    }
+
+    // Offsets of the "class" keywords outside of any braces, comments or strings. Returns null if
+    // the source does not look like a list of classes.
+    private static List<Integer> classStarts(String source) {
+        ArrayList<Integer> starts = new ArrayList<>();
+        int depth = 0;
+        int length = source.length();
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                while (i < length && source.charAt(i) != '\n' && source.charAt(i) != '\r')
+                    i++;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                if (end < 0)
+                    return null;
+                i = end + 1;
+            } else if (c == '"') {
+                for (i++; i < length && source.charAt(i) != '"'; i++) {
+                    char s = source.charAt(i);
+                    if (s == '\n' || s == '\r')
+                        return null;
+                    if (s == '\\')
+                        i++;
+                }
+                if (i >= length)
+                    return null;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                if (--depth < 0)
+                    return null;
+            } else if (depth == 0 && source.startsWith("class", i)
+                       && (i == 0 || !isNameChar(source.charAt(i - 1)))
+                       && (i + 5 == length || !isNameChar(source.charAt(i + 5)))) {
+                starts.add(i);
+                i += 4;
+            }
+        }
+        return starts.isEmpty() || depth != 0 ? null : starts;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // What other classes can see of a class
+    private static String signature(Ast.Clazz clazz) {
+        StringBuilder sb = new StringBuilder();
+        for (Ast.VarDecl varDecl : clazz.varDecls) {
+            sb.append(varDecl.typ.prettyPrint(0)).append(" ").append(varDecl.name).append(";");
+        }
+        for (Ast.Meth meth : clazz.meths) {
+            sb.append(meth.retTyp.prettyPrint(0)).append(" ").append(meth.name).append("(");
+            for (Ast.VarDecl arg : meth.args) {
+                sb.append(arg.typ.prettyPrint(0)).append(",");
+            }
+            sb.append(");");
+        }
+        return sb.toString();
+    }
+
+    // Start offset of every line, with the line terminators of the lexer
+    private static int[] lineStarts(String source) {
+        int[] starts = new int[16];
+        int lines = 1;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\r' && i + 1 < source.length() && source.charAt(i + 1) == '\n')
+                i++;
+            else if (c != '\n' && c != '\r' && c != '\u000B' && c != '\u000C'
+                     && c != '\u0085' && c != '\u2028' && c != '\u2029')
+                continue;
+            if (lines == starts.length)
+                starts = Arrays.copyOf(starts, lines * 2);
+            starts[lines++] = i + 1;
+        }
+        return Arrays.copyOf(starts, lines);
+    }
+
+    // Line (1-based) of an offset
+    private static int lineOf(int[] lineStarts, int offset) {
+        int idx = Arrays.binarySearch(lineStarts, offset);
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    private static int offset(int[] lineStarts, Ast.Clazz clazz) {
+        Ast.Location location = clazz.getPosition();
+        if (location == null)
+            throw new AssertionError("ERR: class without a position");
+        return lineStarts[location.getLine() - 1] + location.getColumn() - 1;
+    }
+
+    private static byte[] digest(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("ERR: SHA-256 is not available", e);
+        }
+    }
+
+    private static class Chunk {
+        private final String text;
+        private final boolean first; // Holds the main class
+        private final byte[] content;
+        private Ast.Clazz clazz;
+        private boolean fresh = true; // Parsed by this compile, not checked yet
+        private int start; // Offset of a chunk not parsed yet
+
+        private Chunk(String text, boolean first, Ast.Clazz clazz) {
+            this.text = text;
+            this.first = first;
+            this.content = digest(text);
+            this.clazz = clazz;
+        }
+    }
+
+    private static class Entry {
+        private final byte[] content;
+        private final Map<String, byte[]> deps; // Signature digest, null for a missing class
+
+        private Entry(byte[] content, Map<String, byte[]> deps) {
+            this.content = content;
+            this.deps = deps;
+        }
+
+        private boolean matches(byte[] content, Map<String, byte[]> signatures) {
+            if (!Arrays.equals(this.content, content))
+                return false;
+            for (Map.Entry<String, byte[]> dep : deps.entrySet()) {
+                if (!Arrays.equals(dep.getValue(), signatures.get(dep.getKey())))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
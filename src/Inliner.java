@@ -0,0 +1,199 @@
+import java.util.*;
+
+// Inlines the calls to small methods over a whole program, bottom up over its call graph
+// (CallGraph), so the callees already hold what was inlined into them. A call is replaced by a copy
+// of the body of its callee on fresh variables: the arguments are assigned to the copies of the
+// parameters, and each return assigns the result and goes to the end of the copy. The locals the
+// callee may read before writing start at their default value, as in a new frame.
+//
+// A call is not inlined into its own strongly connected component, which leaves recursion alone,
+// nor when the callee has more than MAX_CALLEE_SIZE statements, when it would nest inlined bodies
+// more than MAX_DEPTH deep, or when the caller has grown past MAX_CALLER_SIZE statements.
+public class Inliner {
+    public static final int MAX_CALLEE_SIZE = 24;
+    public static final int MAX_DEPTH = 3;
+    public static final int MAX_CALLER_SIZE = 1000;
+
+    private final CallGraph graph;
+    // Nesting of the inlined bodies in each method, 0 for a method no call was inlined into
+    private final IdentityHashMap<Ir3.Meth, Integer> depth = new IdentityHashMap<>();
+    // The locals of each callee it may read before writing, found the first time it is inlined
+    private final IdentityHashMap<Ir3.Meth, ArrayList<Ir3.Var>> readFirst = new IdentityHashMap<>();
+
+    private Inliner(CallGraph graph) {
+        this.graph = graph;
+    }
+
+    public static void run(Ir3.Prog prog) {
+        Inliner inliner = new Inliner(CallGraph.of(prog));
+        for (Ir3.Meth meth : inliner.graph.bottomUp)
+            inliner.inlineCalls(meth);
+    }
+
+    // Statements, labels excluded
+    private static int size(Ir3.Meth meth) {
+        int size = 0;
+        for (Ir3.Block block : meth.blocks)
+            size += block.stmts.size();
+        return size;
+    }
+
+    private boolean inlinable(Ir3.Meth caller, Ir3.Meth callee, int callerSize) {
+        if (graph.sameComponent(caller, callee))
+            return false;
+        int calleeSize = size(callee);
+        if (calleeSize > MAX_CALLEE_SIZE || depth.getOrDefault(callee, 0) + 1 > MAX_DEPTH)
+            return false;
+        return callerSize + calleeSize <= MAX_CALLER_SIZE;
+    }
+
+    private void inlineCalls(Ir3.Meth meth) {
+        int size = size(meth);
+        ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        boolean changed = false;
+        for (Ir3.Block block : meth.blocks) {
+            if (block.label != null)
+                stmts.add(block.label);
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir3.MethodCallStmt) || !inlinable(meth, ((Ir3.MethodCallStmt) stmt).meth, size)) {
+                    stmts.add(stmt);
+                    continue;
+                }
+                Ir3.MethodCallStmt call = (Ir3.MethodCallStmt) stmt;
+                int before = stmts.size();
+                inline(meth, call, stmts);
+                size += stmts.size() - before - 1;
+                depth.put(meth, Math.max(depth.getOrDefault(meth, 0), depth.getOrDefault(call.meth, 0) + 1));
+                changed = true;
+            }
+        }
+        if (changed)
+            CfgBuilder.run(meth, stmts);
+    }
+
+    // Adds the copy of the body of the callee replacing the call to stmts
+    private void inline(Ir3.Meth caller, Ir3.MethodCallStmt call, ArrayList<Ir3.Stmt> stmts) {
+        Ir3.Meth callee = call.meth;
+        IdentityHashMap<Ir3.Var, Ir3.Var> vars = new IdentityHashMap<>();
+        for (Ir3.Var v : callee.args)
+            vars.put(v, caller.freshVar(v.typ, v.name));
+        for (Ir3.Var v : callee.locals)
+            vars.put(v, caller.freshVar(v.typ, v.name));
+        IdentityHashMap<Ir3.LabelStmt, Ir3.LabelStmt> labels = new IdentityHashMap<>();
+        for (Ir3.Block block : callee.blocks) {
+            if (block.label != null)
+                labels.put(block.label, caller.freshLabel());
+        }
+
+        for (int i = 0; i < callee.args.size(); i++)
+            stmts.add(new Ir3.AssignStmt(vars.get(callee.args.get(i)), call.args.get(i)));
+        for (Ir3.Var v : readFirst(callee))
+            stmts.add(new Ir3.AssignStmt(vars.get(v), defaultValue(v.typ)));
+
+        Ir3.LabelStmt end = null;
+        for (int b = 0; b < callee.blocks.size(); b++) {
+            Ir3.Block block = callee.blocks.get(b);
+            if (block.label != null)
+                stmts.add(labels.get(block.label));
+            for (int i = 0; i < block.stmts.size(); i++) {
+                Ir3.Stmt stmt = block.stmts.get(i);
+                if (!(stmt instanceof Ir3.ReturnStmt)) {
+                    stmts.add(copy(stmt, vars, labels));
+                    continue;
+                }
+                Ir3.ReturnStmt ret = (Ir3.ReturnStmt) stmt;
+                if (ret.rv != null && call.getDest() != null)
+                    stmts.add(new Ir3.AssignStmt(call.getDest(), value(ret.rv, vars)));
+                // The last return falls through to the end
+                if (b == callee.blocks.size() - 1 && i == block.stmts.size() - 1)
+                    continue;
+                if (end == null)
+                    end = caller.freshLabel();
+                stmts.add(new Ir3.GotoStmt(end));
+            }
+        }
+        if (end != null)
+            stmts.add(end);
+    }
+
+    private ArrayList<Ir3.Var> readFirst(Ir3.Meth callee) {
+        ArrayList<Ir3.Var> vars = readFirst.get(callee);
+        if (vars != null)
+            return vars;
+        vars = new ArrayList<>();
+        Dataflow.VarIds ids = new Dataflow.VarIds(callee);
+        Liveness live = Liveness.run(callee, ids);
+        Ir3.Block entry = callee.blocks.get(0);
+        for (Ir3.Var v : callee.locals) {
+            int id = ids.id(v);
+            if (id >= 0 && live.in(entry, id))
+                vars.add(v);
+        }
+        readFirst.put(callee, vars);
+        return vars;
+    }
+
+    private static Ir3.RetVal defaultValue(Ast.Typ typ) {
+        if (typ instanceof Ast.IntTyp)
+            return new Ir3.IntRetVal(0);
+        if (typ instanceof Ast.BoolTyp)
+            return new Ir3.BoolRetVal(false);
+        return new Ir3.NullRetVal();
+    }
+
+    private static Ir3.RetVal value(Ir3.RetVal rv, IdentityHashMap<Ir3.Var, Ir3.Var> vars) {
+        if (rv instanceof Ir3.VarRetVal)
+            return new Ir3.VarRetVal(vars.get(((Ir3.VarRetVal) rv).v));
+        return rv;
+    }
+
+    private static ArrayList<Ir3.RetVal> values(List<Ir3.RetVal> rvs, IdentityHashMap<Ir3.Var, Ir3.Var> vars) {
+        ArrayList<Ir3.RetVal> out = new ArrayList<>();
+        for (Ir3.RetVal rv : rvs)
+            out.add(value(rv, vars));
+        return out;
+    }
+
+    // The statement on the variables and labels of the caller. Returns are handled by inline, and
+    // the statements of the later passes never reach here.
+    private static Ir3.Stmt copy(Ir3.Stmt stmt, IdentityHashMap<Ir3.Var, Ir3.Var> vars,
+                                 IdentityHashMap<Ir3.LabelStmt, Ir3.LabelStmt> labels) {
+        if (stmt instanceof Ir3.CmpStmt) {
+            Ir3.CmpStmt cmp = (Ir3.CmpStmt) stmt;
+            return new Ir3.CmpStmt(cmp.op, value(cmp.a, vars), value(cmp.b, vars), labels.get(cmp.label));
+        } else if (stmt instanceof Ir3.GotoStmt) {
+            return new Ir3.GotoStmt(labels.get(((Ir3.GotoStmt) stmt).label));
+        } else if (stmt instanceof Ir3.ReadlnStmt) {
+            return new Ir3.ReadlnStmt(vars.get(((Ir3.ReadlnStmt) stmt).getDst()));
+        } else if (stmt instanceof Ir3.PrintlnStmt) {
+            return new Ir3.PrintlnStmt(value(((Ir3.PrintlnStmt) stmt).rv, vars));
+        } else if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            return new Ir3.BinaryStmt(vars.get(bin.getDst()), bin.op, value(bin.operand1, vars), value(bin.operand2, vars));
+        } else if (stmt instanceof Ir3.UnaryStmt) {
+            Ir3.UnaryStmt un = (Ir3.UnaryStmt) stmt;
+            return new Ir3.UnaryStmt(vars.get(un.getDst()), un.op, value(un.a, vars));
+        } else if (stmt instanceof Ir3.FieldAccessStmt) {
+            Ir3.FieldAccessStmt load = (Ir3.FieldAccessStmt) stmt;
+            return new Ir3.FieldAccessStmt(vars.get(load.getDst()), value(load.target, vars), load.field);
+        } else if (stmt instanceof Ir3.FieldAssignStmt) {
+            Ir3.FieldAssignStmt store = (Ir3.FieldAssignStmt) stmt;
+            return new Ir3.FieldAssignStmt(vars.get(store.dst), store.field, value(store.src, vars));
+        } else if (stmt instanceof Ir3.AssignStmt) {
+            Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+            return new Ir3.AssignStmt(vars.get(assign.getDest()), value(assign.src, vars));
+        } else if (stmt instanceof Ir3.MethodCallStmt) {
+            Ir3.MethodCallStmt call = (Ir3.MethodCallStmt) stmt;
+            Ir3.Var dst = call.getDest() == null ? null : vars.get(call.getDest());
+            return new Ir3.MethodCallStmt(dst, call.meth, values(call.args, vars));
+        } else if (stmt instanceof Ir3.ExternCallStmt) {
+            Ir3.ExternCallStmt call = (Ir3.ExternCallStmt) stmt;
+            Ir3.Var dst = call.getDest() == null ? null : vars.get(call.getDest());
+            return new Ir3.ExternCallStmt(dst, call.target, values(call.args, vars));
+        } else if (stmt instanceof Ir3.NewStmt) {
+            Ir3.NewStmt alloc = (Ir3.NewStmt) stmt;
+            return new Ir3.NewStmt(vars.get(alloc.getDest()), alloc.data);
+        }
+        throw new AssertionError("ERR: cannot inline statement " + stmt.prettyPrint(0).trim());
+    }
+}
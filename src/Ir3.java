@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.function.UnaryOperator;
 import java.math.*;
 
 public class Ir3 {
@@ -6,6 +7,10 @@ public class Ir3 {
         String prettyPrint(int indent);
     }
 
+    public interface VarVisitor {
+        void visit(Ir3.Var v);
+    }
+
     public static void indent(StringBuilder sb, int indent) {
         while (indent > 0) {
             sb.append("  ");
@@ -16,6 +21,9 @@ public class Ir3 {
     public static class Prog {
         public ArrayList<Data> datas;
         public ArrayList<Meth> meths;
+        // Names of what DeadMethods removed, null if it did not run
+        public ArrayList<String> removedMeths;
+        public ArrayList<String> removedDatas;
 
         public Prog(List<Data> datas, List<Meth> meths) {
             this.datas = new ArrayList<>(datas);
@@ -25,6 +33,15 @@ public class Ir3 {
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
             
+            if (removedMeths != null) {
+                sb.append("// Removed ").append(removedMeths.size()).append(" methods unreachable from main");
+                for (int i = 0; i < removedMeths.size(); i++)
+                    sb.append(i == 0 ? ": " : ", ").append(removedMeths.get(i));
+                sb.append("\n// Removed ").append(removedDatas.size()).append(" classes never instantiated");
+                for (int i = 0; i < removedDatas.size(); i++)
+                    sb.append(i == 0 ? ": " : ", ").append(removedDatas.get(i));
+                sb.append("\n\n");
+            }
             sb.append("====== CData3 ======\n\n");
             
             for (Data data : datas) {
@@ -84,10 +101,11 @@ public class Ir3 {
      * Represents a local variable / argument / temporary.
      */
     public static class Var {
-        public boolean stackSpace;
+        public boolean stackSpace; // Lives in its stack slot rather than in a register
         public Ast.Typ typ;
         public String name;
         public int reg = -1;
+        public int stackSlot = -1; // Where it is spilled to and reloaded from
 
         public Var(Ast.Typ typ, String name) {
             this.typ = typ;
@@ -97,6 +115,8 @@ public class Ir3 {
         public String prettyPrint() {
             if (reg >= 0)
                 return name + " {r" + reg + "}";
+            else if (stackSpace)
+                return name + " {s" + stackSlot + "}";
             else
                 return name;
         }
@@ -117,12 +137,64 @@ public class Ir3 {
         public ArrayList<Block> blocksPre;
         public ArrayList<Block> blocksPost;
         public ArrayList<Block> blocksRpost;
+        // Bumped whenever the blocks or their edges change, so analyses cached on the method are
+        // recomputed
+        public int cfgVersion;
+        public Dominators dominators; // Cached by Dominators.of
+        private HashSet<String> varNames; // Taken names, filled on the first fresh variable
+        private HashMap<String, Integer> varSuffixes; // First suffix worth trying for each base
+        private HashSet<String> labelNames;
 
         public Meth(Ast.Typ retTyp, String name) {
             this.retTyp = retTyp;
             this.name = name;
         }
 
+        public void cfgChanged() {
+            cfgVersion++;
+            dominators = null;
+        }
+
+        // A new local named after base, unique in the method
+        public Var freshVar(Ast.Typ typ, String base) {
+            if (varNames == null) {
+                varNames = new HashSet<>();
+                varSuffixes = new HashMap<>();
+                for (Var v : args)
+                    varNames.add(v.name);
+                for (Var v : locals)
+                    varNames.add(v.name);
+            }
+            int ctr = varSuffixes.getOrDefault(base, 1);
+            while (varNames.contains(base + "_" + ctr))
+                ctr++;
+            varSuffixes.put(base, ctr + 1);
+            Var v = new Var(typ, base + "_" + ctr);
+            varNames.add(v.name);
+            locals.add(v);
+            return v;
+        }
+
+        // A new label, unique in the method
+        public LabelStmt freshLabel() {
+            if (labelNames == null) {
+                labelNames = new HashSet<>();
+                for (Block block : blocks) {
+                    if (block.label != null)
+                        labelNames.add(block.label.name);
+                    for (Stmt stmt : block.stmts) {
+                        if (stmt instanceof LabelStmt)
+                            labelNames.add(((LabelStmt) stmt).name);
+                    }
+                }
+            }
+            int ctr = labelNames.size();
+            while (labelNames.contains("L" + ctr))
+                ctr++;
+            labelNames.add("L" + ctr);
+            return new LabelStmt("L" + ctr);
+        }
+
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
             indent(sb, indent);
@@ -138,6 +210,22 @@ public class Ir3 {
                 indent(sb, indent + 1);
                 sb.append(v.typ.prettyPrint(0)).append(" ").append(v.name).append(";\n");
             }
+            // How much register allocation spilled
+            if (stackSpaces != null) {
+                int spills = 0;
+                int reloads = 0;
+                for (Block block : blocks) {
+                    for (Stmt stmt : block.stmts) {
+                        if (stmt instanceof SpillStmt)
+                            spills++;
+                        else if (stmt instanceof ReloadStmt)
+                            reloads++;
+                    }
+                }
+                indent(sb, indent + 1);
+                sb.append("// ").append(stackSpaces.size()).append(" stack slots, ").append(spills).append(" spills, ")
+                  .append(reloads).append(" reloads\n");
+            }
             sb.append("\n");
             for (Block block : blocks) {
                 sb.append(block.prettyPrint(indent + 1));
@@ -150,11 +238,16 @@ public class Ir3 {
         public String prettyPrintCfg() {
             StringBuilder sb = new StringBuilder();
             sb.append("digraph cfg {\n");
+            // Blocks without a label are named by their position
+            IdentityHashMap<Ir3.Block, String> names = new IdentityHashMap<>();
+            for (Ir3.Block b : blocks)
+                names.put(b, b.label != null ? b.label.name : "B" + names.size());
             for (Ir3.Block b : blocks) {
+                sb.append("  ").append(names.get(b)).append(";\n");
                 if (b.out != null)
-                    sb.append("  ").append(b.label.name).append(" -> ").append(b.out.label.name).append(";\n");
+                    sb.append("  ").append(names.get(b)).append(" -> ").append(names.get(b.out)).append(";\n");
                 if (b.outCond != null)
-                    sb.append("  ").append(b.label.name).append(" -> ").append(b.outCond.label.name).append(";\n");
+                    sb.append("  ").append(names.get(b)).append(" -> ").append(names.get(b.outCond)).append(" [label=\"cond\"];\n");
             }
             sb.append("}\n");
             return sb.toString();
@@ -224,6 +317,46 @@ public class Ir3 {
         public void setDef(int i, Ir3.Var v) {
             throw new IndexOutOfBoundsException();
         }
+
+        // Replaces the i-th value of getRetVals
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        // Visits the variables of getUses in the same order, without building the list
+        public void forEachUse(VarVisitor f) {
+            for (Ir3.RetVal rv : getRetVals())
+                visit(rv, f);
+        }
+
+        // Visits the variables of getDefs, skipping the missing result of a call
+        public void forEachDef(VarVisitor f) {
+        }
+
+        protected static void visit(Ir3.RetVal rv, VarVisitor f) {
+            if (rv instanceof Ir3.VarRetVal)
+                f.visit(((Ir3.VarRetVal) rv).v);
+        }
+
+        protected static void visitAll(List<Ir3.Var> vars, VarVisitor f) {
+            for (int i = 0; i < vars.size(); i++) {
+                if (vars.get(i) != null)
+                    f.visit(vars.get(i));
+            }
+        }
+
+        // Replaces every variable the statement reads, the ones of getUses, by its image
+        public void mapUses(UnaryOperator<Ir3.Var> f) {
+            List<Ir3.RetVal> rvs = getRetVals();
+            for (int i = 0; i < rvs.size(); i++) {
+                Ir3.RetVal rv = rvs.get(i);
+                if (!(rv instanceof Ir3.VarRetVal))
+                    continue;
+                Ir3.Var v = f.apply(((Ir3.VarRetVal) rv).v);
+                if (v != ((Ir3.VarRetVal) rv).v)
+                    setRetVal(i, new Ir3.VarRetVal(v));
+            }
+        }
     }
     
     public static abstract class JumpStmt extends Stmt {
@@ -265,6 +398,22 @@ public class Ir3 {
             return Arrays.asList(a, b);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i == 0)
+                a = rv;
+            else if (i == 1)
+                b = rv;
+            else
+                throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(a, f);
+            visit(b, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -313,6 +462,11 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
@@ -339,6 +493,18 @@ public class Ir3 {
             return Arrays.asList(rv);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            this.rv = rv;
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(rv, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -374,11 +540,32 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Arrays.asList(operand1, operand2);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i == 0)
+                operand1 = rv;
+            else if (i == 1)
+                operand2 = rv;
+            else
+                throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(operand1, f);
+            visit(operand2, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -413,11 +600,28 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Arrays.asList(a);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            a = rv;
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(a, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -452,11 +656,28 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Arrays.asList(target);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            target = rv;
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(target, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -482,6 +703,13 @@ public class Ir3 {
             return Arrays.asList(src);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            src = rv;
+        }
+
         @Override
         public ArrayList<Ir3.Var> getUses() {
             ArrayList<Ir3.Var> out = super.getUses();
@@ -489,6 +717,18 @@ public class Ir3 {
             return out;
         }
 
+        @Override
+        public void mapUses(UnaryOperator<Ir3.Var> f) {
+            super.mapUses(f);
+            dst = f.apply(dst);
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(src, f);
+            f.visit(dst);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -521,11 +761,28 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Arrays.asList(src);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            src = rv;
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visit(src, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -546,6 +803,19 @@ public class Ir3 {
             return rv == null ? Collections.emptyList() : Arrays.asList(rv);
         }
 
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            if (i != 0 || rv == null)
+                throw new IndexOutOfBoundsException();
+            this.rv = rv;
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            if (rv != null)
+                visit(rv, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -584,10 +854,26 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<RetVal> getRetVals() {
             return args;
         }
+
+        @Override
+        public void setRetVal(int i, Ir3.RetVal rv) {
+            args.set(i, rv);
+        }
+
+        @Override
+        public void forEachUse(VarVisitor f) {
+            for (int i = 0; i < args.size(); i++)
+                visit(args.get(i), f);
+        }
     }
     public static class MethodCallStmt extends CallStmt {
         public Meth meth;
@@ -658,16 +944,31 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public ArrayList<Ir3.Var> getUses() {
             return new ArrayList<>(srcs);
         }
 
+        @Override
+        public void mapUses(UnaryOperator<Ir3.Var> f) {
+            srcs.replaceAll(f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
         }
 
+        @Override
+        public void forEachUse(VarVisitor f) {
+            visitAll(srcs, f);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -712,6 +1013,11 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
@@ -753,6 +1059,11 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
@@ -771,7 +1082,7 @@ public class Ir3 {
             }
             sb.append(");");
             if (memory)
-                sb.append(' ').append(getDst().stackSpace);
+                sb.append(' ').append(getDst().stackSlot);
             sb.append('\n');
             return sb.toString();
         }
@@ -790,16 +1101,26 @@ public class Ir3 {
             return out;
         }
 
+        @Override
+        public void mapUses(UnaryOperator<Ir3.Var> f) {
+            v = f.apply(v);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
         }
 
+        @Override
+        public void forEachUse(VarVisitor f) {
+            f.visit(v);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
             indent(sb, indent);
-            sb.append("SPILL(").append(v.prettyPrint()).append(", ").append(v.stackSpace).append(");\n");
+            sb.append("SPILL(").append(v.prettyPrint()).append(", ").append(v.stackSlot).append(");\n");
             return sb.toString();
         }
     }
@@ -824,6 +1145,11 @@ public class Ir3 {
             defs.set(i, v);
         }
 
+        @Override
+        public void forEachDef(VarVisitor f) {
+            visitAll(defs, f);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
@@ -833,7 +1159,7 @@ public class Ir3 {
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
             indent(sb, indent);
-            sb.append(getDst().prettyPrint()).append(" = RELOAD(").append(getDst().stackSpace).append(");\n");
+            sb.append(getDst().prettyPrint()).append(" = RELOAD(").append(getDst().stackSlot).append(");\n");
             return sb.toString();
         }
     }
@@ -853,11 +1179,21 @@ public class Ir3 {
             return out;
         }
 
+        @Override
+        public void mapUses(UnaryOperator<Ir3.Var> f) {
+            v = f.apply(v);
+        }
+
         @Override
         public List<Ir3.RetVal> getRetVals() {
             return Collections.emptyList();
         }
 
+        @Override
+        public void forEachUse(VarVisitor f) {
+            f.visit(v);
+        }
+
         @Override
         public String prettyPrint(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -971,7 +1307,10 @@ public class Ir3 {
         MINUS("-"),
         MUL("*"),
         DIV("/"),
-        RSB("RSB");
+        RSB("RSB"),
+        SHL("<<"),
+        SHR(">>"), // Arithmetic
+        USHR(">>>"); // Logical
 
         private final String sym;
 
@@ -1001,5 +1340,23 @@ public class Ir3 {
         public String getSym() {
             return sym;
         }
+
+        // The operator that holds exactly when this one does not
+        public CondOp negate() {
+            switch (this) {
+            case LT:
+                return GE;
+            case GT:
+                return LE;
+            case LE:
+                return GT;
+            case GE:
+                return LT;
+            case EQ:
+                return NE;
+            default:
+                return EQ;
+            }
+        }
     }
 }
@@ -0,0 +1,800 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Binary encoding of Ir3.Prog. Every field of the program is kept, including the register
+// allocation and the control flow graph, so a program can be written at any point of the pipeline
+// and loaded back.
+//
+// The file starts with the magic "IR3B" and the format version. Numbers are var-ints (zigzag for
+// signed values). Strings, variables and labels are defined where they are first used and then
+// referred to by index, so both the writer and the reader work in a single pass over a stream.
+//
+// Usage: Ir3Binary file.ir3b
+// Prints the program stored in the file.
+public class Ir3Binary {
+    private static final byte[] MAGIC = { 'I', 'R', '3', 'B' };
+    public static final int VERSION = 4;
+
+    // Types
+    private static final int T_INT = 1, T_BOOL = 2, T_STRING = 3, T_VOID = 4, T_NULL = 5, T_CLAZZ = 6;
+
+    // Operands
+    private static final int R_NONE = 0, R_STRING = 1, R_INT = 2, R_BOOL = 3, R_NULL = 4, R_VAR = 5;
+
+    // Statements
+    private static final int S_LABEL = 1, S_CMP = 2, S_GOTO = 3, S_READLN = 4, S_PRINTLN = 5, S_BINARY = 6,
+        S_UNARY = 7, S_FIELD_ACCESS = 8, S_FIELD_ASSIGN = 9, S_ASSIGN = 10, S_RETURN = 11, S_METHOD_CALL = 12,
+        S_EXTERN_CALL = 13, S_CALL_PREP = 14, S_NEW = 15, S_PHI = 16, S_SPILL = 17, S_RELOAD = 18,
+        S_STACK_ARGUMENT = 19;
+
+    private Ir3Binary() {}
+
+    public static void main(String[] args) throws Exception {
+        try (InputStream in = new FileInputStream(args[0])) {
+            System.out.print(read(in).prettyPrint(0));
+        }
+    }
+
+    public static void write(Ir3.Prog prog, OutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        writer.writeProg(prog);
+        writer.flush();
+    }
+
+    public static Ir3.Prog read(InputStream in) throws IOException {
+        return new Reader(in).readProg();
+    }
+
+    public static byte[] toBytes(Ir3.Prog prog) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(prog, out);
+        } catch (IOException e) {
+            throw new AssertionError("ERR: writing to memory failed", e);
+        }
+        return out.toByteArray();
+    }
+
+    public static Ir3.Prog fromBytes(byte[] bytes) throws IOException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+
+    public static class Writer {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+
+        private final HashMap<String, Integer> strings = new HashMap<>();
+        private final IdentityHashMap<Ir3.Data, Integer> datas = new IdentityHashMap<>();
+        private final IdentityHashMap<Ir3.Meth, Integer> meths = new IdentityHashMap<>();
+        // Per method
+        private final IdentityHashMap<Ir3.Var, Integer> vars = new IdentityHashMap<>();
+        private final IdentityHashMap<Ir3.LabelStmt, Integer> labels = new IdentityHashMap<>();
+        private final IdentityHashMap<Ir3.Block, Integer> blocks = new IdentityHashMap<>();
+
+        public Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        public void writeProg(Ir3.Prog prog) throws IOException {
+            out.write(MAGIC);
+            writeUInt(VERSION);
+
+            writeUInt(prog.datas.size());
+            for (Ir3.Data data : prog.datas) {
+                datas.put(data, datas.size());
+                writeString(data.cname);
+                writeUInt(data.fields.size());
+                for (Ir3.DataField field : data.fields) {
+                    writeTyp(field.typ);
+                    writeString(field.name);
+                }
+            }
+
+            // The signatures come first, as calls can refer to any method
+            writeUInt(prog.meths.size());
+            for (Ir3.Meth meth : prog.meths) {
+                meths.put(meth, meths.size());
+                writeTyp(meth.retTyp);
+                writeString(meth.name);
+            }
+            for (Ir3.Meth meth : prog.meths) {
+                writeMeth(meth);
+            }
+            writeNames(prog.removedMeths);
+            writeNames(prog.removedDatas);
+        }
+
+        // 0 for null, else the count plus one then the names
+        private void writeNames(ArrayList<String> names) throws IOException {
+            if (names == null) {
+                writeUInt(0);
+                return;
+            }
+            writeUInt(names.size() + 1);
+            for (String name : names)
+                writeString(name);
+        }
+
+        public void flush() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+
+        private void writeMeth(Ir3.Meth meth) throws IOException {
+            vars.clear();
+            labels.clear();
+            blocks.clear();
+
+            if (meth.stackSpaces == null) {
+                writeUInt(0);
+            } else {
+                writeUInt(meth.stackSpaces.size() + 1);
+                for (Boolean b : meth.stackSpaces)
+                    writeUInt(b == null ? 0 : b ? 2 : 1);
+            }
+            writeVars(meth.args);
+            writeVars(meth.locals);
+
+            if (meth.blocks == null) {
+                writeUInt(0);
+                return;
+            }
+            writeUInt(meth.blocks.size() + 1);
+            for (Ir3.Block block : meth.blocks) {
+                blocks.put(block, blocks.size());
+            }
+            for (Ir3.Block block : meth.blocks) {
+                writeLabel(block.label);
+                writeUInt(block.stmts.size());
+                for (Ir3.Stmt stmt : block.stmts)
+                    writeStmt(stmt);
+            }
+            for (Ir3.Block block : meth.blocks) {
+                writeBlock(block.out);
+                writeBlock(block.outCond);
+                writeUInt(block.incoming.size());
+                for (Ir3.Block in : block.incoming)
+                    writeBlock(in);
+                writeSInt(block.postorderIndex);
+            }
+            writeBlocks(meth.blocksPre);
+            writeBlocks(meth.blocksPost);
+            writeBlocks(meth.blocksRpost);
+        }
+
+        private void writeBlocks(List<Ir3.Block> list) throws IOException {
+            if (list == null) {
+                writeUInt(0);
+                return;
+            }
+            writeUInt(list.size() + 1);
+            for (Ir3.Block block : list)
+                writeBlock(block);
+        }
+
+        private void writeBlock(Ir3.Block block) throws IOException {
+            if (block == null) {
+                writeUInt(0);
+                return;
+            }
+            Integer idx = blocks.get(block);
+            if (idx == null)
+                throw new AssertionError("ERR: edge to a block outside of the method");
+            writeUInt(idx + 1);
+        }
+
+        private void writeStmt(Ir3.Stmt stmt) throws IOException {
+            if (stmt instanceof Ir3.LabelStmt) {
+                writeUInt(S_LABEL);
+                writeLabel((Ir3.LabelStmt) stmt);
+            } else if (stmt instanceof Ir3.CmpStmt) {
+                Ir3.CmpStmt cmp = (Ir3.CmpStmt) stmt;
+                writeUInt(S_CMP);
+                writeUInt(cmp.op.ordinal());
+                writeRetVal(cmp.a);
+                writeRetVal(cmp.b);
+                writeLabel(cmp.label);
+            } else if (stmt instanceof Ir3.GotoStmt) {
+                writeUInt(S_GOTO);
+                writeLabel(((Ir3.GotoStmt) stmt).label);
+            } else if (stmt instanceof Ir3.ReadlnStmt) {
+                writeUInt(S_READLN);
+                writeVar(((Ir3.ReadlnStmt) stmt).getDst());
+            } else if (stmt instanceof Ir3.PrintlnStmt) {
+                writeUInt(S_PRINTLN);
+                writeRetVal(((Ir3.PrintlnStmt) stmt).rv);
+            } else if (stmt instanceof Ir3.BinaryStmt) {
+                Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+                writeUInt(S_BINARY);
+                writeVar(bin.getDst());
+                writeUInt(bin.op.ordinal());
+                writeRetVal(bin.operand1);
+                writeRetVal(bin.operand2);
+            } else if (stmt instanceof Ir3.UnaryStmt) {
+                Ir3.UnaryStmt un = (Ir3.UnaryStmt) stmt;
+                writeUInt(S_UNARY);
+                writeVar(un.getDst());
+                writeUInt(un.op.ordinal());
+                writeRetVal(un.a);
+            } else if (stmt instanceof Ir3.FieldAccessStmt) {
+                Ir3.FieldAccessStmt fa = (Ir3.FieldAccessStmt) stmt;
+                writeUInt(S_FIELD_ACCESS);
+                writeVar(fa.getDst());
+                writeRetVal(fa.target);
+                writeString(fa.field);
+            } else if (stmt instanceof Ir3.FieldAssignStmt) {
+                Ir3.FieldAssignStmt fa = (Ir3.FieldAssignStmt) stmt;
+                writeUInt(S_FIELD_ASSIGN);
+                writeVar(fa.dst);
+                writeString(fa.field);
+                writeRetVal(fa.src);
+            } else if (stmt instanceof Ir3.AssignStmt) {
+                Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+                writeUInt(S_ASSIGN);
+                writeVar(assign.getDest());
+                writeRetVal(assign.src);
+            } else if (stmt instanceof Ir3.ReturnStmt) {
+                writeUInt(S_RETURN);
+                writeRetVal(((Ir3.ReturnStmt) stmt).rv);
+            } else if (stmt instanceof Ir3.MethodCallStmt) {
+                Ir3.MethodCallStmt call = (Ir3.MethodCallStmt) stmt;
+                writeUInt(S_METHOD_CALL);
+                writeVar(call.getDest());
+                Integer idx = meths.get(call.meth);
+                if (idx == null)
+                    throw new AssertionError("ERR: call to a method outside of the program: " + call.meth.name);
+                writeUInt(idx);
+                writeRetVals(call.args);
+            } else if (stmt instanceof Ir3.ExternCallStmt) {
+                Ir3.ExternCallStmt call = (Ir3.ExternCallStmt) stmt;
+                writeUInt(S_EXTERN_CALL);
+                writeVar(call.getDest());
+                writeString(call.target);
+                writeRetVals(call.args);
+            } else if (stmt instanceof Ir3.CallPrepStmt) {
+                Ir3.CallPrepStmt prep = (Ir3.CallPrepStmt) stmt;
+                writeUInt(S_CALL_PREP);
+                writeVars(prep.defs);
+                writeVars(prep.srcs);
+            } else if (stmt instanceof Ir3.NewStmt) {
+                Ir3.NewStmt ns = (Ir3.NewStmt) stmt;
+                writeUInt(S_NEW);
+                writeVar(ns.getDest());
+                Integer idx = datas.get(ns.data);
+                if (idx == null)
+                    throw new AssertionError("ERR: new of a class outside of the program: " + ns.data.cname);
+                writeUInt(idx);
+            } else if (stmt instanceof Ir3.PhiStmt) {
+                Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+                writeUInt(S_PHI);
+                writeVar(phi.getDst());
+                writeVar(phi.originalVar);
+                writeVars(phi.args);
+                writeUInt(phi.memory ? 1 : 0);
+            } else if (stmt instanceof Ir3.SpillStmt) {
+                writeUInt(S_SPILL);
+                writeVar(((Ir3.SpillStmt) stmt).v);
+            } else if (stmt instanceof Ir3.ReloadStmt) {
+                writeUInt(S_RELOAD);
+                writeVar(((Ir3.ReloadStmt) stmt).getDst());
+            } else if (stmt instanceof Ir3.StackArgument) {
+                Ir3.StackArgument arg = (Ir3.StackArgument) stmt;
+                writeUInt(S_STACK_ARGUMENT);
+                writeVar(arg.v);
+                writeSInt(arg.index);
+            } else {
+                throw new AssertionError("ERR: unknown statement " + stmt.getClass().getName());
+            }
+        }
+
+        private void writeRetVals(List<Ir3.RetVal> rvs) throws IOException {
+            writeUInt(rvs.size());
+            for (Ir3.RetVal rv : rvs)
+                writeRetVal(rv);
+        }
+
+        private void writeRetVal(Ir3.RetVal rv) throws IOException {
+            if (rv == null) {
+                writeUInt(R_NONE);
+            } else if (rv instanceof Ir3.StringRetVal) {
+                writeUInt(R_STRING);
+                writeString(((Ir3.StringRetVal) rv).str);
+            } else if (rv instanceof Ir3.IntRetVal) {
+                writeUInt(R_INT);
+                writeSInt(((Ir3.IntRetVal) rv).i);
+            } else if (rv instanceof Ir3.BoolRetVal) {
+                writeUInt(R_BOOL);
+                writeUInt(((Ir3.BoolRetVal) rv).b ? 1 : 0);
+            } else if (rv instanceof Ir3.NullRetVal) {
+                writeUInt(R_NULL);
+            } else if (rv instanceof Ir3.VarRetVal) {
+                writeUInt(R_VAR);
+                writeVar(((Ir3.VarRetVal) rv).v);
+            } else {
+                throw new AssertionError("ERR: unknown operand " + rv.getClass().getName());
+            }
+        }
+
+        private void writeVars(List<Ir3.Var> list) throws IOException {
+            if (list == null) {
+                writeUInt(0);
+                return;
+            }
+            writeUInt(list.size() + 1);
+            for (Ir3.Var v : list)
+                writeVar(v);
+        }
+
+        // 0 for null, the index + 1 of a known variable, or the next index followed by the variable
+        private void writeVar(Ir3.Var v) throws IOException {
+            if (v == null) {
+                writeUInt(0);
+                return;
+            }
+            Integer idx = vars.get(v);
+            if (idx != null) {
+                writeUInt(idx + 1);
+                return;
+            }
+            vars.put(v, vars.size());
+            writeUInt(vars.size());
+            writeTyp(v.typ);
+            writeString(v.name);
+            writeSInt(v.reg);
+            writeUInt(v.stackSpace ? 1 : 0);
+            writeSInt(v.stackSlot);
+        }
+
+        private void writeLabel(Ir3.LabelStmt label) throws IOException {
+            if (label == null) {
+                writeUInt(0);
+                return;
+            }
+            Integer idx = labels.get(label);
+            if (idx != null) {
+                writeUInt(idx + 1);
+                return;
+            }
+            labels.put(label, labels.size());
+            writeUInt(labels.size());
+            writeString(label.name);
+        }
+
+        private void writeTyp(Ast.Typ typ) throws IOException {
+            if (typ == null) {
+                writeUInt(0);
+            } else if (typ instanceof Ast.IntTyp) {
+                writeUInt(T_INT);
+            } else if (typ instanceof Ast.BoolTyp) {
+                writeUInt(T_BOOL);
+            } else if (typ instanceof Ast.StringTyp) {
+                writeUInt(T_STRING);
+            } else if (typ instanceof Ast.VoidTyp) {
+                writeUInt(T_VOID);
+            } else if (typ instanceof Ast.NullTyp) {
+                writeUInt(T_NULL);
+            } else if (typ instanceof Ast.ClazzTyp) {
+                writeUInt(T_CLAZZ);
+                writeString(((Ast.ClazzTyp) typ).cname);
+            } else {
+                throw new AssertionError("ERR: unexpected type in IR3: " + typ.prettyPrint(0));
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                writeUInt(0);
+                return;
+            }
+            Integer idx = strings.get(s);
+            if (idx != null) {
+                writeUInt(idx + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            writeUInt(strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeUInt(bytes.length);
+            if (pos + bytes.length > buf.length) {
+                out.write(buf, 0, pos);
+                pos = 0;
+                if (bytes.length > buf.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private void writeSInt(int v) throws IOException {
+            writeUInt((v << 1) ^ (v >> 31));
+        }
+
+        private void writeUInt(int v) throws IOException {
+            if (pos + 5 > buf.length) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            while ((v & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+    }
+
+    public static class Reader {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+        private int limit;
+
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final ArrayList<Ir3.Data> datas = new ArrayList<>();
+        private final ArrayList<Ir3.Meth> meths = new ArrayList<>();
+        // Per method
+        private final ArrayList<Ir3.Var> vars = new ArrayList<>();
+        private final ArrayList<Ir3.LabelStmt> labels = new ArrayList<>();
+        private final ArrayList<Ir3.Block> blocks = new ArrayList<>();
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        public Ir3.Prog readProg() throws IOException {
+            for (byte b : MAGIC) {
+                if (readByte() != b)
+                    throw new IOException("not a binary IR3 file");
+            }
+            int version = readUInt();
+            if (version != VERSION)
+                throw new IOException("unsupported binary IR3 version " + version + ", expected " + VERSION);
+
+            int numDatas = readUInt();
+            for (int i = 0; i < numDatas; i++) {
+                String cname = readString();
+                int numFields = readUInt();
+                ArrayList<Ir3.DataField> fields = new ArrayList<>();
+                for (int j = 0; j < numFields; j++) {
+                    Ast.Typ typ = readTyp();
+                    fields.add(new Ir3.DataField(typ, readString()));
+                }
+                datas.add(new Ir3.Data(cname, fields));
+            }
+
+            int numMeths = readUInt();
+            for (int i = 0; i < numMeths; i++) {
+                Ast.Typ retTyp = readTyp();
+                meths.add(new Ir3.Meth(retTyp, readString()));
+            }
+            for (Ir3.Meth meth : meths) {
+                readMeth(meth);
+            }
+            Ir3.Prog prog = new Ir3.Prog(datas, meths);
+            prog.removedMeths = readNames();
+            prog.removedDatas = readNames();
+            return prog;
+        }
+
+        private ArrayList<String> readNames() throws IOException {
+            int size = readUInt();
+            if (size == 0)
+                return null;
+            ArrayList<String> names = new ArrayList<>();
+            for (int i = 0; i < size - 1; i++)
+                names.add(readString());
+            return names;
+        }
+
+        private void readMeth(Ir3.Meth meth) throws IOException {
+            vars.clear();
+            labels.clear();
+            blocks.clear();
+
+            int numStackSpaces = readUInt();
+            if (numStackSpaces > 0) {
+                meth.stackSpaces = new ArrayList<>();
+                for (int i = 0; i < numStackSpaces - 1; i++) {
+                    int b = readUInt();
+                    meth.stackSpaces.add(b == 0 ? null : b == 2);
+                }
+            }
+            meth.args = readVars();
+            meth.locals = readVars();
+
+            int numBlocks = readUInt();
+            if (numBlocks == 0)
+                return;
+            meth.blocks = new ArrayList<>();
+            for (int i = 0; i < numBlocks - 1; i++) {
+                Ir3.LabelStmt label = readLabel();
+                int numStmts = readUInt();
+                ArrayList<Ir3.Stmt> stmts = new ArrayList<>(numStmts);
+                for (int j = 0; j < numStmts; j++)
+                    stmts.add(readStmt());
+                Ir3.Block block = new Ir3.Block(stmts);
+                block.label = label;
+                meth.blocks.add(block);
+                blocks.add(block);
+            }
+            for (Ir3.Block block : meth.blocks) {
+                block.out = readBlock();
+                block.outCond = readBlock();
+                int numIncoming = readUInt();
+                for (int i = 0; i < numIncoming; i++)
+                    block.incoming.add(readBlock());
+                block.postorderIndex = readSInt();
+            }
+            meth.blocksPre = readBlocks();
+            meth.blocksPost = readBlocks();
+            meth.blocksRpost = readBlocks();
+        }
+
+        private ArrayList<Ir3.Block> readBlocks() throws IOException {
+            int size = readUInt();
+            if (size == 0)
+                return null;
+            ArrayList<Ir3.Block> list = new ArrayList<>(size - 1);
+            for (int i = 0; i < size - 1; i++)
+                list.add(readBlock());
+            return list;
+        }
+
+        private Ir3.Block readBlock() throws IOException {
+            int idx = readUInt();
+            if (idx == 0)
+                return null;
+            if (idx > blocks.size())
+                throw new IOException("block index " + idx + " out of range");
+            return blocks.get(idx - 1);
+        }
+
+        private Ir3.Stmt readStmt() throws IOException {
+            int tag = readUInt();
+            switch (tag) {
+            case S_LABEL:
+                return readLabel();
+            case S_CMP: {
+                Ir3.CondOp op = readEnum(Ir3.CondOp.values());
+                Ir3.RetVal a = readRetVal();
+                Ir3.RetVal b = readRetVal();
+                return new Ir3.CmpStmt(op, a, b, readLabel());
+            }
+            case S_GOTO:
+                return new Ir3.GotoStmt(readLabel());
+            case S_READLN:
+                return new Ir3.ReadlnStmt(readVar());
+            case S_PRINTLN:
+                return new Ir3.PrintlnStmt(readRetVal());
+            case S_BINARY: {
+                Ir3.Var dst = readVar();
+                Ir3.BinaryOp op = readEnum(Ir3.BinaryOp.values());
+                Ir3.RetVal a = readRetVal();
+                return new Ir3.BinaryStmt(dst, op, a, readRetVal());
+            }
+            case S_UNARY: {
+                Ir3.Var dst = readVar();
+                Ir3.UnaryOp op = readEnum(Ir3.UnaryOp.values());
+                return new Ir3.UnaryStmt(dst, op, readRetVal());
+            }
+            case S_FIELD_ACCESS: {
+                Ir3.Var dst = readVar();
+                Ir3.RetVal target = readRetVal();
+                return new Ir3.FieldAccessStmt(dst, target, readString());
+            }
+            case S_FIELD_ASSIGN: {
+                Ir3.Var dst = readVar();
+                String field = readString();
+                return new Ir3.FieldAssignStmt(dst, field, readRetVal());
+            }
+            case S_ASSIGN: {
+                Ir3.Var dst = readVar();
+                return new Ir3.AssignStmt(dst, readRetVal());
+            }
+            case S_RETURN:
+                return new Ir3.ReturnStmt(readRetVal());
+            case S_METHOD_CALL: {
+                Ir3.Var dst = readVar();
+                int idx = readUInt();
+                if (idx >= meths.size())
+                    throw new IOException("method index " + idx + " out of range");
+                return new Ir3.MethodCallStmt(dst, meths.get(idx), readRetVals());
+            }
+            case S_EXTERN_CALL: {
+                Ir3.Var dst = readVar();
+                String target = readString();
+                return new Ir3.ExternCallStmt(dst, target, readRetVals());
+            }
+            case S_CALL_PREP: {
+                Ir3.CallPrepStmt prep = new Ir3.CallPrepStmt();
+                prep.defs = readVars();
+                prep.srcs = readVars();
+                return prep;
+            }
+            case S_NEW: {
+                Ir3.Var dst = readVar();
+                int idx = readUInt();
+                if (idx >= datas.size())
+                    throw new IOException("class index " + idx + " out of range");
+                return new Ir3.NewStmt(dst, datas.get(idx));
+            }
+            case S_PHI: {
+                Ir3.Var dst = readVar();
+                Ir3.Var originalVar = readVar();
+                ArrayList<Ir3.Var> args = readVars();
+                Ir3.PhiStmt phi = new Ir3.PhiStmt(dst, 0);
+                phi.originalVar = originalVar;
+                phi.args = args;
+                phi.memory = readUInt() != 0;
+                return phi;
+            }
+            case S_SPILL:
+                return new Ir3.SpillStmt(readVar());
+            case S_RELOAD:
+                return new Ir3.ReloadStmt(readVar());
+            case S_STACK_ARGUMENT: {
+                Ir3.Var v = readVar();
+                return new Ir3.StackArgument(v, readSInt());
+            }
+            default:
+                throw new IOException("unknown statement tag " + tag);
+            }
+        }
+
+        private ArrayList<Ir3.RetVal> readRetVals() throws IOException {
+            int size = readUInt();
+            ArrayList<Ir3.RetVal> rvs = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                rvs.add(readRetVal());
+            return rvs;
+        }
+
+        private Ir3.RetVal readRetVal() throws IOException {
+            int tag = readUInt();
+            switch (tag) {
+            case R_NONE:
+                return null;
+            case R_STRING:
+                return new Ir3.StringRetVal(readString());
+            case R_INT:
+                return new Ir3.IntRetVal(readSInt());
+            case R_BOOL:
+                return new Ir3.BoolRetVal(readUInt() != 0);
+            case R_NULL:
+                return new Ir3.NullRetVal();
+            case R_VAR:
+                return new Ir3.VarRetVal(readVar());
+            default:
+                throw new IOException("unknown operand tag " + tag);
+            }
+        }
+
+        private ArrayList<Ir3.Var> readVars() throws IOException {
+            int size = readUInt();
+            if (size == 0)
+                return null;
+            ArrayList<Ir3.Var> list = new ArrayList<>(size - 1);
+            for (int i = 0; i < size - 1; i++)
+                list.add(readVar());
+            return list;
+        }
+
+        private Ir3.Var readVar() throws IOException {
+            int idx = readUInt();
+            if (idx == 0)
+                return null;
+            if (idx <= vars.size())
+                return vars.get(idx - 1);
+            if (idx != vars.size() + 1)
+                throw new IOException("variable index " + idx + " out of range");
+            Ast.Typ typ = readTyp();
+            Ir3.Var v = new Ir3.Var(typ, readString());
+            v.reg = readSInt();
+            v.stackSpace = readUInt() != 0;
+            v.stackSlot = readSInt();
+            vars.add(v);
+            return v;
+        }
+
+        private Ir3.LabelStmt readLabel() throws IOException {
+            int idx = readUInt();
+            if (idx == 0)
+                return null;
+            if (idx <= labels.size())
+                return labels.get(idx - 1);
+            if (idx != labels.size() + 1)
+                throw new IOException("label index " + idx + " out of range");
+            Ir3.LabelStmt label = new Ir3.LabelStmt(readString());
+            labels.add(label);
+            return label;
+        }
+
+        private Ast.Typ readTyp() throws IOException {
+            int tag = readUInt();
+            switch (tag) {
+            case 0:
+                return null;
+            case T_INT:
+                return new Ast.IntTyp();
+            case T_BOOL:
+                return new Ast.BoolTyp();
+            case T_STRING:
+                return new Ast.StringTyp();
+            case T_VOID:
+                return new Ast.VoidTyp();
+            case T_NULL:
+                return new Ast.NullTyp();
+            case T_CLAZZ:
+                return new Ast.ClazzTyp(readString());
+            default:
+                throw new IOException("unknown type tag " + tag);
+            }
+        }
+
+        private <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            int ordinal = readUInt();
+            if (ordinal >= values.length)
+                throw new IOException("unknown " + values[0].getDeclaringClass().getSimpleName() + " " + ordinal);
+            return values[ordinal];
+        }
+
+        private String readString() throws IOException {
+            int idx = readUInt();
+            if (idx == 0)
+                return null;
+            if (idx <= strings.size())
+                return strings.get(idx - 1);
+            if (idx != strings.size() + 1)
+                throw new IOException("string index " + idx + " out of range");
+            int length = readUInt();
+            byte[] bytes = new byte[length];
+            int off = 0;
+            while (off < length) {
+                if (pos == limit)
+                    fill();
+                int n = Math.min(length - off, limit - pos);
+                System.arraycopy(buf, pos, bytes, off, n);
+                pos += n;
+                off += n;
+            }
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        private int readSInt() throws IOException {
+            int v = readUInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private int readUInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("malformed var-int");
+        }
+
+        private int readByte() throws IOException {
+            if (pos == limit)
+                fill();
+            return buf[pos++];
+        }
+
+        private void fill() throws IOException {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("truncated binary IR3");
+            }
+        }
+    }
+}
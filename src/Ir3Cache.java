@@ -0,0 +1,145 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+
+// Directory of compiled programs, keyed by a hash of the source bytes, the compiler version and
+// the options that change the output. Several processes can share the directory: entries are
+// written to a temporary file and renamed into place, so a reader sees either no entry or a
+// complete one. When the directory grows over its size, the least recently used entries are
+// removed. A hit refreshes the modification time of its entry. Entries are stored in the format
+// of Ir3Binary.
+public class Ir3Cache {
+    private static final String SUFFIX = ".ir3";
+    private static final String TMP_SUFFIX = ".tmp";
+    // Temporary files older than this were left by a process that died while writing
+    private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+    // The directory is listed again after this many writes, to see what other processes wrote
+    private static final int RESCAN_PUTS = 64;
+
+    private final Path dir;
+    private final long maxBytes;
+    private long estimate = -1; // Size of the directory, -1 until it is listed
+    private int puts;
+
+    public Ir3Cache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    // The cache of the options, null if they do not name a cache directory
+    public static Ir3Cache open(Options opts) throws IOException {
+        if (opts.cacheDir == null)
+            return null;
+        return new Ir3Cache(Paths.get(opts.cacheDir), opts.cacheSize);
+    }
+
+    // The source is decoded with the given charset
+    public static String key(byte[] source, Charset charset, Options opts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            String header = Compiler.VERSION + "\0" + charset.name() + "\0" + opts.fingerprint() + "\0";
+            md.update(header.getBytes(StandardCharsets.UTF_8));
+            md.update(source);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("ERR: SHA-256 is not available", e);
+        }
+    }
+
+    // Returns the program, or null on a miss
+    public Ir3.Prog get(String key) {
+        Path entry = dir.resolve(key + SUFFIX);
+        Ir3.Prog prog;
+        try (InputStream in = Files.newInputStream(entry)) {
+            prog = Ir3Binary.read(in);
+        } catch (IOException e) {
+            // Missing, evicted by another process meanwhile, or written by another version
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted since it was read
+        }
+        return prog;
+    }
+
+    public void put(String key, Ir3.Prog prog) throws IOException {
+        Path tmp = Files.createTempFile(dir, key, TMP_SUFFIX);
+        long size;
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                Ir3Binary.write(prog, out);
+            }
+            size = Files.size(tmp);
+            Files.move(tmp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        synchronized (this) {
+            if (estimate >= 0 && ++puts % RESCAN_PUTS != 0) {
+                estimate += size;
+                if (estimate <= maxBytes)
+                    return;
+            }
+            evict();
+        }
+    }
+
+    // put for a compiler holding a program it compiled: the cache is only an optimization, so a
+    // failed write is a warning on stderr rather than a failed compile
+    public void tryPut(String key, Ir3.Prog prog) {
+        try {
+            put(key, prog);
+        } catch (Exception | AssertionError e) {
+            System.err.println("warning: cannot write cache entry " + key + ": " + e);
+        }
+    }
+
+    // Removes the least recently used entries until the directory fits in its size
+    private void evict() throws IOException {
+        ArrayList<Path> entries = new ArrayList<>();
+        HashMap<Path, Long> sizes = new HashMap<>();
+        HashMap<Path, Long> times = new HashMap<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long time = Files.getLastModifiedTime(path).toMillis();
+                    if (name.endsWith(TMP_SUFFIX)) {
+                        if (now - time > STALE_TMP_MILLIS)
+                            Files.deleteIfExists(path);
+                    } else if (name.endsWith(SUFFIX)) {
+                        long size = Files.size(path);
+                        entries.add(path);
+                        sizes.put(path, size);
+                        times.put(path, time);
+                        total += size;
+                    }
+                } catch (NoSuchFileException e) {
+                    // Removed by another process
+                }
+            }
+        }
+        if (total > maxBytes) {
+            entries.sort(Comparator.comparing(times::get));
+            for (Path path : entries) {
+                if (total <= maxBytes)
+                    break;
+                Files.deleteIfExists(path);
+                total -= sizes.get(path);
+            }
+        }
+        estimate = total;
+    }
+}
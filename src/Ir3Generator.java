@@ -1,30 +1,46 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class Ir3Generator {
     private ArrayList<Ir3.Data> datas = new ArrayList<>();
     private ArrayList<Ir3.Meth> meths = new ArrayList<>();
 
-    private HashMap<String, Ir3.Data> dataMap = new HashMap<>();
+    private final HashMap<String, Ir3.Data> dataMap;
 
+    // Filed with ALL methods of ALL classes
+    private final IdentityHashMap<Ast.Meth, Ir3.Meth> meth2Meth;
+
+    // Per-method state. Every method body is lowered by its own Ir3Generator (its lowering
+    // context), which shares dataMap and meth2Meth with the program-level generator. Those two
+    // are only read once the stubs are created, so method bodies can be lowered concurrently.
     private IdentityHashMap<Ast.VarDecl, Ir3.Var> decl2Var; // For args and locals
     private IdentityHashMap<Ast.VarDecl, String> decl2Field; // For fields
 
-    // Filed with ALL methods of ALL classes
-    private IdentityHashMap<Ast.Meth, Ir3.Meth> meth2Meth = new IdentityHashMap<>();
-
     // The var used for "this"
     private Ir3.Var thisVar;
     private ArrayList<Ir3.Var> ir3Locals; // Locals and temporaries
     private int tmpCounter;
     private int labelCounter;
 
+    private Ir3Generator() {
+        this.dataMap = new HashMap<>();
+        this.meth2Meth = new IdentityHashMap<>();
+    }
+
+    private Ir3Generator(Ir3Generator prog, IdentityHashMap<Ast.VarDecl, String> decl2Field) {
+        this.dataMap = prog.dataMap;
+        this.meth2Meth = prog.meth2Meth;
+        this.decl2Field = decl2Field;
+    }
+
     public static void main(String[] args) throws Exception {
-        Ast.Program prog = Parser.parse(new BufferedReader(new FileReader(args[0])));
+        Options opts = Options.parse(args);
+        Ast.Program prog = Parser.parse(MappedSourceReader.open(opts.files.get(0)));
         System.out.println("Running the checker...");
         System.out.println();
         try {
-            StaticChecker.run(prog);
+            StaticChecker.run(prog, opts.threads);
         } catch (StaticChecker.SemanticErrors e) {
             for (StaticChecker.SemanticError err : e.getErrors()) {
                 System.err.println("error:" + err.location + ": " + err.getMessage());
@@ -36,7 +52,8 @@ public class Ir3Generator {
         System.out.println("Generating Ir3 code...");
         System.out.println();
         
-        Ir3.Prog irProg = run(prog);
+        Ir3.Prog irProg = run(prog, opts.threads);
+        Optimizer.run(irProg, opts);
         
         System.out.println();
         System.out.println("//////////////// LITTLEJAVA PROGRAM ////////////////");
@@ -50,6 +67,18 @@ public class Ir3Generator {
     }
 
     public static Ir3.Prog run(Ast.Program prog) {
+        return run(prog, 1);
+    }
+
+    public static Ir3.Prog run(Ast.Program prog, int threads) {
+        return run(prog, threads, Collections.emptyMap(), new HashSet<>(prog.clazzes));
+    }
+
+    // Lowers only the classes in lower. The code of every other class is taken from previous, the
+    // result of an earlier run by class name. The Ir3.Data and Ir3.Meth objects of previous are
+    // kept whenever the class layout and the method name and return type are unchanged, so the
+    // code reused from previous, which refers to them, stays valid.
+    public static Ir3.Prog run(Ast.Program prog, int threads, Map<String, ClassCode> previous, Set<Ast.Clazz> lower) {
         Ir3Generator translator = new Ir3Generator();
 
         // Create data
@@ -59,12 +88,23 @@ public class Ir3Generator {
                 fields.add(new Ir3.DataField(varDecl.typ, varDecl.name));
             }
             Ir3.Data irData = new Ir3.Data(clazz.cname, fields);
+            ClassCode old = previous.get(clazz.cname);
+            if (old != null && sameFields(old.data, irData))
+                irData = old.data;
+            else if (!lower.contains(clazz))
+                throw new AssertionError("ERR: no code to reuse for class " + clazz.cname);
             translator.datas.add(irData);
             translator.dataMap.put(clazz.cname, irData);
         }
 
         // Fill in stub methods, while generating unique names for them
         for (Ast.Clazz clazz : prog.clazzes) {
+            HashMap<String, Ir3.Meth> oldMeths = new HashMap<>();
+            if (previous.containsKey(clazz.cname)) {
+                for (Ir3.Meth ir3Meth : previous.get(clazz.cname).meths)
+                    oldMeths.put(ir3Meth.name, ir3Meth);
+            }
+
             Set<String> processedNames = new HashSet<>();
             for (Ast.Meth meth : clazz.meths) {
                 String name;
@@ -82,93 +122,158 @@ public class Ir3Generator {
                     name = "%" + clazz.cname + "_" + meth.name;
                 }
 
-                translator.meth2Meth.put(meth, new Ir3.Meth(meth.retTyp, name));
+                Ir3.Meth ir3Meth = oldMeths.remove(name);
+                if (ir3Meth == null || !ir3Meth.retTyp.equals(meth.retTyp)) {
+                    if (!lower.contains(clazz))
+                        throw new AssertionError("ERR: no code to reuse for method " + name);
+                    ir3Meth = new Ir3.Meth(meth.retTyp, name);
+                }
+                translator.meth2Meth.put(meth, ir3Meth);
             }
         }
 
-        for (Ast.Clazz clazz : prog.clazzes) {
-            translator.runClass(clazz);
+        if (threads <= 1) {
+            for (Ast.Clazz clazz : prog.clazzes) {
+                if (lower.contains(clazz)) {
+                    translator.runClass(clazz);
+                } else {
+                    for (Ast.Meth meth : clazz.meths)
+                        translator.meths.add(translator.meth2Meth.get(meth));
+                }
+            }
+        } else {
+            // Lower every method body as a separate task
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (Ast.Clazz clazz : prog.clazzes) {
+                    IdentityHashMap<Ast.VarDecl, String> decl2Field = fieldsOf(clazz);
+                    for (Ast.Meth meth : clazz.meths) {
+                        translator.meths.add(translator.meth2Meth.get(meth));
+                        if (lower.contains(clazz))
+                            tasks.add(pool.submit(() -> new Ir3Generator(translator, decl2Field).runMeth(clazz, meth)));
+                    }
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            } finally {
+                pool.shutdown();
+            }
         }
 
         return new Ir3.Prog(translator.datas, translator.meths);
     }
 
-    private void runClass(Ast.Clazz clazz) {
+    // Splits a program lowered by run into the code of each class, in class order
+    public static Map<String, ClassCode> codeByClass(Ast.Program prog, Ir3.Prog ir3Prog) {
+        HashMap<String, ClassCode> code = new HashMap<>();
+        int methIdx = 0;
+        for (int i = 0; i < prog.clazzes.size(); i++) {
+            Ast.Clazz clazz = prog.clazzes.get(i);
+            List<Ir3.Meth> meths = ir3Prog.meths.subList(methIdx, methIdx + clazz.meths.size());
+            code.put(clazz.cname, new ClassCode(ir3Prog.datas.get(i), new ArrayList<>(meths)));
+            methIdx += clazz.meths.size();
+        }
+        return code;
+    }
+
+    private static boolean sameFields(Ir3.Data a, Ir3.Data b) {
+        if (a.fields.size() != b.fields.size())
+            return false;
+        for (int i = 0; i < a.fields.size(); i++) {
+            Ir3.DataField fa = a.fields.get(i);
+            Ir3.DataField fb = b.fields.get(i);
+            if (!fa.name.equals(fb.name) || !fa.typ.equals(fb.typ))
+                return false;
+        }
+        return true;
+    }
+
+    private static IdentityHashMap<Ast.VarDecl, String> fieldsOf(Ast.Clazz clazz) {
         // save all the class variable declarations
-        decl2Field = new IdentityHashMap<>();
+        IdentityHashMap<Ast.VarDecl, String> decl2Field = new IdentityHashMap<>();
         for (Ast.VarDecl varDecl : clazz.varDecls) {
             decl2Field.put(varDecl, varDecl.name);
         }
+        return decl2Field;
+    }
+
+    private void runClass(Ast.Clazz clazz) {
+        IdentityHashMap<Ast.VarDecl, String> decl2Field = fieldsOf(clazz);
 
         // Process methods
         for (Ast.Meth meth : clazz.meths) {
-            Ir3.Meth ir3Meth = meth2Meth.get(meth);
-            meths.add(ir3Meth);
-
-            tmpCounter = 0;
-            labelCounter = 0;
-            decl2Var = new IdentityHashMap<>();
-            ArrayList<Ir3.Var> ir3Args = new ArrayList<>();
-            ir3Locals = new ArrayList<>();
-            Set<String> processedNames = new HashSet<>();
-
-            thisVar = new Ir3.Var(new Ast.ClazzTyp(clazz.cname), "this");
-            ir3Args.add(thisVar);
-
-            // Generate arguments
-            for (Ast.VarDecl arg : meth.args) {
-                Ir3.Var ir3Var = new Ir3.Var(arg.typ, arg.name);
-                ir3Args.add(ir3Var);
-                decl2Var.put(arg, ir3Var);
-                processedNames.add(arg.name);
-            }
+            meths.add(meth2Meth.get(meth));
+            new Ir3Generator(this, decl2Field).runMeth(clazz, meth);
+        }
+    }
 
-            // Generate local variables
-            for (Ast.VarDecl v : meth.vars) {
-                String name = v.name;
-                if (processedNames.contains(name)) {
-                    int ctr = 2;
-                    while (processedNames.contains(name + "__" + ctr))
-                        ctr++;
-                    String newName = name + "__" + ctr;
-                    processedNames.add(newName);
-                    processedNames.add(name);
-                    name = newName;
-                } else {
-                    processedNames.add(name);
-                }
+    private void runMeth(Ast.Clazz clazz, Ast.Meth meth) {
+        Ir3.Meth ir3Meth = meth2Meth.get(meth);
+
+        tmpCounter = 0;
+        labelCounter = 0;
+        decl2Var = new IdentityHashMap<>();
+        ArrayList<Ir3.Var> ir3Args = new ArrayList<>();
+        ir3Locals = new ArrayList<>();
+        Set<String> processedNames = new HashSet<>();
+
+        thisVar = new Ir3.Var(new Ast.ClazzTyp(clazz.cname), "this");
+        ir3Args.add(thisVar);
+
+        // Generate arguments
+        for (Ast.VarDecl arg : meth.args) {
+            Ir3.Var ir3Var = new Ir3.Var(arg.typ, arg.name);
+            ir3Args.add(ir3Var);
+            decl2Var.put(arg, ir3Var);
+            processedNames.add(arg.name);
+        }
 
-                Ir3.Var ir3Var = new Ir3.Var(v.typ, name);
-                ir3Locals.add(ir3Var);
-                decl2Var.put(v, ir3Var);
+        // Generate local variables
+        for (Ast.VarDecl v : meth.vars) {
+            String name = v.name;
+            if (processedNames.contains(name)) {
+                int ctr = 2;
+                while (processedNames.contains(name + "__" + ctr))
+                    ctr++;
+                String newName = name + "__" + ctr;
+                processedNames.add(newName);
+                processedNames.add(name);
+                name = newName;
+            } else {
+                processedNames.add(name);
             }
 
-            // Generate statements
+            Ir3.Var ir3Var = new Ir3.Var(v.typ, name);
+            ir3Locals.add(ir3Var);
+            decl2Var.put(v, ir3Var);
+        }
 
-            ArrayList<Ir3.Stmt> ir3Stmts = new ArrayList<>();
-            StmtBlock StmtBlock = runStmtBlock(meth.stmts);
-            ir3Stmts.addAll(StmtBlock.stmts);
-            // If we have jumps, add a label
-            if (!StmtBlock.jumps.isEmpty()) {
-                Ir3.LabelStmt label = genLabel();
-                ir3Stmts.add(label);
-                putLabels(StmtBlock.jumps, label);
-            }
+        // Generate statements
 
-            // Check for a return at the end
-            if (!ir3Stmts.isEmpty() && !(ir3Stmts.get(ir3Stmts.size() - 1) instanceof Ir3.ReturnStmt)) {
-                // Add a return
-                if (!(meth.retTyp instanceof Ast.VoidTyp))
-                    throw new AssertionError("ERR: control reaches end of method with non-void return type");
-                ir3Stmts.add(new Ir3.ReturnStmt(null));
-            }
+        ArrayList<Ir3.Stmt> ir3Stmts = new ArrayList<>();
+        StmtBlock StmtBlock = runStmtBlock(meth.stmts);
+        ir3Stmts.addAll(StmtBlock.stmts);
+        // If we have jumps, add a label
+        if (!StmtBlock.jumps.isEmpty()) {
+            Ir3.LabelStmt label = genLabel();
+            ir3Stmts.add(label);
+            putLabels(StmtBlock.jumps, label);
+        }
 
-            // Complete!
-            ir3Meth.args = ir3Args;
-            ir3Meth.locals = ir3Locals;
-            ir3Meth.blocks = new ArrayList<>();
-            ir3Meth.blocks.add(new Ir3.Block(ir3Stmts));
+        // Check for a return at the end
+        if (!ir3Stmts.isEmpty() && !(ir3Stmts.get(ir3Stmts.size() - 1) instanceof Ir3.ReturnStmt)) {
+            // Add a return
+            if (!(meth.retTyp instanceof Ast.VoidTyp))
+                throw new AssertionError("ERR: control reaches end of method with non-void return type");
+            ir3Stmts.add(new Ir3.ReturnStmt(null));
         }
+
+        // Complete!
+        ir3Meth.args = ir3Args;
+        ir3Meth.locals = ir3Locals;
+        CfgBuilder.run(ir3Meth, ir3Stmts);
     }
 
     private StmtBlock runStmtBlock(List<Ast.Stmt> stmts) {
@@ -844,6 +949,17 @@ public class Ir3Generator {
         return true;
     }
 
+    // The lowered code of one class
+    public static class ClassCode {
+        public final Ir3.Data data;
+        public final ArrayList<Ir3.Meth> meths;
+
+        public ClassCode(Ir3.Data data, ArrayList<Ir3.Meth> meths) {
+            this.data = data;
+            this.meths = meths;
+        }
+    }
+
     private static class RetValBlock {
         private final Ir3.RetVal retVal;
         private final ArrayList<Ir3.Stmt> stmts;
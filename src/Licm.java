@@ -0,0 +1,208 @@
+import java.util.*;
+
+// Loop invariant code motion of a method in SSA form. Every natural loop (Loops) first gets a
+// preheader, a block outside of it whose only successor is the header and that every edge entering
+// the loop from outside goes through, with phis merging what those edges bring to the phis of the
+// header. Then, innermost loops first, the statements of a loop reading only variables defined
+// outside of it, or by statements already moved, go to the end of its preheader.
+//
+// The statements moved are the ones that can run whether the loop body does or not: the binary
+// and unary statements on Ints, a division only by a nonzero constant, and the loads of a field of
+// an object that cannot be null (DeadCode.nonNull), as long as the loop makes no call and does not
+// store to that field.
+public class Licm {
+    private final Ir3.Meth meth;
+
+    private Licm(Ir3.Meth meth) {
+        this.meth = meth;
+    }
+
+    public static void run(Ir3.Meth meth) {
+        Loops loops = insertPreheaders(meth);
+        if (!loops.loops.isEmpty())
+            new Licm(meth).hoist(loops);
+    }
+
+    // Gives every loop of the method a preheader, and returns the loops found after
+    public static Loops insertPreheaders(Ir3.Meth meth) {
+        CfgBuilder.renumber(meth);
+        Loops loops = Loops.run(meth);
+        if (loops.loops.isEmpty())
+            return loops;
+        Licm licm = new Licm(meth);
+        for (Loops.Loop loop : loops.loops)
+            licm.insertPreheader(loop);
+        CfgBuilder.renumber(meth);
+        return Loops.run(meth);
+    }
+
+    // The block a loop with a preheader is entered through
+    public static Ir3.Block preheader(Loops.Loop loop) {
+        for (Ir3.Block pred : loop.header.incoming) {
+            if (!loop.contains(pred))
+                return pred;
+        }
+        throw new AssertionError("ERR: loop at a block without an edge from outside");
+    }
+
+    private void insertPreheader(Loops.Loop loop) {
+        Ir3.Block header = loop.header;
+        ArrayList<Integer> outside = new ArrayList<>();
+        for (int i = 0; i < header.incoming.size(); i++) {
+            if (!loop.contains(header.incoming.get(i)))
+                outside.add(i);
+        }
+        if (outside.size() == 1) {
+            Ir3.Block pred = header.incoming.get(outside.get(0));
+            if (pred.outCond != null)
+                CfgBuilder.splitEdge(meth, header, outside.get(0));
+            return;
+        }
+
+        Ir3.Block pre = new Ir3.Block(Collections.emptyList());
+        pre.out = header;
+        // What the outside edges bring to each phi of the header, merged by a phi of the preheader
+        // unless they all agree
+        ArrayList<Ir3.Var> merged = new ArrayList<>();
+        for (Ir3.Stmt stmt : header.stmts) {
+            if (!(stmt instanceof Ir3.PhiStmt))
+                continue;
+            Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+            Ir3.Var first = phi.args.get(outside.get(0));
+            boolean agree = true;
+            for (int i : outside)
+                agree &= phi.args.get(i) == first;
+            if (agree) {
+                merged.add(first);
+                continue;
+            }
+            Ir3.Var dst = meth.freshVar(phi.getDst().typ, phi.originalVar.name);
+            Ir3.PhiStmt prePhi = new Ir3.PhiStmt(dst, 0);
+            prePhi.originalVar = phi.originalVar;
+            for (int i : outside)
+                prePhi.args.add(phi.args.get(i));
+            pre.stmts.add(prePhi);
+            merged.add(dst);
+        }
+
+        // Each outside edge now goes to the preheader, the one falling through included, which
+        // then has the preheader placed right after its source
+        Ir3.Block fallsThrough = null;
+        for (int i : outside) {
+            Ir3.Block pred = header.incoming.get(i);
+            pre.incoming.add(pred);
+            Ir3.Stmt last = pred.stmts.isEmpty() ? null : pred.stmts.get(pred.stmts.size() - 1);
+            // When both edges of a conditional jump go to the header, the fall through one is first
+            boolean cond = pred.outCond == header && (pred.out != header || header.incoming.indexOf(pred) != i);
+            if (cond) {
+                pred.outCond = pre;
+                ((Ir3.JumpStmt) last).label = labelOf(pre);
+            } else if (last instanceof Ir3.GotoStmt) {
+                pred.out = pre;
+                ((Ir3.JumpStmt) last).label = labelOf(pre);
+            } else {
+                pred.out = pre;
+                fallsThrough = pred;
+            }
+        }
+        for (int k = outside.size() - 1; k >= 0; k--)
+            CfgBuilder.removeIncoming(header, outside.get(k));
+        header.incoming.add(pre);
+        int p = 0;
+        for (Ir3.Stmt stmt : header.stmts) {
+            if (stmt instanceof Ir3.PhiStmt)
+                ((Ir3.PhiStmt) stmt).args.add(merged.get(p++));
+        }
+
+        if (fallsThrough != null) {
+            meth.blocks.add(meth.blocks.indexOf(fallsThrough) + 1, pre);
+            return;
+        }
+        if (header.label == null)
+            header.label = meth.freshLabel();
+        pre.stmts.add(new Ir3.GotoStmt(header.label));
+        // After a block that cannot fall through, as the last one of a Void method may
+        int at = meth.blocks.size();
+        while (at > 0 && CfgBuilder.canFallThrough(meth.blocks.get(at - 1)))
+            at--;
+        if (at == 0)
+            throw new AssertionError("ERR: no place for a new block in method " + meth.name);
+        meth.blocks.add(at, pre);
+    }
+
+    private Ir3.LabelStmt labelOf(Ir3.Block block) {
+        if (block.label == null)
+            block.label = meth.freshLabel();
+        return block.label;
+    }
+
+    private void hoist(Loops loops) {
+        Dataflow.VarIds ids = new Dataflow.VarIds(meth);
+        boolean[] nonNull = DeadCode.nonNull(meth, ids);
+        Ir3.Block[] defBlock = new Ir3.Block[ids.size()]; // By variable id, null for the arguments
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts)
+                stmt.forEachDef(d -> defBlock[ids.id(d)] = block);
+        }
+
+        for (int l = loops.loops.size() - 1; l >= 0; l--) {
+            Loops.Loop loop = loops.loops.get(l);
+            boolean[] calls = { false };
+            HashSet<String> stored = new HashSet<>();
+            for (Ir3.Block block : loop.body) {
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (stmt instanceof Ir3.CallStmt)
+                        calls[0] = true;
+                    else if (stmt instanceof Ir3.FieldAssignStmt)
+                        stored.add(((Ir3.FieldAssignStmt) stmt).field);
+                }
+            }
+
+            Ir3.Block pre = preheader(loop);
+            ArrayList<Ir3.Stmt> hoisted = new ArrayList<>();
+            // In reverse postorder, a definition comes before the statements reading it
+            for (Ir3.Block block : meth.blocksRpost) {
+                if (!loop.contains(block))
+                    continue;
+                block.stmts.removeIf(stmt -> {
+                    if (!movable(stmt, nonNull, ids, calls[0], stored))
+                        return false;
+                    boolean[] invariant = { true };
+                    stmt.forEachUse(u -> {
+                        Ir3.Block def = defBlock[ids.id(u)];
+                        invariant[0] &= def == null || !loop.contains(def);
+                    });
+                    if (!invariant[0])
+                        return false;
+                    stmt.forEachDef(d -> defBlock[ids.id(d)] = pre);
+                    hoisted.add(stmt);
+                    return true;
+                });
+            }
+            if (hoisted.isEmpty())
+                continue;
+            int at = pre.stmts.size();
+            if (at > 0 && pre.stmts.get(at - 1) instanceof Ir3.JumpStmt)
+                at--;
+            pre.stmts.addAll(at, hoisted);
+        }
+    }
+
+    private static boolean movable(Ir3.Stmt stmt, boolean[] nonNull, Dataflow.VarIds ids, boolean calls, HashSet<String> stored) {
+        if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            if (!(bin.getDst().typ instanceof Ast.IntTyp))
+                return false;
+            return bin.op != Ir3.BinaryOp.DIV || (bin.operand2 instanceof Ir3.IntRetVal && ((Ir3.IntRetVal) bin.operand2).i != 0);
+        }
+        if (stmt instanceof Ir3.UnaryStmt)
+            return true;
+        if (stmt instanceof Ir3.FieldAccessStmt) {
+            Ir3.FieldAccessStmt load = (Ir3.FieldAccessStmt) stmt;
+            if (calls || stored.contains(load.field) || !(load.target instanceof Ir3.VarRetVal))
+                return false;
+            return nonNull[ids.id(((Ir3.VarRetVal) load.target).v)];
+        }
+        return false;
+    }
+}
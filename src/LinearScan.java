@@ -0,0 +1,387 @@
+import java.util.*;
+
+// Linear scan register allocation (Poletto and Sarkar) of a method out of SSA form. The blocks are
+// numbered in the order of Meth.blocks, and the lifetime of every variable is split at the block
+// boundaries and at the holes where it is dead, so each interval lies in one block. The intervals
+// are scanned by start, and when the registers run out the one that ends last goes to the stack
+// slot of its variable. Allocation takes time linear in the size of the method, times the log of
+// the number of registers for the active set.
+//
+// A variable then gets a version per location it is given: the original Var for the first one and
+// fresh locals for the others, with Var.reg set, or Var.stackSpace for the one on the stack. A
+// statement reading a spilled variable reloads it into one of two scratch registers after the
+// allocatable ones, and one defining it stores it from there. Calls take their arguments from
+// wherever they are. Where the location of a variable changes on an edge, moves, spills and
+// reloads are put on the edge, splitting it if needed.
+//
+// Calls are assumed to preserve the registers, saving the live ones around a call is left to code
+// generation. The arguments arrive where their entry intervals are.
+public class LinearScan {
+    private static final int NONE = -1;
+    private static final int STACK = -2;
+
+    private final Ir3.Meth meth;
+    private final int numRegs; // Allocatable, the two scratch registers come after
+    private final Dataflow.VarIds ids;
+    private final ArrayList<Ir3.Block> blocks;
+    private final IdentityHashMap<Ir3.Block, Integer> blockIndex = new IdentityHashMap<>();
+    private final int[] blockStart; // Position of each block, by index in blocks
+    private final ArrayList<ArrayList<Interval>> intervals = new ArrayList<>(); // By block, by start
+    private final int[] slots; // Stack slot of each variable, by id
+    private final ArrayList<HashMap<Integer, Ir3.Var>> versions = new ArrayList<>(); // By id, by location
+    // Location of each variable at the statement being rewritten. Every variable a block reads
+    // or writes has an interval there, which sets it first, so it is never cleared.
+    private final int[] location;
+
+    private static class Interval {
+        final int var;
+        final int from;
+        final int to; // Exclusive
+        int location = NONE;
+
+        Interval(int var, int from, int to) {
+            this.var = var;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private LinearScan(Ir3.Meth meth, int regs) {
+        this.meth = meth;
+        this.numRegs = regs - 2;
+        this.ids = new Dataflow.VarIds(meth);
+        this.blocks = new ArrayList<>(meth.blocks);
+        this.blockStart = new int[blocks.size() + 1];
+        this.slots = new int[ids.size()];
+        this.location = new int[ids.size()];
+        Arrays.fill(slots, NONE);
+        for (int v = 0; v < ids.size(); v++)
+            versions.add(new HashMap<>());
+    }
+
+    // Allocates regs registers, the last two of which are kept for reloads and moves
+    public static void run(Ir3.Meth meth, int regs) {
+        if (regs < 3)
+            throw new IllegalArgumentException("register allocation needs at least 3 registers, got " + regs);
+        new LinearScan(meth, regs).allocate();
+    }
+
+    private void allocate() {
+        for (Ir3.Block block : blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt)
+                    throw new AssertionError("ERR: method " + meth.name + " is still in SSA form");
+            }
+        }
+        for (Ir3.Var v : ids.vars) {
+            if (v.reg >= 0 || v.stackSpace)
+                throw new AssertionError("ERR: method " + meth.name + " is already allocated");
+        }
+
+        buildIntervals();
+        scan();
+        // The arguments keep their Var for where they arrive, an argument dead on entry arrives
+        // nowhere
+        for (Ir3.Var arg : meth.args)
+            version(ids.id(arg), entryLocation(ids.id(arg)));
+        for (int b = 0; b < blocks.size(); b++)
+            rewrite(b);
+        if (resolve())
+            CfgBuilder.renumber(meth);
+    }
+
+    // Positions: a block starts with a position of its own, then each statement reads at an even
+    // position and writes at the next one
+    private void buildIntervals() {
+        Dataflow.VarIds across = Dataflow.VarIds.acrossBlocks(meth);
+        Liveness live = Liveness.run(meth, across);
+        int pos = 0;
+        for (int b = 0; b < blocks.size(); b++) {
+            blockIndex.put(blocks.get(b), b);
+            blockStart[b] = pos;
+            pos += 2 + 2 * blocks.get(b).stmts.size();
+        }
+        blockStart[blocks.size()] = pos;
+
+        // End of the open interval of each variable, going backwards through a block
+        int[] open = new int[ids.size()];
+        Arrays.fill(open, NONE);
+        ArrayList<Integer> opened = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            Ir3.Block block = blocks.get(b);
+            ArrayList<Interval> list = new ArrayList<>();
+            int end = blockStart[b + 1];
+            long[] liveOut = live.out[block.postorderIndex];
+            for (int l = Dataflow.nextSetBit(liveOut, 0); l >= 0; l = Dataflow.nextSetBit(liveOut, l + 1)) {
+                int v = ids.id(across.vars.get(l));
+                open[v] = end;
+                opened.add(v);
+            }
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                Ir3.Stmt stmt = block.stmts.get(i);
+                int use = blockStart[b] + 2 + 2 * i;
+                stmt.forEachDef(d -> {
+                    int v = ids.id(d);
+                    // A dead definition still needs a register to write to
+                    list.add(new Interval(v, use + 1, open[v] != NONE ? open[v] : use + 2));
+                    open[v] = NONE;
+                });
+                stmt.forEachUse(u -> {
+                    int v = ids.id(u);
+                    if (open[v] == NONE) {
+                        open[v] = use + 1;
+                        opened.add(v);
+                    }
+                });
+            }
+            for (int v : opened) {
+                if (open[v] != NONE)
+                    list.add(new Interval(v, blockStart[b], open[v]));
+                open[v] = NONE;
+            }
+            opened.clear();
+            list.sort((x, y) -> x.from != y.from ? Integer.compare(x.from, y.from) : Integer.compare(x.var, y.var));
+            intervals.add(list);
+        }
+    }
+
+    private void scan() {
+        TreeSet<Interval> active = new TreeSet<>((x, y) -> x.to != y.to ? Integer.compare(x.to, y.to) : Integer.compare(x.var, y.var));
+        boolean[] free = new boolean[numRegs];
+        Arrays.fill(free, true);
+        // The register a variable had last, tried first so it moves less
+        int[] lastReg = new int[ids.size()];
+        Arrays.fill(lastReg, NONE);
+
+        for (ArrayList<Interval> list : intervals) {
+            for (Interval current : list) {
+                while (!active.isEmpty() && active.first().to <= current.from)
+                    free[active.pollFirst().location] = true;
+
+                int reg = lastReg[current.var];
+                if (reg == NONE || !free[reg]) {
+                    reg = NONE;
+                    for (int r = 0; r < numRegs && reg == NONE; r++) {
+                        if (free[r])
+                            reg = r;
+                    }
+                }
+                if (reg == NONE) {
+                    // Spill whichever ends last, the other one takes the register
+                    Interval last = active.last();
+                    if (last.to <= current.to) {
+                        spill(current);
+                        continue;
+                    }
+                    active.pollLast();
+                    reg = last.location;
+                    spill(last);
+                }
+                free[reg] = false;
+                current.location = reg;
+                lastReg[current.var] = reg;
+                active.add(current);
+            }
+        }
+    }
+
+    private void spill(Interval interval) {
+        interval.location = STACK;
+        if (slots[interval.var] == NONE) {
+            if (meth.stackSpaces == null)
+                meth.stackSpaces = new ArrayList<>();
+            slots[interval.var] = meth.stackSpaces.size();
+            meth.stackSpaces.add(true);
+        }
+    }
+
+    // The variable of the given id in the given location, which is a register, STACK or NONE
+    private Ir3.Var version(int var, int location) {
+        HashMap<Integer, Ir3.Var> byLocation = versions.get(var);
+        Ir3.Var v = byLocation.get(location);
+        if (v != null)
+            return v;
+        Ir3.Var original = ids.vars.get(var);
+        v = byLocation.isEmpty() ? original : meth.freshVar(original.typ, original.name);
+        v.reg = location >= 0 ? location : -1;
+        v.stackSpace = location == STACK;
+        v.stackSlot = slots[var];
+        byLocation.put(location, v);
+        return v;
+    }
+
+    private int entryLocation(int var) {
+        for (Interval interval : intervals.get(0)) {
+            if (interval.from != blockStart[0])
+                break;
+            if (interval.var == var)
+                return interval.location;
+        }
+        return NONE;
+    }
+
+    // Renames the variables of the block to their versions, and reloads and stores the spilled ones
+    private void rewrite(int b) {
+        Ir3.Block block = blocks.get(b);
+        ArrayList<Interval> list = intervals.get(b);
+        int next = 0;
+        ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        for (int i = 0; i < block.stmts.size(); i++) {
+            Ir3.Stmt stmt = block.stmts.get(i);
+            int use = blockStart[b] + 2 + 2 * i;
+            while (next < list.size() && list.get(next).from <= use) {
+                location[list.get(next).var] = list.get(next).location;
+                next++;
+            }
+
+            // Reloads into the scratch registers, once per variable
+            IdentityHashMap<Ir3.Var, Ir3.Var> uses = new IdentityHashMap<>();
+            int[] scratch = { numRegs };
+            boolean call = stmt instanceof Ir3.CallStmt;
+            stmt.forEachUse(u -> {
+                if (uses.containsKey(u))
+                    return;
+                int var = ids.id(u);
+                if (location[var] != STACK || call) {
+                    uses.put(u, version(var, location[var]));
+                    return;
+                }
+                if (scratch[0] == numRegs + 2)
+                    throw new AssertionError("ERR: more than two spilled operands in " + stmt.prettyPrint(0).trim());
+                Ir3.Var temp = version(var, scratch[0]++);
+                stmts.add(new Ir3.ReloadStmt(temp));
+                uses.put(u, temp);
+            });
+            stmt.mapUses(uses::get);
+
+            while (next < list.size() && list.get(next).from <= use + 1) {
+                location[list.get(next).var] = list.get(next).location;
+                next++;
+            }
+            stmts.add(stmt);
+            List<Ir3.Var> defs = stmt.getDefs();
+            for (int d = 0; d < defs.size(); d++) {
+                if (defs.get(d) == null)
+                    continue;
+                int var = ids.id(defs.get(d));
+                if (location[var] != STACK) {
+                    stmt.setDef(d, version(var, location[var]));
+                } else {
+                    Ir3.Var temp = version(var, numRegs);
+                    stmt.setDef(d, temp);
+                    stmts.add(new Ir3.SpillStmt(temp));
+                }
+            }
+        }
+        block.stmts = stmts;
+    }
+
+    // Puts the moves on every edge where a variable changes location. Returns whether an edge was
+    // split.
+    private boolean resolve() {
+        boolean split = false;
+        int[] endLocation = new int[ids.size()];
+        Arrays.fill(endLocation, NONE);
+        for (int b = 0; b < blocks.size(); b++) {
+            Ir3.Block block = blocks.get(b);
+            for (int i = 0; i < block.incoming.size(); i++) {
+                Ir3.Block pred = block.incoming.get(i);
+                int p = blockIndex.get(pred);
+                for (Interval interval : intervals.get(p)) {
+                    if (interval.to == blockStart[p + 1])
+                        endLocation[interval.var] = interval.location;
+                }
+                ArrayList<Ir3.Stmt> moves = moves(b, endLocation);
+                for (Interval interval : intervals.get(p))
+                    endLocation[interval.var] = NONE;
+                if (moves.isEmpty())
+                    continue;
+
+                if (pred.outCond == null) {
+                    insertBeforeJump(pred, moves);
+                } else if (block.incoming.size() == 1) {
+                    block.stmts.addAll(0, moves);
+                } else {
+                    insertBeforeJump(CfgBuilder.splitEdge(meth, block, i), moves);
+                    split = true;
+                }
+            }
+        }
+        return split;
+    }
+
+    // Spills first, as the moves may overwrite their registers, then the moves between registers,
+    // then the reloads, which may overwrite the sources of the moves
+    private ArrayList<Ir3.Stmt> moves(int b, int[] endLocation) {
+        ArrayList<Ir3.Stmt> spills = new ArrayList<>();
+        ArrayList<Ir3.Stmt> reloads = new ArrayList<>();
+        // Variable moved from each register, and the register it moves to
+        int[] moveVar = new int[numRegs];
+        int[] moveTo = new int[numRegs];
+        Arrays.fill(moveTo, NONE);
+        int pending = 0;
+        for (Interval interval : intervals.get(b)) {
+            if (interval.from != blockStart[b])
+                break;
+            int from = endLocation[interval.var];
+            int to = interval.location;
+            if (from == to)
+                continue;
+            if (from == NONE)
+                throw new AssertionError("ERR: variable " + ids.vars.get(interval.var).name + " live into a block but not out of its predecessor");
+            if (to == STACK) {
+                spills.add(new Ir3.SpillStmt(version(interval.var, from)));
+            } else if (from == STACK) {
+                reloads.add(new Ir3.ReloadStmt(version(interval.var, to)));
+            } else {
+                moveVar[from] = interval.var;
+                moveTo[from] = to;
+                pending++;
+            }
+        }
+
+        // A register can be overwritten once the move out of it is done. A cycle is broken by
+        // moving one of its values to the scratch register first.
+        ArrayList<Ir3.Stmt> out = spills;
+        int scratch = numRegs;
+        int scratchVar = NONE;
+        int scratchTo = NONE;
+        while (pending > 0 || scratchTo != NONE) {
+            boolean progress = false;
+            for (int r = 0; r < numRegs; r++) {
+                int to = moveTo[r];
+                if (to == NONE || moveTo[to] != NONE)
+                    continue;
+                out.add(new Ir3.AssignStmt(version(moveVar[r], to), new Ir3.VarRetVal(version(moveVar[r], r))));
+                moveTo[r] = NONE;
+                pending--;
+                progress = true;
+            }
+            if (scratchTo != NONE && moveTo[scratchTo] == NONE) {
+                out.add(new Ir3.AssignStmt(version(scratchVar, scratchTo), new Ir3.VarRetVal(version(scratchVar, scratch))));
+                scratchTo = NONE;
+                progress = true;
+            }
+            if (progress)
+                continue;
+            int r = 0;
+            while (moveTo[r] == NONE)
+                r++;
+            out.add(new Ir3.AssignStmt(version(moveVar[r], scratch), new Ir3.VarRetVal(version(moveVar[r], r))));
+            scratchVar = moveVar[r];
+            scratchTo = moveTo[r];
+            moveTo[r] = NONE;
+            pending--;
+        }
+        out.addAll(reloads);
+        return out;
+    }
+
+    // Before the jump that ends the block, if any
+    private static void insertBeforeJump(Ir3.Block block, List<Ir3.Stmt> stmts) {
+        int at = block.stmts.size();
+        if (at > 0 && block.stmts.get(at - 1) instanceof Ir3.JumpStmt)
+            at--;
+        block.stmts.addAll(at, stmts);
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.*;
+
+// Variables live on entry to and exit from each block of a method, numbered by a Dataflow.VarIds.
+// A phi reads its arguments at the end of the matching predecessor, and defines its variable on
+// entry to its block.
+public class Liveness extends Dataflow {
+    public final Dataflow.VarIds ids;
+
+    private Liveness(Ir3.Meth meth, Dataflow.VarIds ids) {
+        super(meth, ids.size(), false, true);
+        this.ids = ids;
+        meetGen = new long[numBlocks][words];
+    }
+
+    public static Liveness run(Ir3.Meth meth) {
+        return run(meth, new Dataflow.VarIds(meth));
+    }
+
+    public static Liveness run(Ir3.Meth meth, Dataflow.VarIds ids) {
+        Liveness live = new Liveness(meth, ids);
+        live.initSets();
+        live.solve();
+        return live;
+    }
+
+    private void initSets() {
+        Local local = new Local();
+        for (Ir3.Block block : blocks) {
+            int b = block.postorderIndex;
+            local.use = gen[b];
+            local.def = kill[b];
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt) {
+                    Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+                    for (int i = 0; i < phi.args.size(); i++) {
+                        int id = phi.args.get(i) != null ? ids.id(phi.args.get(i)) : -1;
+                        if (id >= 0)
+                            set(meetGen[block.incoming.get(i).postorderIndex], id);
+                    }
+                } else {
+                    stmt.forEachUse(local.uses);
+                }
+                stmt.forEachDef(local.defs);
+            }
+        }
+    }
+
+    // Upward exposed uses and definitions of the block being scanned
+    private class Local {
+        long[] use;
+        long[] def;
+        final Ir3.VarVisitor uses = v -> {
+            int id = ids.id(v);
+            if (id >= 0 && !get(def, id))
+                set(use, id);
+        };
+        final Ir3.VarVisitor defs = v -> {
+            int id = ids.id(v);
+            if (id >= 0)
+                set(def, id);
+        };
+    }
+}
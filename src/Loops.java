@@ -0,0 +1,87 @@
+import java.util.*;
+
+// Natural loops of a method: a back edge goes to a block that dominates its source, and the loop
+// of a header is every block that reaches one of its back edges without going through the header.
+// Loops sharing a header are merged. Edges that go back into an irreducible region without a
+// dominating header make no loop.
+public class Loops {
+    public static class Loop {
+        public final Ir3.Block header;
+        public final ArrayList<Ir3.Block> body = new ArrayList<>(); // Header first
+        public Loop parent; // The innermost enclosing loop, null for an outermost one
+        public int depth; // 1 for an outermost loop
+        private final boolean[] member; // By postorder index
+
+        Loop(Ir3.Block header, int numBlocks) {
+            this.header = header;
+            this.member = new boolean[numBlocks];
+        }
+
+        public boolean contains(Ir3.Block block) {
+            return member[block.postorderIndex];
+        }
+    }
+
+    // Outer loops before the loops they contain
+    public final ArrayList<Loop> loops = new ArrayList<>();
+    private final Loop[] innermost; // By postorder index
+
+    private Loops(Ir3.Meth meth) {
+        innermost = new Loop[meth.blocksPost.size()];
+    }
+
+    public static Loops run(Ir3.Meth meth) {
+        Loops loops = new Loops(meth);
+        loops.find(meth);
+        return loops;
+    }
+
+    // The innermost loop containing the block, null outside of every loop
+    public Loop loopOf(Ir3.Block block) {
+        return innermost[block.postorderIndex];
+    }
+
+    // The number of loops containing the block
+    public int depth(Ir3.Block block) {
+        Loop loop = innermost[block.postorderIndex];
+        return loop == null ? 0 : loop.depth;
+    }
+
+    private void find(Ir3.Meth meth) {
+        Dominators doms = Dominators.of(meth);
+        int numBlocks = meth.blocksPost.size();
+        // A header dominates its whole loop, so it comes before the headers of the loops inside
+        for (Ir3.Block header : meth.blocksRpost) {
+            Loop loop = null;
+            ArrayDeque<Ir3.Block> work = new ArrayDeque<>();
+            for (Ir3.Block pred : header.incoming) {
+                if (!doms.dominates(header, pred))
+                    continue;
+                if (loop == null) {
+                    loop = new Loop(header, numBlocks);
+                    loop.member[header.postorderIndex] = true;
+                    loop.body.add(header);
+                }
+                work.push(pred);
+            }
+            if (loop == null)
+                continue;
+
+            while (!work.isEmpty()) {
+                Ir3.Block block = work.pop();
+                if (loop.member[block.postorderIndex])
+                    continue;
+                loop.member[block.postorderIndex] = true;
+                loop.body.add(block);
+                for (Ir3.Block pred : block.incoming)
+                    work.push(pred);
+            }
+
+            loop.parent = innermost[header.postorderIndex];
+            loop.depth = loop.parent == null ? 1 : loop.parent.depth + 1;
+            for (Ir3.Block block : loop.body)
+                innermost[block.postorderIndex] = loop;
+            loops.add(loop);
+        }
+    }
+}
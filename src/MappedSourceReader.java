@@ -0,0 +1,119 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+// Reader over a memory-mapped source file. The lexer pulls characters straight out of the
+// mapped bytes: runs of ASCII bytes are widened in place, and only non-ASCII runs go through
+// a CharsetDecoder. Replaces the BufferedReader/FileReader stack used by the entry points.
+public class MappedSourceReader extends Reader {
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private final boolean asciiFastPath;
+    private boolean flushed;
+    private int pending = -1; // Low surrogate that did not fit in the previous read
+
+    public MappedSourceReader(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        this.decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // In these charsets an ASCII byte always stands for itself, and never appears inside
+        // the encoding of another character
+        this.asciiFastPath = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    public static MappedSourceReader open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("source file too large to map: " + path);
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSourceReader(bytes, Charset.defaultCharset());
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!asciiFastPath)
+            return decode(cbuf, off, len);
+
+        int n = 0;
+        if (pending >= 0) {
+            cbuf[off + n++] = (char) pending;
+            pending = -1;
+        }
+        while (n < len && bytes.hasRemaining()) {
+            int pos = bytes.position();
+            int end = Math.min(bytes.limit(), pos + (len - n));
+            int i = pos;
+            while (i < end) {
+                byte b = bytes.get(i);
+                if (b < 0)
+                    break;
+                cbuf[off + n++] = (char) b;
+                i++;
+            }
+            bytes.position(i);
+            if (i < end) {
+                // A run of non-ASCII bytes always ends on a character boundary, so it can be
+                // decoded on its own
+                int runEnd = i;
+                while (runEnd < bytes.limit() && bytes.get(runEnd) < 0)
+                    runEnd++;
+                int decoded = decodeRun(cbuf, off + n, len - n, runEnd);
+                if (decoded == 0)
+                    break;
+                n += decoded;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private int decodeRun(char[] cbuf, int off, int len, int runEnd) throws IOException {
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        int limit = bytes.limit();
+        bytes.limit(runEnd);
+        try {
+            decoder.reset();
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isError())
+                result.throwException();
+        } finally {
+            bytes.limit(limit);
+        }
+        if (out.position() == off && len < 2 && bytes.position() < runEnd) {
+            // The next character is a surrogate pair and only one half fits
+            char[] pair = new char[2];
+            int n = decodeRun(pair, 0, 2, runEnd);
+            cbuf[off] = pair[0];
+            if (n > 1)
+                pending = pair[1];
+            return 1;
+        }
+        return out.position() - off;
+    }
+
+    // Slow path for charsets without the ASCII property: everything goes through the decoder
+    private int decode(char[] cbuf, int off, int len) throws IOException {
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        CoderResult result = decoder.decode(bytes, out, true);
+        if (result.isError())
+            result.throwException();
+        if (!bytes.hasRemaining() && !flushed) {
+            decoder.flush(out);
+            flushed = true;
+        }
+        int n = out.position() - off;
+        return n == 0 && !bytes.hasRemaining() ? -1 : n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
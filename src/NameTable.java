@@ -0,0 +1,67 @@
+// Interning table for identifier and class name text, owned by a Lexer. Names are looked up
+// straight from the scanner buffer, so a name that was already seen costs no allocation and
+// every occurrence of it shares the same String instance.
+public class NameTable {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int size;
+
+    public String intern(char[] buf, int start, int len) {
+        // Same hash as String.hashCode, so the interned String gets it for free
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + buf[start + i];
+
+        int mask = names.length - 1;
+        int idx = spread(h) & mask;
+        for (String name = names[idx]; name != null; name = names[idx]) {
+            if (hashes[idx] == h && matches(name, buf, start, len))
+                return name;
+            idx = (idx + 1) & mask;
+        }
+
+        // First occurrence. Going through String.intern makes names equal to a string literal
+        // (like "main") the very same instance.
+        String name = new String(buf, start, len).intern();
+        names[idx] = name;
+        hashes[idx] = h;
+        if (++size * 2 > names.length)
+            grow();
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String name, char[] buf, int start, int len) {
+        if (name.length() != len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != buf[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        names = new String[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null)
+                continue;
+            int idx = spread(oldHashes[i]) & mask;
+            while (names[idx] != null)
+                idx = (idx + 1) & mask;
+            names[idx] = oldNames[i];
+            hashes[idx] = oldHashes[i];
+        }
+    }
+}
@@ -1,38 +1,122 @@
 
-
 import java_cup.runtime.ComplexSymbolFactory;
 import java_cup.runtime.Symbol;
 
+// Every symbol keeps its two ends as packed positions (see Ast.Location.pack). Location objects
+// are only created if the parser asks for them while reporting an error.
 public class NamedSymbolFactory extends ComplexSymbolFactory {
 
+    public Symbol newSymbol(String name, int id, long left, long right, Object o) {
+        return new PackedSymbol(name, id, left, right, o);
+    }
+
+    public Symbol newNameSymbol(String kind, int id, long left, long right, String name) {
+        return new NameSymbol(kind, id, left, right, name);
+    }
+
     @Override
     public Symbol newSymbol(String name, int id, Location left, Location right, Object o) {
-        ComplexSymbol symbol = (ComplexSymbol) super.newSymbol(name, id, left, right, o);
-        if (o instanceof Ast.Locatable) {
-            Ast.Locatable locatable = (Ast.Locatable) o;
-            locatable.setPosition(new Ast.Location(symbol.getLeft().getLine(), symbol.getLeft().getColumn()));
-        }
-        return symbol;
+        return locate(new PackedSymbol(name, id, Ast.Location.pack(left), Ast.Location.pack(right), o));
+    }
+
+    @Override
+    public Symbol newSymbol(String name, int id, Location left, Location right) {
+        return newSymbol(name, id, left, right, null);
     }
 
     @Override
     public Symbol newSymbol(String name, int id, Symbol left, Object o) {
-        ComplexSymbol symbol = (ComplexSymbol) super.newSymbol(name, id, left, o);
-        if (o instanceof Ast.Locatable) {
-            Ast.Locatable locatable = (Ast.Locatable) o;
-            locatable.setPosition(new Ast.Location(symbol.getLeft().getLine(), symbol.getLeft().getColumn()));
-        }
-        return symbol;
+        // Empty production: the symbol sits where the previous one ends
+        return locate(new PackedSymbol(name, id, rightOf(left), rightOf(left), o));
     }
 
     @Override
     public Symbol newSymbol(String name, int id, Symbol left, Symbol right, Object o) {
-        ComplexSymbol symbol = (ComplexSymbol) super.newSymbol(name, id, left, right, o);
-        if (o instanceof Ast.Locatable) {
-            Ast.Locatable locatable = (Ast.Locatable) o;
-            locatable.setPosition(new Ast.Location(symbol.getLeft().getLine(), symbol.getLeft().getColumn()));
+        return locate(new PackedSymbol(name, id, leftOf(left), rightOf(right), o));
+    }
+
+    @Override
+    public Symbol newSymbol(String name, int id, Symbol left, Symbol right) {
+        return newSymbol(name, id, left, right, null);
+    }
+
+    private static Symbol locate(PackedSymbol symbol) {
+        if (symbol.value instanceof Ast.Locatable) {
+            ((Ast.Locatable) symbol.value).setPackedPosition(symbol.start);
         }
         return symbol;
     }
 
-}
\ No newline at end of file
+    private static long leftOf(Symbol symbol) {
+        if (symbol instanceof PackedSymbol)
+            return ((PackedSymbol) symbol).start;
+        if (symbol instanceof ComplexSymbol)
+            return Ast.Location.pack(((ComplexSymbol) symbol).getLeft());
+        return Ast.Location.NO_POSITION;
+    }
+
+    private static long rightOf(Symbol symbol) {
+        if (symbol instanceof PackedSymbol)
+            return ((PackedSymbol) symbol).end;
+        if (symbol instanceof ComplexSymbol)
+            return Ast.Location.pack(((ComplexSymbol) symbol).getRight());
+        return Ast.Location.NO_POSITION;
+    }
+
+    public static class PackedSymbol extends ComplexSymbol {
+        private final long start;
+        private final long end;
+
+        public PackedSymbol(String name, int id, long start, long end, Object value) {
+            super(name, id, value);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Location getLeft() {
+            if (xleft == null)
+                xleft = Ast.Location.unpack(start);
+            return xleft;
+        }
+
+        @Override
+        public Location getRight() {
+            if (xright == null)
+                xright = Ast.Location.unpack(end);
+            return xright;
+        }
+
+        @Override
+        public String toString() {
+            getLeft();
+            getRight();
+            return super.toString();
+        }
+    }
+
+    // Terminal carrying an interned identifier or class name. The display name used in error
+    // messages ("Ident:foo") is only built when it is asked for.
+    public static class NameSymbol extends PackedSymbol {
+        private final String kind;
+
+        public NameSymbol(String kind, int id, long start, long end, String value) {
+            super(null, id, start, end, value);
+            this.kind = kind;
+        }
+
+        @Override
+        public String getName() {
+            if (name == null)
+                name = kind + value;
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            getName();
+            return super.toString();
+        }
+    }
+
+}
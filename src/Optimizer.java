@@ -0,0 +1,74 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// The passes run on a lowered program, as selected by the options. Methods are optimized
+// independently, on several threads if asked to.
+public class Optimizer {
+    private Optimizer() {}
+
+    // Whether the options ask for any pass, that is whether run changes the program
+    public static boolean enabled(Options opts) {
+        return opts.inline || opts.deadMethods || opts.cleanup || opts.copyProp || opts.ssa || opts.dce || opts.regs > 0;
+    }
+
+    public static void run(Ir3.Prog prog, Options opts) {
+        if (!enabled(opts))
+            return;
+
+        // Over the whole program, before the methods are optimized on their own
+        if (opts.inline)
+            Inliner.run(prog);
+        // After inlining, which leaves callees without calls
+        if (opts.deadMethods)
+            DeadMethods.run(prog);
+
+        if (opts.threads <= 1) {
+            for (Ir3.Meth meth : prog.meths)
+                optimize(meth, opts);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(opts.threads);
+        try {
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Ir3.Meth meth : prog.meths)
+                tasks.add(pool.submit(() -> optimize(meth, opts)));
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void optimize(Ir3.Meth meth, Options opts) {
+        if (opts.cleanup)
+            CfgCleanup.run(meth);
+        if (opts.copyProp)
+            CopyPropagation.run(meth);
+        if (opts.ssa) {
+            SsaBuilder.run(meth);
+            if (opts.sccp)
+                Sccp.run(meth);
+            if (opts.gvn)
+                Gvn.run(meth);
+            if (opts.licm)
+                Licm.run(meth);
+            if (opts.strength)
+                StrengthReduction.run(meth);
+        }
+        if (opts.dce)
+            DeadCode.run(meth);
+        if (opts.ssa && !opts.keepSsa) {
+            SsaDestructor.run(meth);
+            // Again for the copies of the phis that can be read from their sources, and the
+            // blocks left with nothing but a jump
+            if (opts.copyProp)
+                CopyPropagation.run(meth);
+            if (opts.cleanup)
+                CfgCleanup.run(meth);
+        }
+        if (opts.regs > 0 && opts.coloring)
+            GraphColoring.run(meth, opts.regs);
+        else if (opts.regs > 0)
+            LinearScan.run(meth, opts.regs);
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+
+// Command line options shared by the different entry points of the compiler
+//
+// Optimizations (see Optimizer):
+//   --inline    copy the bodies of the small methods called into their callers
+//   --dead-methods  remove the methods main cannot reach and the classes it never instantiates
+//   --cleanup   thread the jumps through the blocks that only forward, and merge straight lines
+//   --copyprop  read the sources of the copies instead of their variables, and drop the copies
+//   --ssa       convert the methods to SSA form, optimize them, and convert them back
+//   --keep-ssa  same, but print the methods in SSA form
+//   --sccp      fold the constants and the branches on them, in SSA form
+//   --gvn       reuse the arithmetic and the field loads computed before, in SSA form
+//   --licm      move the arithmetic and the field loads that loops do not change out of them
+//   --strength  add to the products of the loop counters instead of multiplying, and shift instead
+//               of multiplying or dividing by powers of two
+//   --dce       remove the statements whose results are never read, and the jumps left useless
+//   --regs=N    allocate N registers to the variables, by linear scan
+//   --coloring  allocate them by graph coloring with coalescing instead, slower but spilling less
+public class Options {
+    public int threads = 1;
+    public String outDir;
+    public String socket;
+    public int port = -1;
+    public String cacheDir;
+    public long cacheSize = 256L << 20; // Bytes
+    public boolean inline; // Inlining
+    public boolean deadMethods; // Dead method and dead class elimination
+    public boolean cleanup; // Control flow graph cleanup
+    public boolean copyProp; // Copy propagation
+    public boolean ssa; // Optimize in SSA form
+    public boolean keepSsa; // Leave the methods in SSA form
+    public boolean sccp; // Sparse conditional constant propagation
+    public boolean gvn; // Global value numbering
+    public boolean licm; // Loop invariant code motion
+    public boolean strength; // Strength reduction
+    public boolean dce; // Dead code elimination
+    public int regs; // Registers to allocate, 0 to leave the variables unallocated
+    public boolean coloring; // Allocate them by GraphColoring rather than LinearScan
+    public final ArrayList<String> files = new ArrayList<>();
+
+    public static Options parse(String[] args) {
+        return parse(args, new Options());
+    }
+
+    // Parses the arguments on top of the given defaults
+    public static Options parse(String[] args, Options opts) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                opts.files.add(arg);
+                continue;
+            }
+
+            String name = arg;
+            String value = null;
+            int eq = arg.indexOf('=');
+            if (eq >= 0) {
+                name = arg.substring(0, eq);
+                value = arg.substring(eq + 1);
+            }
+
+            switch (name) {
+            case "--threads":
+                opts.threads = intValue(name, value);
+                break;
+            case "--out-dir":
+                opts.outDir = stringValue(name, value);
+                break;
+            case "--socket":
+                opts.socket = stringValue(name, value);
+                break;
+            case "--port":
+                opts.port = intValue(name, value);
+                break;
+            case "--cache-dir":
+                opts.cacheDir = stringValue(name, value);
+                break;
+            case "--cache-size":
+                opts.cacheSize = (long) intValue(name, value) << 20;
+                break;
+            case "--inline":
+                opts.inline = flag(name, value);
+                break;
+            case "--dead-methods":
+                opts.deadMethods = flag(name, value);
+                break;
+            case "--cleanup":
+                opts.cleanup = flag(name, value);
+                break;
+            case "--copyprop":
+                opts.copyProp = flag(name, value);
+                break;
+            case "--ssa":
+                opts.ssa = flag(name, value);
+                break;
+            case "--keep-ssa":
+                opts.keepSsa = flag(name, value);
+                opts.ssa |= opts.keepSsa;
+                break;
+            case "--sccp":
+                opts.sccp = flag(name, value);
+                opts.ssa = true;
+                break;
+            case "--gvn":
+                opts.gvn = flag(name, value);
+                opts.ssa = true;
+                break;
+            case "--licm":
+                opts.licm = flag(name, value);
+                opts.ssa = true;
+                break;
+            case "--strength":
+                opts.strength = flag(name, value);
+                opts.ssa = true;
+                break;
+            case "--dce":
+                opts.dce = flag(name, value);
+                break;
+            case "--regs":
+                opts.regs = intValue(name, value);
+                if (opts.regs < 3)
+                    throw new IllegalArgumentException("option " + name + " expects at least 3 registers, got: " + value);
+                break;
+            case "--coloring":
+                opts.coloring = flag(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (opts.keepSsa && opts.regs > 0)
+            throw new IllegalArgumentException("options --keep-ssa and --regs cannot be combined");
+        if (opts.coloring && opts.regs == 0)
+            throw new IllegalArgumentException("option --coloring needs --regs");
+        return opts;
+    }
+
+    // The same options, for another thread count or another set of files
+    public Options copy() {
+        Options opts = new Options();
+        opts.threads = threads;
+        opts.outDir = outDir;
+        opts.socket = socket;
+        opts.port = port;
+        opts.cacheDir = cacheDir;
+        opts.cacheSize = cacheSize;
+        opts.inline = inline;
+        opts.deadMethods = deadMethods;
+        opts.cleanup = cleanup;
+        opts.copyProp = copyProp;
+        opts.ssa = ssa;
+        opts.keepSsa = keepSsa;
+        opts.sccp = sccp;
+        opts.gvn = gvn;
+        opts.licm = licm;
+        opts.strength = strength;
+        opts.dce = dce;
+        opts.regs = regs;
+        opts.coloring = coloring;
+        opts.files.addAll(files);
+        return opts;
+    }
+
+    // The options that change the output of the compiler, as part of the key of a cached result
+    public String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        if (inline)
+            sb.append("inline,");
+        if (deadMethods)
+            sb.append("dead-methods,");
+        if (cleanup)
+            sb.append("cleanup,");
+        if (copyProp)
+            sb.append("copyprop,");
+        if (ssa)
+            sb.append("ssa,");
+        if (keepSsa)
+            sb.append("keep-ssa,");
+        if (sccp)
+            sb.append("sccp,");
+        if (gvn)
+            sb.append("gvn,");
+        if (licm)
+            sb.append("licm,");
+        if (strength)
+            sb.append("strength,");
+        if (dce)
+            sb.append("dce,");
+        if (regs > 0)
+            sb.append("regs=").append(regs).append(',');
+        if (coloring)
+            sb.append("coloring,");
+        return sb.toString();
+    }
+
+    private static String stringValue(String name, String value) {
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException("option " + name + " expects a value");
+        return value;
+    }
+
+    private static boolean flag(String name, String value) {
+        if (value != null)
+            throw new IllegalArgumentException("option " + name + " takes no value");
+        return true;
+    }
+
+    private static int intValue(String name, String value) {
+        if (value == null)
+            throw new IllegalArgumentException("option " + name + " expects a value");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("option " + name + " expects an integer, got: " + value);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.*;
+
+// Definitions reaching the start and end of each block of a method. Every variable a statement
+// defines is a definition, numbered in the order of Meth.blocks, the phis included. The arguments
+// and the initial values of the locals are not definitions.
+public class ReachingDefs extends Dataflow {
+    public final Dataflow.VarIds ids;
+    // Statement and variable of each definition
+    public final ArrayList<Ir3.Stmt> defStmts;
+    public final ArrayList<Ir3.Var> defVars;
+    // Definitions of each variable, by variable id
+    private final long[][] defsOfVar;
+
+    private ReachingDefs(Ir3.Meth meth, Dataflow.VarIds ids, ArrayList<Ir3.Stmt> defStmts, ArrayList<Ir3.Var> defVars) {
+        super(meth, defStmts.size(), true, true);
+        this.ids = ids;
+        this.defStmts = defStmts;
+        this.defVars = defVars;
+        defsOfVar = new long[ids.size()][words];
+    }
+
+    public static ReachingDefs run(Ir3.Meth meth) {
+        Dataflow.VarIds ids = new Dataflow.VarIds(meth);
+        ArrayList<Ir3.Stmt> defStmts = new ArrayList<>();
+        ArrayList<Ir3.Var> defVars = new ArrayList<>();
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                stmt.forEachDef(v -> {
+                    defStmts.add(stmt);
+                    defVars.add(v);
+                });
+            }
+        }
+
+        ReachingDefs reach = new ReachingDefs(meth, ids, defStmts, defVars);
+        reach.initSets();
+        reach.solve();
+        return reach;
+    }
+
+    // The definitions of the variable
+    public long[] defsOf(Ir3.Var v) {
+        return defsOfVar[ids.id(v)];
+    }
+
+    private void initSets() {
+        for (int d = 0; d < numFacts; d++)
+            set(defsOfVar[ids.id(defVars.get(d))], d);
+
+        // Definitions are numbered in the order of the blocks, so the next one is always d
+        int d = 0;
+        for (Ir3.Block block : meth.blocks) {
+            long[] g = gen[block.postorderIndex];
+            long[] k = kill[block.postorderIndex];
+            for (Ir3.Stmt stmt : block.stmts) {
+                while (d < numFacts && defStmts.get(d) == stmt) {
+                    long[] others = defsOfVar[ids.id(defVars.get(d))];
+                    for (int w = 0; w < words; w++) {
+                        g[w] &= ~others[w];
+                        k[w] |= others[w];
+                    }
+                    set(g, d);
+                    d++;
+                }
+            }
+        }
+    }
+}
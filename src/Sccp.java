@@ -0,0 +1,325 @@
+import java.util.*;
+
+// Sparse conditional constant propagation (Wegman and Zadeck) of a method in SSA form. Every
+// variable starts out undefined and only ever goes down to a constant and then to unknown, and a
+// block is only looked at once an edge into it is found to be taken, so a constant condition
+// keeps the other side of its branch out of the propagation altogether. Phis meet the values of
+// their executable edges only.
+//
+// Constants are the Int and Bool values, folded with the wrapping arithmetic of Java. A division by
+// zero is left to happen at run time, and strings are never propagated, as they compare by
+// identity. Arguments, the results of reads, calls and field loads, and the missing argument of
+// a phi on a path where the variable is undefined are unknown.
+//
+// Afterwards the uses of the constant variables read the constant, their definitions assign it,
+// the branches on constant conditions become gotos or fall through, and the blocks found
+// unreachable are removed.
+public class Sccp {
+    private static final int TOP = 0;
+    private static final int CONST = 1;
+    private static final int BOTTOM = 2;
+
+    private final Ir3.Meth meth;
+    private final Dataflow.VarIds ids;
+    private final int[] kind; // By variable id
+    private final int[] constant; // Bools are 0 and 1
+    private final ArrayList<ArrayList<Ir3.Stmt>> uses = new ArrayList<>(); // By variable id
+    private final IdentityHashMap<Ir3.Stmt, Ir3.Block> blockOf = new IdentityHashMap<>();
+    private final boolean[] reached; // By postorder index
+    private final ArrayList<boolean[]> taken = new ArrayList<>(); // By postorder index, by incoming index
+
+    private final ArrayDeque<Ir3.Block> blockWork = new ArrayDeque<>();
+    private final ArrayDeque<Integer> varWork = new ArrayDeque<>();
+
+    private Sccp(Ir3.Meth meth) {
+        this.meth = meth;
+        this.ids = new Dataflow.VarIds(meth);
+        this.kind = new int[ids.size()];
+        this.constant = new int[ids.size()];
+        this.reached = new boolean[meth.blocksPost.size()];
+        for (int v = 0; v < ids.size(); v++)
+            uses.add(new ArrayList<>());
+        for (Ir3.Block block : meth.blocksPost)
+            taken.add(new boolean[block.incoming.size()]);
+    }
+
+    public static void run(Ir3.Meth meth) {
+        Sccp sccp = new Sccp(meth);
+        sccp.propagate();
+        sccp.rewrite();
+    }
+
+    private void propagate() {
+        boolean[] defined = new boolean[ids.size()];
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                blockOf.put(stmt, block);
+                stmt.forEachDef(d -> defined[ids.id(d)] = true);
+                if (stmt instanceof Ir3.PhiStmt) {
+                    for (Ir3.Var arg : ((Ir3.PhiStmt) stmt).args) {
+                        if (arg != null)
+                            uses.get(ids.id(arg)).add(stmt);
+                    }
+                } else {
+                    stmt.forEachUse(u -> uses.get(ids.id(u)).add(stmt));
+                }
+            }
+        }
+        // What is not defined in the method is not known to it
+        for (int v = 0; v < ids.size(); v++) {
+            if (!defined[v])
+                kind[v] = BOTTOM;
+        }
+        for (Ir3.Var arg : meth.args)
+            kind[ids.id(arg)] = BOTTOM;
+
+        reach(meth.blocks.get(0));
+        while (!blockWork.isEmpty() || !varWork.isEmpty()) {
+            if (!blockWork.isEmpty()) {
+                Ir3.Block block = blockWork.poll();
+                for (Ir3.Stmt stmt : block.stmts)
+                    evaluate(stmt, block);
+                if (!(last(block) instanceof Ir3.CmpStmt))
+                    take(block, false);
+                continue;
+            }
+            for (Ir3.Stmt stmt : uses.get(varWork.poll())) {
+                Ir3.Block block = blockOf.get(stmt);
+                if (reached[block.postorderIndex])
+                    evaluate(stmt, block);
+            }
+        }
+    }
+
+    private static Ir3.Stmt last(Ir3.Block block) {
+        return block.stmts.isEmpty() ? null : block.stmts.get(block.stmts.size() - 1);
+    }
+
+    private void reach(Ir3.Block block) {
+        if (reached[block.postorderIndex])
+            return;
+        reached[block.postorderIndex] = true;
+        blockWork.add(block);
+    }
+
+    // Marks the edge out of block to its out, or to its outCond, as taken. A block seen before
+    // only has its phis evaluated again, for the new edge.
+    private void take(Ir3.Block block, boolean cond) {
+        Ir3.Block succ = cond ? block.outCond : block.out;
+        if (succ == null)
+            return;
+        // When both edges go to the same block, the fall through one is listed first
+        int i = cond ? succ.incoming.lastIndexOf(block) : succ.incoming.indexOf(block);
+        boolean[] edges = taken.get(succ.postorderIndex);
+        if (edges[i])
+            return;
+        edges[i] = true;
+        if (!reached[succ.postorderIndex]) {
+            reach(succ);
+            return;
+        }
+        for (Ir3.Stmt stmt : succ.stmts) {
+            if (stmt instanceof Ir3.PhiStmt)
+                evaluate(stmt, succ);
+        }
+    }
+
+    private void evaluate(Ir3.Stmt stmt, Ir3.Block block) {
+        if (stmt instanceof Ir3.PhiStmt) {
+            Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+            boolean[] edges = taken.get(block.postorderIndex);
+            int dst = ids.id(phi.getDst());
+            for (int i = 0; i < phi.args.size(); i++) {
+                if (!edges[i])
+                    continue;
+                if (phi.args.get(i) == null) {
+                    lower(dst, BOTTOM, 0);
+                } else {
+                    int arg = ids.id(phi.args.get(i));
+                    lower(dst, kind[arg], constant[arg]);
+                }
+            }
+        } else if (stmt instanceof Ir3.CmpStmt) {
+            Ir3.CmpStmt cmp = (Ir3.CmpStmt) stmt;
+            int k = Math.max(kindOf(cmp.a), kindOf(cmp.b));
+            if (k == BOTTOM) {
+                take(block, false);
+                take(block, true);
+            } else if (k == CONST) {
+                take(block, compare(cmp.op, constantOf(cmp.a), constantOf(cmp.b)));
+            }
+        } else if (stmt instanceof Ir3.AssignStmt) {
+            Ir3.AssignStmt assign = (Ir3.AssignStmt) stmt;
+            lower(ids.id(assign.getDest()), kindOf(assign.src), constantOf(assign.src));
+        } else if (stmt instanceof Ir3.BinaryStmt) {
+            Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+            int k = Math.max(kindOf(bin.operand1), kindOf(bin.operand2));
+            int dst = ids.id(bin.getDst());
+            if (k != CONST) {
+                lower(dst, k, 0);
+                return;
+            }
+            int x = constantOf(bin.operand1);
+            int y = constantOf(bin.operand2);
+            switch (bin.op) {
+            case PLUS:
+                lower(dst, CONST, x + y);
+                break;
+            case MINUS:
+                lower(dst, CONST, x - y);
+                break;
+            case MUL:
+                lower(dst, CONST, x * y);
+                break;
+            case DIV:
+                if (y == 0)
+                    lower(dst, BOTTOM, 0);
+                else
+                    lower(dst, CONST, x / y);
+                break;
+            case RSB:
+                lower(dst, CONST, y - x);
+                break;
+            case SHL:
+                lower(dst, CONST, x << y);
+                break;
+            case SHR:
+                lower(dst, CONST, x >> y);
+                break;
+            case USHR:
+                lower(dst, CONST, x >>> y);
+                break;
+            }
+        } else if (stmt instanceof Ir3.UnaryStmt) {
+            Ir3.UnaryStmt un = (Ir3.UnaryStmt) stmt;
+            lower(ids.id(un.getDst()), kindOf(un.a), -constantOf(un.a));
+        } else {
+            stmt.forEachDef(d -> lower(ids.id(d), BOTTOM, 0));
+        }
+    }
+
+    private int kindOf(Ir3.RetVal rv) {
+        if (rv instanceof Ir3.IntRetVal || rv instanceof Ir3.BoolRetVal)
+            return CONST;
+        if (rv instanceof Ir3.VarRetVal)
+            return kind[ids.id(((Ir3.VarRetVal) rv).v)];
+        return BOTTOM;
+    }
+
+    private int constantOf(Ir3.RetVal rv) {
+        if (rv instanceof Ir3.IntRetVal)
+            return ((Ir3.IntRetVal) rv).i;
+        if (rv instanceof Ir3.BoolRetVal)
+            return ((Ir3.BoolRetVal) rv).b ? 1 : 0;
+        if (rv instanceof Ir3.VarRetVal)
+            return constant[ids.id(((Ir3.VarRetVal) rv).v)];
+        return 0;
+    }
+
+    private static boolean compare(Ir3.CondOp op, int x, int y) {
+        switch (op) {
+        case LT:
+            return x < y;
+        case GT:
+            return x > y;
+        case LE:
+            return x <= y;
+        case GE:
+            return x >= y;
+        case EQ:
+            return x == y;
+        default:
+            return x != y;
+        }
+    }
+
+    // Meets the value of the variable with the given one
+    private void lower(int v, int k, int c) {
+        if (k == TOP || kind[v] == BOTTOM)
+            return;
+        if (kind[v] == CONST && (k == BOTTOM || constant[v] != c)) {
+            kind[v] = BOTTOM;
+        } else if (kind[v] == TOP) {
+            kind[v] = k;
+            constant[v] = c;
+        } else {
+            return;
+        }
+        // Only Ints and Bools are constants, anything else computed from them is not
+        if (kind[v] == CONST && !isConstantTyp(ids.vars.get(v).typ))
+            kind[v] = BOTTOM;
+        varWork.add(v);
+    }
+
+    private static boolean isConstantTyp(Ast.Typ typ) {
+        return typ instanceof Ast.IntTyp || typ instanceof Ast.BoolTyp;
+    }
+
+    private Ir3.RetVal retVal(int v) {
+        if (ids.vars.get(v).typ instanceof Ast.BoolTyp)
+            return new Ir3.BoolRetVal(constant[v] != 0);
+        return new Ir3.IntRetVal(constant[v]);
+    }
+
+    private boolean isConstant(Ir3.Var v) {
+        return kind[ids.id(v)] == CONST;
+    }
+
+    private void rewrite() {
+        boolean changed = false;
+        for (Ir3.Block block : meth.blocks) {
+            if (!reached[block.postorderIndex]) {
+                changed = true;
+                continue;
+            }
+
+            ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+            ArrayList<Ir3.Stmt> phiAssigns = new ArrayList<>();
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt) {
+                    // After the phis, which all read their arguments before any of them is written
+                    Ir3.Var dst = ((Ir3.PhiStmt) stmt).getDst();
+                    if (isConstant(dst))
+                        phiAssigns.add(new Ir3.AssignStmt(dst, retVal(ids.id(dst))));
+                    else
+                        stmts.add(stmt);
+                    continue;
+                }
+                stmts.addAll(phiAssigns);
+                phiAssigns.clear();
+
+                List<Ir3.RetVal> rvs = stmt.getRetVals();
+                for (int i = 0; i < rvs.size(); i++) {
+                    if (rvs.get(i) instanceof Ir3.VarRetVal && isConstant(((Ir3.VarRetVal) rvs.get(i)).v))
+                        stmt.setRetVal(i, retVal(ids.id(((Ir3.VarRetVal) rvs.get(i)).v)));
+                }
+                if ((stmt instanceof Ir3.BinaryStmt || stmt instanceof Ir3.UnaryStmt) && isConstant(stmt.getDefs().get(0))) {
+                    Ir3.Var dst = stmt.getDefs().get(0);
+                    stmt = new Ir3.AssignStmt(dst, retVal(ids.id(dst)));
+                }
+                if (stmt instanceof Ir3.CmpStmt) {
+                    Ir3.CmpStmt cmp = (Ir3.CmpStmt) stmt;
+                    if (kindOf(cmp.a) != CONST || kindOf(cmp.b) != CONST) {
+                        stmts.add(stmt);
+                        continue;
+                    }
+                    changed = true;
+                    if (compare(cmp.op, constantOf(cmp.a), constantOf(cmp.b))) {
+                        CfgBuilder.removeIncoming(block.out, block.out.incoming.indexOf(block));
+                        block.out = block.outCond;
+                        stmts.add(new Ir3.GotoStmt(cmp.label));
+                    } else {
+                        CfgBuilder.removeIncoming(block.outCond, block.outCond.incoming.lastIndexOf(block));
+                    }
+                    block.outCond = null;
+                    continue;
+                }
+                stmts.add(stmt);
+            }
+            stmts.addAll(phiAssigns);
+            block.stmts = stmts;
+        }
+        if (changed)
+            CfgBuilder.renumber(meth);
+    }
+}
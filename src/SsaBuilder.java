@@ -0,0 +1,187 @@
+import java.util.*;
+
+// Puts a method in pruned SSA form. Phis are placed at the iterated dominance frontier of the
+// definitions of each variable, but only where the variable is live, and every definition then
+// gets its own variable while walking the dominator tree.
+//
+// The first definition met in the walk keeps the original variable, so a variable defined once
+// is not renamed. Uses on paths without any definition read that same variable, as the value is
+// undefined there anyway. Arguments are defined on entry. The new variables are added to the
+// locals of the method.
+public class SsaBuilder {
+    private final Ir3.Meth meth;
+    private Dataflow.VarIds ids;
+    private ArrayList<Ir3.Var> vars;
+
+    private SsaBuilder(Ir3.Meth meth) {
+        this.meth = meth;
+    }
+
+    public static void run(Ir3.Meth meth) {
+        new SsaBuilder(meth).build();
+    }
+
+    private void build() {
+        // The entry has to be entered from outside of the method only, or it would need phis
+        Ir3.Block entry = meth.blocks.get(0);
+        if (!entry.incoming.isEmpty()) {
+            Ir3.Block start = new Ir3.Block(Collections.emptyList());
+            start.out = entry;
+            entry.incoming.add(start);
+            meth.blocks.add(0, start);
+            CfgBuilder.renumber(meth);
+        }
+
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.PhiStmt)
+                    throw new AssertionError("ERR: method " + meth.name + " is already in SSA form");
+            }
+        }
+        ids = new Dataflow.VarIds(meth);
+        vars = ids.vars;
+
+        placePhis();
+        rename();
+    }
+
+    private void placePhis() {
+        Dominators doms = Dominators.of(meth);
+        ArrayList<Ir3.Block> blocks = meth.blocksPost;
+        int n = blocks.size();
+        Dataflow.VarIds across = Dataflow.VarIds.acrossBlocks(meth);
+        Liveness live = Liveness.run(meth, across);
+
+        // Blocks defining each variable, each listed once
+        ArrayList<ArrayList<Ir3.Block>> defBlocks = new ArrayList<>();
+        for (int v = 0; v < vars.size(); v++)
+            defBlocks.add(new ArrayList<>());
+        for (Ir3.Var arg : meth.args)
+            defBlocks.get(ids.id(arg)).add(doms.entry());
+        for (Ir3.Block block : blocks) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                stmt.forEachDef(def -> {
+                    ArrayList<Ir3.Block> list = defBlocks.get(ids.id(def));
+                    if (list.isEmpty() || list.get(list.size() - 1) != block)
+                        list.add(block);
+                });
+            }
+        }
+
+        // Worklist of Cytron et al., the marks are the number of the variable being placed so they
+        // never have to be cleared
+        ArrayList<ArrayList<Ir3.Stmt>> phis = new ArrayList<>();
+        for (int b = 0; b < n; b++)
+            phis.add(null);
+        int[] hasPhi = new int[n];
+        int[] queued = new int[n];
+        Arrays.fill(hasPhi, -1);
+        Arrays.fill(queued, -1);
+        ArrayDeque<Ir3.Block> work = new ArrayDeque<>();
+        for (int v = 0; v < vars.size(); v++) {
+            // Live in no block, and so needing no phi
+            int liveId = across.id(vars.get(v));
+            if (liveId < 0)
+                continue;
+            for (Ir3.Block block : defBlocks.get(v)) {
+                queued[block.postorderIndex] = v;
+                work.add(block);
+            }
+            while (!work.isEmpty()) {
+                Ir3.Block block = work.poll();
+                for (Ir3.Block df : doms.frontier(block)) {
+                    int d = df.postorderIndex;
+                    if (hasPhi[d] == v)
+                        continue;
+                    hasPhi[d] = v;
+                    // Pruned: a phi of a dead variable is never placed, and so defines nothing
+                    if (!live.in(df, liveId))
+                        continue;
+                    if (phis.get(d) == null)
+                        phis.set(d, new ArrayList<>());
+                    phis.get(d).add(new Ir3.PhiStmt(vars.get(v), df.incoming.size()));
+                    if (queued[d] != v) {
+                        queued[d] = v;
+                        work.add(df);
+                    }
+                }
+            }
+        }
+
+        for (int b = 0; b < n; b++) {
+            if (phis.get(b) != null)
+                blocks.get(b).stmts.addAll(0, phis.get(b));
+        }
+    }
+
+    private void rename() {
+        Dominators doms = Dominators.of(meth);
+        int numVars = vars.size();
+        ArrayList<ArrayList<Ir3.Var>> stacks = new ArrayList<>();
+        boolean[] defined = new boolean[numVars];
+        for (int v = 0; v < numVars; v++)
+            stacks.add(new ArrayList<>());
+        for (Ir3.Var arg : meth.args) {
+            int v = ids.id(arg);
+            defined[v] = true;
+            stacks.get(v).add(arg);
+        }
+
+        // The variables pushed by the blocks on the walk, popped when their block is left
+        ArrayList<Integer> pushed = new ArrayList<>();
+        ArrayDeque<Integer> marks = new ArrayDeque<>();
+
+        doms.walk(new Dominators.Visitor() {
+            public void enter(Ir3.Block block) {
+                marks.push(pushed.size());
+                for (Ir3.Stmt stmt : block.stmts) {
+                    if (!(stmt instanceof Ir3.PhiStmt))
+                        stmt.mapUses(use -> current(stacks, use));
+                    List<Ir3.Var> defs = stmt.getDefs();
+                    for (int i = 0; i < defs.size(); i++) {
+                        // The missing result of a call
+                        if (defs.get(i) == null)
+                            continue;
+                        int v = ids.id(defs.get(i));
+                        Ir3.Var version = vars.get(v);
+                        if (defined[v])
+                            version = meth.freshVar(version.typ, version.name);
+                        defined[v] = true;
+                        stmt.setDef(i, version);
+                        stacks.get(v).add(version);
+                        pushed.add(v);
+                    }
+                }
+
+                for (Ir3.Block succ : block.getOutList()) {
+                    for (int i = 0; i < succ.incoming.size(); i++) {
+                        if (succ.incoming.get(i) != block)
+                            continue;
+                        for (Ir3.Stmt stmt : succ.stmts) {
+                            if (!(stmt instanceof Ir3.PhiStmt))
+                                break;
+                            Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+                            phi.args.set(i, current(stacks, phi.originalVar));
+                        }
+                    }
+                    // Both edges of a conditional jump to the next block are already done
+                    if (succ == block.outCond && succ == block.out)
+                        break;
+                }
+            }
+
+            public void exit(Ir3.Block block) {
+                int mark = marks.pop();
+                while (pushed.size() > mark) {
+                    ArrayList<Ir3.Var> stack = stacks.get(pushed.remove(pushed.size() - 1));
+                    stack.remove(stack.size() - 1);
+                }
+            }
+        });
+    }
+
+    private Ir3.Var current(ArrayList<ArrayList<Ir3.Var>> stacks, Ir3.Var original) {
+        ArrayList<Ir3.Var> stack = stacks.get(ids.id(original));
+        return stack.isEmpty() ? original : stack.get(stack.size() - 1);
+    }
+}
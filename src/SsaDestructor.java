@@ -0,0 +1,127 @@
+import java.util.*;
+
+// Takes a method out of SSA form. The phis of a block become copies at the end of each of its
+// predecessors. A predecessor ending with a conditional jump gets a new block on that edge for
+// its copies, as they must not run on the other edge, nor before the jump reads its operands.
+// The copies of one edge are parallel: they are ordered so no copy overwrites a value another
+// one still has to read, and a temporary breaks each cycle.
+public class SsaDestructor {
+    private final Ir3.Meth meth;
+
+    private SsaDestructor(Ir3.Meth meth) {
+        this.meth = meth;
+    }
+
+    public static void run(Ir3.Meth meth) {
+        new SsaDestructor(meth).destruct();
+    }
+
+    private void destruct() {
+        boolean split = false;
+        for (Ir3.Block block : new ArrayList<>(meth.blocks)) {
+            if (phis(block).isEmpty())
+                continue;
+            for (int i = 0; i < block.incoming.size(); i++) {
+                Ir3.Block pred = block.incoming.get(i);
+                if (pred.outCond != null) {
+                    CfgBuilder.splitEdge(meth, block, i);
+                    split = true;
+                }
+            }
+        }
+
+        for (Ir3.Block block : meth.blocks) {
+            List<Ir3.PhiStmt> phis = phis(block);
+            if (phis.isEmpty())
+                continue;
+            for (int i = 0; i < block.incoming.size(); i++) {
+                ArrayList<Ir3.Var> dsts = new ArrayList<>();
+                ArrayList<Ir3.Var> srcs = new ArrayList<>();
+                for (Ir3.PhiStmt phi : phis) {
+                    Ir3.Var arg = phi.args.get(i);
+                    if (arg != null && arg != phi.getDst()) {
+                        dsts.add(phi.getDst());
+                        srcs.add(arg);
+                    }
+                }
+                insertCopies(block.incoming.get(i), sequentialize(dsts, srcs));
+            }
+            block.stmts.subList(0, phis.size()).clear();
+        }
+
+        if (split)
+            CfgBuilder.renumber(meth);
+    }
+
+    private static List<Ir3.PhiStmt> phis(Ir3.Block block) {
+        ArrayList<Ir3.PhiStmt> phis = new ArrayList<>();
+        for (Ir3.Stmt stmt : block.stmts) {
+            if (!(stmt instanceof Ir3.PhiStmt))
+                break;
+            phis.add((Ir3.PhiStmt) stmt);
+        }
+        return phis;
+    }
+
+    // Orders the parallel copies dsts[i] = srcs[i]
+    private ArrayList<Ir3.Stmt> sequentialize(ArrayList<Ir3.Var> dsts, ArrayList<Ir3.Var> srcs) {
+        ArrayList<Ir3.Stmt> copies = new ArrayList<>();
+        // Number of pending copies reading each variable
+        IdentityHashMap<Ir3.Var, Integer> readers = new IdentityHashMap<>();
+        for (Ir3.Var src : srcs)
+            readers.merge(src, 1, Integer::sum);
+
+        ArrayDeque<Integer> ready = new ArrayDeque<>();
+        boolean[] done = new boolean[dsts.size()];
+        for (int i = 0; i < dsts.size(); i++) {
+            if (!readers.containsKey(dsts.get(i)))
+                ready.add(i);
+        }
+        // Copies by the variable they overwrite, to find the next one of a chain
+        IdentityHashMap<Ir3.Var, Integer> writer = new IdentityHashMap<>();
+        for (int i = 0; i < dsts.size(); i++)
+            writer.put(dsts.get(i), i);
+
+        int remaining = dsts.size();
+        int next = 0;
+        while (remaining > 0) {
+            while (!ready.isEmpty()) {
+                int i = ready.poll();
+                Ir3.Var src = srcs.get(i);
+                copies.add(new Ir3.AssignStmt(dsts.get(i), new Ir3.VarRetVal(src)));
+                done[i] = true;
+                remaining--;
+                // The copy overwriting src may go now, if this was its last reader
+                if (readers.merge(src, -1, Integer::sum) == 0) {
+                    Integer w = writer.get(src);
+                    if (w != null && !done[w])
+                        ready.add(w);
+                }
+            }
+            if (remaining == 0)
+                break;
+
+            // Only cycles are left: save one of the variables and read the copy instead
+            while (done[next])
+                next++;
+            Ir3.Var saved = dsts.get(next);
+            Ir3.Var tmp = meth.freshVar(saved.typ, "_phi");
+            copies.add(new Ir3.AssignStmt(tmp, new Ir3.VarRetVal(saved)));
+            for (int i = 0; i < srcs.size(); i++) {
+                if (!done[i] && srcs.get(i) == saved)
+                    srcs.set(i, tmp);
+            }
+            readers.put(tmp, readers.remove(saved));
+            ready.add(next);
+        }
+        return copies;
+    }
+
+    // Before the jump that ends the block, if any
+    private static void insertCopies(Ir3.Block block, List<Ir3.Stmt> copies) {
+        int at = block.stmts.size();
+        if (at > 0 && block.stmts.get(at - 1) instanceof Ir3.JumpStmt)
+            at--;
+        block.stmts.addAll(at, copies);
+    }
+}
@@ -1,9 +1,18 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class StaticChecker {
-    private HashMap<String, ClazzDescr> clazzdescrs = new HashMap<>();
+    private Map<String, ClazzDescr> clazzdescrs = new HashMap<>();
+    // Names of the classes looked up by the checker of one class body
+    private Set<String> lookups;
+
     private StaticChecker() {}
+
+    private StaticChecker(StaticChecker pass) {
+        this.clazzdescrs = pass.clazzdescrs;
+        this.lookups = new HashSet<>();
+    }
     
     private void initializeChecker(Ast.Program program) throws SemanticErrors {
         ArrayList<SemanticError> errors = new ArrayList<>();
@@ -86,24 +95,61 @@ public class StaticChecker {
     }
 
     public static void run(Ast.Program program) throws SemanticErrors {
+        run(program, 1);
+    }
+
+    // Class bodies only read the class descriptors once they are built, so with more than one
+    // thread every class is checked as a separate task. Errors are merged in source order.
+    public static void run(Ast.Program program, int threads) throws SemanticErrors {
+        run(program, threads, program.clazzes);
+    }
+
+    // Checks the class declarations of the whole program, but only the bodies of the given
+    // classes. Returns, by class name, the names of the classes looked up by each body.
+    public static Map<String, Set<String>> run(Ast.Program program, int threads, List<Ast.Clazz> clazzes) throws SemanticErrors {
         StaticChecker pass = new StaticChecker();
         pass.initializeChecker(program);
+        pass.freeze();
+        ArrayList<StaticChecker> checkers = new ArrayList<>();
+        for (int i = 0; i < clazzes.size(); i++) {
+            checkers.add(new StaticChecker(pass));
+        }
         ArrayList<SemanticError> errors = new ArrayList<>();
-        for (Ast.Clazz clazz : program.clazzes) {
+        if (threads <= 1 || clazzes.size() <= 1) {
+            for (int i = 0; i < clazzes.size(); i++) {
+                errors.addAll(checkers.get(i).checkClass(clazzes.get(i)));
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
             try {
-                pass.runClass(clazz);
-            } catch (SemanticErrors sError) {
-                errors.addAll(sError.getErrors());
+                ArrayList<ForkJoinTask<List<SemanticError>>> tasks = new ArrayList<>();
+                for (int i = 0; i < clazzes.size(); i++) {
+                    StaticChecker checker = checkers.get(i);
+                    Ast.Clazz clazz = clazzes.get(i);
+                    tasks.add(pool.submit(() -> checker.checkClass(clazz)));
+                }
+                for (ForkJoinTask<List<SemanticError>> task : tasks) {
+                    errors.addAll(task.join());
+                }
+            } finally {
+                pool.shutdown();
             }
         }
         if (!errors.isEmpty())
             throw new SemanticErrors(errors);
+
+        HashMap<String, Set<String>> lookups = new HashMap<>();
+        for (int i = 0; i < clazzes.size(); i++) {
+            lookups.put(clazzes.get(i).cname, checkers.get(i).lookups);
+        }
+        return lookups;
     }
 
     public static void main(String[] args) throws Exception {
-        Ast.Program prog = Parser.parse(new BufferedReader(new FileReader(args[0])));
+        Options opts = Options.parse(args);
+        Ast.Program prog = Parser.parse(MappedSourceReader.open(opts.files.get(0)));
         try {
-            run(prog);
+            run(prog, opts.threads);
         } catch (SemanticErrors e) {
             for (SemanticError err : e.getErrors()) {
                 System.err.println("error:" + err.location + ": " + err.getMessage());
@@ -111,16 +157,30 @@ public class StaticChecker {
             System.exit(1);
         }
     }
+    // Makes the class table read-only, so that class bodies can be checked concurrently
+    private void freeze() {
+        for (ClazzDescr descr : clazzdescrs.values())
+            descr.freeze();
+        clazzdescrs = Collections.unmodifiableMap(clazzdescrs);
+    }
+
     // Private static class. Defines a class descriptor
 	private static class ClazzDescr {
         private final Ast.Clazz clazz;
-        private HashMap<String, Ast.VarDecl> fields = new HashMap<>();
-        private HashMap<String, ArrayList<Ast.FuncTyp>> meths = new HashMap<>();
+        private Map<String, Ast.VarDecl> fields = new HashMap<>();
+        private Map<String, List<Ast.FuncTyp>> meths = new HashMap<>();
 
         private ClazzDescr(Ast.Clazz clazz) {
             this.clazz = clazz;
         }
 
+        private void freeze() {
+            fields = Collections.unmodifiableMap(fields);
+            for (Map.Entry<String, List<Ast.FuncTyp>> entry : meths.entrySet())
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            meths = Collections.unmodifiableMap(meths);
+        }
+
         private boolean hasField(String name) {
             return fields.containsKey(name);
         }
@@ -200,6 +260,15 @@ public class StaticChecker {
         }
     }
 
+    private List<SemanticError> checkClass(Ast.Clazz clazz) {
+        try {
+            runClass(clazz);
+            return Collections.emptyList();
+        } catch (SemanticErrors sError) {
+            return sError.getErrors();
+        }
+    }
+
     private void runClass(Ast.Clazz clazz) throws SemanticErrors {
         ClazzDescr clazzDesc = getClazz(clazz.cname);
 
@@ -450,7 +519,7 @@ public class StaticChecker {
         } else if (stmt instanceof Ast.CallStmt) {
 
             Ast.CallExpr callExpr = new Ast.CallExpr(((Ast.CallStmt) stmt).target, ((Ast.CallStmt) stmt).args);
-            callExpr.setPosition(stmt.getPosition());
+            callExpr.setPackedPosition(stmt.getPackedPosition());
             Ast.Typ callTyp;
             try {
                 callTyp = runExpr(callExpr, env);
@@ -500,7 +569,8 @@ public class StaticChecker {
             case LNOT:
                 if (!expTyp.isSubtypeOrEquals(new Ast.BoolTyp()))
                     throw new SemanticError(expr, "LNOT: expected assignable to Bool, got: " + expTyp.prettyPrint(0));
-                return new Ast.BoolTyp();
+                expr.typ = new Ast.BoolTyp();
+                return expr.typ;
             default:
                 throw new AssertionError("ERROR");
             }
@@ -554,7 +624,8 @@ public class StaticChecker {
             if (!clazz.hasField(ident))
                 throw new SemanticError(expr, "field access: no such field in " + ((Ast.ClazzTyp) targetTyp).cname + ": " + ident);
 
-            return clazz.getFieldTyp(ident);
+            expr.typ = clazz.getFieldTyp(ident);
+            return expr.typ;
             
         } else if (expr instanceof Ast.CallExpr) {
             Ast.Expr target = ((Ast.CallExpr) expr).target;
@@ -654,10 +725,14 @@ public class StaticChecker {
     }
 
     private boolean clazzExist(String cname) {
+        if (lookups != null)
+            lookups.add(cname);
         return clazzdescrs.containsKey(cname);
     }
 
     private ClazzDescr getClazz(String cname) {
+        if (lookups != null)
+            lookups.add(cname);
         return clazzdescrs.get(cname);
     }
 
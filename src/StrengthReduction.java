@@ -0,0 +1,293 @@
+import java.util.*;
+
+// Strength reduction of a method in SSA form. Every loop first gets a preheader (Licm). Then,
+// innermost loops first, a basic induction variable is a phi of the header whose back edges all
+// bring it back added a constant step, and a product of it, or of its value after the step, by a
+// constant or a variable the loop does not change is a derived one: it gets a phi of its own,
+// starting at the product of the value entering the loop in the preheader and added the step
+// times the factor next to the step of the basic one, so the loop adds instead of multiplying. The
+// arithmetic wraps around the same way both ways.
+//
+// Then, over the whole method, a product or a quotient by a power of two becomes a shift, the
+// quotient adding 2^n - 1 first to a negative dividend as the division rounds toward zero, those by
+// 0, 1 and -1 a copy or a negation, and a constant minus a variable a single RSB, or a negation
+// for 0.
+public class StrengthReduction {
+    private final Ir3.Meth meth;
+    // The statement and the block defining each variable, none for the arguments
+    private final IdentityHashMap<Ir3.Var, Ir3.Stmt> defStmt = new IdentityHashMap<>();
+    private final IdentityHashMap<Ir3.Var, Ir3.Block> defBlock = new IdentityHashMap<>();
+
+    private StrengthReduction(Ir3.Meth meth) {
+        this.meth = meth;
+        for (Ir3.Block block : meth.blocks) {
+            for (Ir3.Stmt stmt : block.stmts)
+                stmt.forEachDef(d -> define(d, stmt, block));
+        }
+    }
+
+    public static void run(Ir3.Meth meth) {
+        Loops loops = Licm.insertPreheaders(meth);
+        StrengthReduction sr = new StrengthReduction(meth);
+        for (int l = loops.loops.size() - 1; l >= 0; l--)
+            sr.reduceInductions(loops.loops.get(l));
+        sr.simplify();
+    }
+
+    private void define(Ir3.Var v, Ir3.Stmt stmt, Ir3.Block block) {
+        defStmt.put(v, stmt);
+        defBlock.put(v, block);
+    }
+
+    // A basic induction variable: the phi, the variable its back edges bring a copy of, or itself,
+    // and the step between them
+    private static class Induction {
+        final Ir3.PhiStmt phi;
+        final Ir3.Var next;
+        final int step;
+
+        Induction(Ir3.PhiStmt phi, Ir3.Var next, int step) {
+            this.phi = phi;
+            this.next = next;
+            this.step = step;
+        }
+    }
+
+    private void reduceInductions(Loops.Loop loop) {
+        Ir3.Block header = loop.header;
+        Ir3.Block pre = Licm.preheader(loop);
+        int entry = header.incoming.indexOf(pre);
+
+        // By the phi and by the variable after the step
+        IdentityHashMap<Ir3.Var, Induction> inductions = new IdentityHashMap<>();
+        for (Ir3.Stmt stmt : header.stmts) {
+            if (!(stmt instanceof Ir3.PhiStmt))
+                continue;
+            Ir3.PhiStmt phi = (Ir3.PhiStmt) stmt;
+            if (!(phi.getDst().typ instanceof Ast.IntTyp) || phi.args.get(entry) == null)
+                continue;
+            Ir3.Var next = null;
+            boolean same = true;
+            for (int i = 0; i < phi.args.size(); i++) {
+                if (i == entry)
+                    continue;
+                if (next == null)
+                    next = phi.args.get(i);
+                same &= phi.args.get(i) == next;
+            }
+            if (!same || next == null)
+                continue;
+            // Through the copies to the variable the lowering assigns from its temporaries
+            Ir3.Var stepped = next;
+            while (defStmt.get(stepped) instanceof Ir3.AssignStmt && ((Ir3.AssignStmt) defStmt.get(stepped)).src instanceof Ir3.VarRetVal)
+                stepped = ((Ir3.VarRetVal) ((Ir3.AssignStmt) defStmt.get(stepped)).src).v;
+            if (defBlock.get(stepped) == null || !loop.contains(defBlock.get(stepped)))
+                continue;
+            Integer step = step(defStmt.get(stepped), phi.getDst());
+            if (step == null)
+                continue;
+            Induction ind = new Induction(phi, stepped, step);
+            inductions.put(phi.getDst(), ind);
+            inductions.put(stepped, ind);
+            inductions.put(next, ind);
+        }
+        if (inductions.isEmpty())
+            return;
+
+        ArrayList<Ir3.BinaryStmt> products = new ArrayList<>();
+        ArrayList<Ir3.Block> productBlocks = new ArrayList<>();
+        for (Ir3.Block block : loop.body) {
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir3.BinaryStmt))
+                    continue;
+                Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+                if (bin.op == Ir3.BinaryOp.MUL && bin.getDst().typ instanceof Ast.IntTyp && factor(bin, inductions, loop) != null) {
+                    products.add(bin);
+                    productBlocks.add(block);
+                }
+            }
+        }
+
+        // The derived variables, by the phi of the basic one and the factor, as the phi and the
+        // variable after the step
+        HashMap<List<Object>, Ir3.Var[]> derived = new HashMap<>();
+        for (int p = 0; p < products.size(); p++) {
+            Ir3.BinaryStmt bin = products.get(p);
+            Ir3.RetVal k = factor(bin, inductions, loop);
+            Ir3.Var v = ((Ir3.VarRetVal) (k == bin.operand2 ? bin.operand1 : bin.operand2)).v;
+            Induction ind = inductions.get(v);
+            List<Object> key = Arrays.asList(ind.phi, k instanceof Ir3.VarRetVal ? ((Ir3.VarRetVal) k).v : ((Ir3.IntRetVal) k).i);
+            Ir3.Var[] vars = derived.get(key);
+            if (vars == null) {
+                vars = derive(loop, pre, entry, ind, k, bin.getDst().name);
+                derived.put(key, vars);
+            }
+            Ir3.Var src = v == ind.phi.getDst() ? vars[0] : vars[1];
+            Ir3.Block block = productBlocks.get(p);
+            Ir3.AssignStmt copy = new Ir3.AssignStmt(bin.getDst(), new Ir3.VarRetVal(src));
+            block.stmts.set(indexOf(block, bin), copy);
+            define(bin.getDst(), copy, block);
+        }
+    }
+
+    // The step of a variable defined as the phi plus or minus a constant, null for another definition
+    private static Integer step(Ir3.Stmt stmt, Ir3.Var phi) {
+        if (!(stmt instanceof Ir3.BinaryStmt))
+            return null;
+        Ir3.BinaryStmt bin = (Ir3.BinaryStmt) stmt;
+        boolean first = bin.operand1 instanceof Ir3.VarRetVal && ((Ir3.VarRetVal) bin.operand1).v == phi;
+        boolean second = bin.operand2 instanceof Ir3.VarRetVal && ((Ir3.VarRetVal) bin.operand2).v == phi;
+        if (bin.op == Ir3.BinaryOp.PLUS && first && bin.operand2 instanceof Ir3.IntRetVal)
+            return ((Ir3.IntRetVal) bin.operand2).i;
+        if (bin.op == Ir3.BinaryOp.PLUS && second && bin.operand1 instanceof Ir3.IntRetVal)
+            return ((Ir3.IntRetVal) bin.operand1).i;
+        if (bin.op == Ir3.BinaryOp.MINUS && first && bin.operand2 instanceof Ir3.IntRetVal)
+            return -((Ir3.IntRetVal) bin.operand2).i;
+        return null;
+    }
+
+    // The factor of a product of an induction variable by what the loop does not change, null if
+    // it is not one. The constants simplify leaves one cheap statement for are not.
+    private Ir3.RetVal factor(IdentityHashMap<Ir3.Var, Induction> inductions, Ir3.RetVal a, Ir3.RetVal k, Loops.Loop loop) {
+        if (!(a instanceof Ir3.VarRetVal) || !inductions.containsKey(((Ir3.VarRetVal) a).v))
+            return null;
+        if (k instanceof Ir3.IntRetVal)
+            return cheap(((Ir3.IntRetVal) k).i) ? null : k;
+        if (k instanceof Ir3.VarRetVal) {
+            Ir3.Block def = defBlock.get(((Ir3.VarRetVal) k).v);
+            return def == null || !loop.contains(def) ? k : null;
+        }
+        return null;
+    }
+
+    private Ir3.RetVal factor(Ir3.BinaryStmt bin, IdentityHashMap<Ir3.Var, Induction> inductions, Loops.Loop loop) {
+        Ir3.RetVal k = factor(inductions, bin.operand1, bin.operand2, loop);
+        return k != null ? k : factor(inductions, bin.operand2, bin.operand1, loop);
+    }
+
+    private static boolean cheap(int k) {
+        return k == 0 || k == 1 || k == -1 || Integer.bitCount(k) == 1;
+    }
+
+    // Adds the phi of the derived variable and its step, and returns them
+    private Ir3.Var[] derive(Loops.Loop loop, Ir3.Block pre, int entry, Induction ind, Ir3.RetVal k, String name) {
+        Ir3.Block header = loop.header;
+        Ast.Typ typ = ind.phi.getDst().typ;
+        Ir3.Var var = meth.freshVar(typ, name);
+        Ir3.Var init = meth.freshVar(typ, name);
+        Ir3.Var next = meth.freshVar(typ, name);
+
+        ArrayList<Ir3.Stmt> before = new ArrayList<>();
+        // A loop counter mostly starts at a constant, which simplify can then multiply by
+        Ir3.Var start = ind.phi.args.get(entry);
+        Ir3.Stmt def = defStmt.get(start);
+        if (def instanceof Ir3.AssignStmt && ((Ir3.AssignStmt) def).src instanceof Ir3.IntRetVal) {
+            int c = ((Ir3.IntRetVal) ((Ir3.AssignStmt) def).src).i;
+            if (k instanceof Ir3.IntRetVal)
+                before.add(new Ir3.AssignStmt(init, new Ir3.IntRetVal(c * ((Ir3.IntRetVal) k).i)));
+            else
+                before.add(new Ir3.BinaryStmt(init, Ir3.BinaryOp.MUL, k, new Ir3.IntRetVal(c)));
+        } else {
+            before.add(new Ir3.BinaryStmt(init, Ir3.BinaryOp.MUL, new Ir3.VarRetVal(start), k));
+        }
+        Ir3.RetVal step;
+        if (k instanceof Ir3.IntRetVal) {
+            step = new Ir3.IntRetVal(ind.step * ((Ir3.IntRetVal) k).i);
+        } else if (ind.step == 1) {
+            step = k;
+        } else {
+            Ir3.Var s = meth.freshVar(typ, name);
+            before.add(new Ir3.BinaryStmt(s, Ir3.BinaryOp.MUL, k, new Ir3.IntRetVal(ind.step)));
+            step = new Ir3.VarRetVal(s);
+        }
+        int at = pre.stmts.size();
+        if (at > 0 && pre.stmts.get(at - 1) instanceof Ir3.JumpStmt)
+            at--;
+        pre.stmts.addAll(at, before);
+        for (Ir3.Stmt stmt : before)
+            stmt.forEachDef(d -> define(d, stmt, pre));
+
+        Ir3.PhiStmt phi = new Ir3.PhiStmt(var, header.incoming.size());
+        for (int i = 0; i < header.incoming.size(); i++)
+            phi.args.set(i, i == entry ? init : next);
+        header.stmts.add(0, phi);
+        define(var, phi, header);
+
+        // Right after the step of the basic variable, which every back edge goes through
+        Ir3.Block block = defBlock.get(ind.next);
+        Ir3.Stmt add = new Ir3.BinaryStmt(next, Ir3.BinaryOp.PLUS, new Ir3.VarRetVal(var), step);
+        block.stmts.add(indexOf(block, defStmt.get(ind.next)) + 1, add);
+        define(next, add, block);
+        return new Ir3.Var[] { var, next };
+    }
+
+    private static int indexOf(Ir3.Block block, Ir3.Stmt stmt) {
+        for (int i = 0; i < block.stmts.size(); i++) {
+            if (block.stmts.get(i) == stmt)
+                return i;
+        }
+        throw new AssertionError("ERR: statement not in its block");
+    }
+
+    private void simplify() {
+        for (Ir3.Block block : meth.blocks) {
+            ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+            for (Ir3.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir3.BinaryStmt && ((Ir3.BinaryStmt) stmt).getDst().typ instanceof Ast.IntTyp)
+                    simplify((Ir3.BinaryStmt) stmt, stmts);
+                else
+                    stmts.add(stmt);
+            }
+            block.stmts = stmts;
+        }
+    }
+
+    // Adds what computes the same as the statement to stmts
+    private void simplify(Ir3.BinaryStmt bin, ArrayList<Ir3.Stmt> stmts) {
+        Ir3.Var dst = bin.getDst();
+        Ir3.RetVal a = bin.operand1;
+        Ir3.RetVal b = bin.operand2;
+        if (bin.op == Ir3.BinaryOp.MINUS && a instanceof Ir3.IntRetVal && b instanceof Ir3.VarRetVal) {
+            if (((Ir3.IntRetVal) a).i == 0)
+                stmts.add(new Ir3.UnaryStmt(dst, Ir3.UnaryOp.NEG, b));
+            else
+                stmts.add(new Ir3.BinaryStmt(dst, Ir3.BinaryOp.RSB, b, a));
+            return;
+        }
+        if (bin.op == Ir3.BinaryOp.MUL && a instanceof Ir3.IntRetVal && b instanceof Ir3.VarRetVal) {
+            a = bin.operand2;
+            b = bin.operand1;
+        }
+        if (!(a instanceof Ir3.VarRetVal) || !(b instanceof Ir3.IntRetVal) || (bin.op != Ir3.BinaryOp.MUL && bin.op != Ir3.BinaryOp.DIV)) {
+            stmts.add(bin);
+            return;
+        }
+
+        int k = ((Ir3.IntRetVal) b).i;
+        if (k == 1) {
+            stmts.add(new Ir3.AssignStmt(dst, a));
+        } else if (k == -1) {
+            stmts.add(new Ir3.UnaryStmt(dst, Ir3.UnaryOp.NEG, a));
+        } else if (bin.op == Ir3.BinaryOp.MUL && k == 0) {
+            stmts.add(new Ir3.AssignStmt(dst, new Ir3.IntRetVal(0)));
+        } else if (bin.op == Ir3.BinaryOp.MUL && Integer.bitCount(k) == 1) {
+            stmts.add(new Ir3.BinaryStmt(dst, Ir3.BinaryOp.SHL, a, new Ir3.IntRetVal(Integer.numberOfTrailingZeros(k))));
+        } else if (bin.op == Ir3.BinaryOp.DIV && k > 1 && Integer.bitCount(k) == 1) {
+            int n = Integer.numberOfTrailingZeros(k);
+            // 2^n - 1, the low n bits of the sign, for a negative dividend and 0 for another one
+            Ir3.Var bias = meth.freshVar(dst.typ, dst.name);
+            if (n == 1) {
+                stmts.add(new Ir3.BinaryStmt(bias, Ir3.BinaryOp.USHR, a, new Ir3.IntRetVal(31)));
+            } else {
+                Ir3.Var sign = meth.freshVar(dst.typ, dst.name);
+                stmts.add(new Ir3.BinaryStmt(sign, Ir3.BinaryOp.SHR, a, new Ir3.IntRetVal(31)));
+                stmts.add(new Ir3.BinaryStmt(bias, Ir3.BinaryOp.USHR, new Ir3.VarRetVal(sign), new Ir3.IntRetVal(32 - n)));
+            }
+            Ir3.Var sum = meth.freshVar(dst.typ, dst.name);
+            stmts.add(new Ir3.BinaryStmt(sum, Ir3.BinaryOp.PLUS, a, new Ir3.VarRetVal(bias)));
+            stmts.add(new Ir3.BinaryStmt(dst, Ir3.BinaryOp.SHR, new Ir3.VarRetVal(sum), new Ir3.IntRetVal(n)));
+        } else {
+            stmts.add(bin);
+        }
+    }
+}